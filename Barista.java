@@ -1,33 +1,77 @@
 import helpers.Cafe;
+import helpers.CafeThreads;
 import helpers.CustomerHandler;
+import helpers.DrinkType;
+import helpers.NioCafeServer;
 
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
+import java.util.Scanner;
 
 // The main server application for the Virtual Cafe.
 // Manages incoming client connections and routes customer requests to appropriate handlers.
 
 public class Barista {
-    private final static int port = 2610;
-    private static final HashMap<String,String> customers = new HashMap<>(); //HashMap to keep track of clients and their activity
+    private static int port = 2610; // --port=<n> to run several cafes side by side, e.g. as nodes behind a Router
+    private final static int nioWorkers = 4; // Worker threads running commands in non-blocking mode
 
+    // Pass --nio to serve customers from a selector instead of a thread per connection,
+    // and --virtual to run handlers, workers and the brewing clock on virtual threads
     public static void main(String[] args)
     {
-        OpenCafe();
+        boolean nio = false;
+        for (String arg : args)
+        {
+            if (arg.startsWith("--port="))
+            {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+                continue;
+            }
+            switch (arg)
+            {
+                case "--nio": nio = true; break;
+                case "--virtual": CafeThreads.useVirtualThreads(true); break;
+                default: System.out.println("Ignoring unknown option " + arg);
+            }
+        }
+
+        if (nio)
+        {
+            OpenCafeNio();
+        }
+        else
+        {
+            OpenCafe();
+        }
+    }
+
+    //Start non-blocking server
+    private static void OpenCafeNio()
+    {
+        final Cafe cafe = new Cafe();
+
+        //Handle SIGINT signal
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("Shutting down cafe...");
+            cafe.shutdownCafe();
+        }));
+        startAdminConsole(cafe);
+
+        new NioCafeServer(port, cafe, nioWorkers).run();
     }
 
     //Start server
     private static void OpenCafe()
     {
-        final Cafe cafe = new Cafe(customers);
+        final Cafe cafe = new Cafe();
 
         //Handle SIGINT signal
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("Shutting down cafe...");
             cafe.shutdownCafe();
         }));
+        startAdminConsole(cafe);
 
         //Try with resources
         try(ServerSocket serverSocket = new ServerSocket(port))
@@ -38,15 +82,40 @@ public class Barista {
                 //Wait for connection
                 Socket socket = serverSocket.accept();
 
-                //Add customer to the hashmap
-                customers.put(Integer.toString(socket.getPort()),"IDLE");
+                //Register the customer as IDLE under a new session ID
+                int clientID = cafe.getCustomers().enter();
 
                 //Start thread to handle the customer
-                new Thread(new CustomerHandler(socket,cafe,customers)).start();
+                CafeThreads.start("customer-" + clientID, new CustomerHandler(socket, clientID, cafe));
             }
 
         }catch (IOException e) {
             System.out.println(e.getMessage());
         }
     }
+
+    // Reads staff commands from the server terminal, e.g. "capacity coffee 4" to add coffee machines at peak time
+    private static void startAdminConsole(Cafe cafe)
+    {
+        CafeThreads.startDaemon("admin-console", () -> {
+            Scanner input = new Scanner(System.in);
+            while (input.hasNextLine())
+            {
+                String[] parts = input.nextLine().trim().toLowerCase().split("\\s+");
+                if (parts.length == 3 && parts[0].equals("capacity") && DrinkType.fromKey(parts[1]) != null)
+                {
+                    try
+                    {
+                        cafe.setBrewingCapacity(DrinkType.fromKey(parts[1]), Integer.parseInt(parts[2]));
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("Invalid capacity: " + e.getMessage());
+                    }
+                }
+                else if (!parts[0].isEmpty())
+                {
+                    System.out.println("Unknown admin command. Use: capacity <tea|coffee> <machines>");
+                }
+            }
+        });
+    }
 }
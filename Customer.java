@@ -92,6 +92,15 @@ public class Customer{
                         case "collect":
                             customer.attemptCollection();
                             break;
+                        case "stats":
+                            customer.requestStats();
+                            break;
+                        case "subscribe":
+                            customer.subscribe(parts.length > 1 && parts[1].equals("all"));
+                            break;
+                        case "unsubscribe":
+                            customer.unsubscribe();
+                            break;
                         case "exit":
                             System.out.println("*You exit the cafe*");
                             normalExit = true;
@@ -0,0 +1,367 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import helpers.CafeClient;
+
+// Headless load generator for the Virtual Cafe.
+// Simulates many customers from one JVM over the same protocol as the interactive Customer,
+// carried by CafeClient on a few selector threads, then reports throughput, command latency percentiles and order time-to-ready.
+//
+// Usage: java LoadGenerator [--key=value ...], see Profile for the keys and their defaults, e.g.
+//   java -cp target/classes LoadGenerator --customers=2000 --rate=100 --teaRatio=0.3 --pollMillis=1000
+
+public class LoadGenerator
+{
+    private static final String readyMessage = "your order is ready to collect!";
+    private static final Pattern etaPattern = Pattern.compile("ETA (\\d+)s$", Pattern.MULTILINE); // Ends the order placed reply and the order status
+
+    private final Profile profile;
+    private final ScheduledExecutorService scheduler; // Drives every simulated customer's next action
+    private final CafeClient client; // Carries every customer's connection on a few selector threads
+    private final CountDownLatch finished;
+    private final long startNanos = System.nanoTime();
+
+    private final Map<String, Latencies> commandLatencies = new HashMap<>(); // Fixed set of keys, filled in the constructor
+    private final Latencies timeToReady = new Latencies();
+    private final AtomicLong commandsSent = new AtomicLong(0);
+    private final AtomicInteger ordersPlaced = new AtomicInteger(0);
+    private final AtomicInteger ordersReady = new AtomicInteger(0);
+    private final AtomicInteger collected = new AtomicInteger(0);
+    private final AtomicInteger cancelled = new AtomicInteger(0);
+    private final AtomicInteger failed = new AtomicInteger(0);
+    private final AtomicInteger turnedAway = new AtomicInteger(0); // BUSY or REJECTED replies to PLACE_ORDER
+
+    public static void main(String[] args) throws InterruptedException, IOException
+    {
+        Profile profile = Profile.parse(args);
+        System.out.println("Load profile: " + profile);
+        new LoadGenerator(profile).run();
+    }
+
+    private LoadGenerator(Profile profile) throws IOException
+    {
+        this.profile = profile;
+        this.scheduler = Executors.newScheduledThreadPool(profile.schedulerThreads);
+        this.client = new CafeClient(profile.host, profile.port, profile.clientThreads, profile.frames);
+        this.finished = new CountDownLatch(profile.customers);
+        for (String command : new String[]{"PLACE_ORDER", "ORDER_STATUS", "COLLECT", "EXIT"})
+        {
+            commandLatencies.put(command, new Latencies());
+        }
+    }
+
+    private void run() throws InterruptedException
+    {
+        // Poisson arrivals: exponential gaps at the configured rate
+        Random random = new Random(profile.seed);
+        double arrivalMillis = 0;
+        for (int i = 0; i < profile.customers; i++)
+        {
+            SimulatedCustomer customer = new SimulatedCustomer("load-" + i, new Random(random.nextLong()));
+            scheduler.schedule(customer::arrive, (long) arrivalMillis, TimeUnit.MILLISECONDS);
+            arrivalMillis += -Math.log(1 - random.nextDouble()) * 1000.0 / profile.rate;
+        }
+
+        if (!finished.await(profile.timeoutSeconds, TimeUnit.SECONDS))
+        {
+            System.out.println("Timed out with " + finished.getCount() + " customer(s) still in the cafe");
+        }
+        scheduler.shutdownNow();
+        client.close();
+        report();
+    }
+
+    private void report()
+    {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.println();
+        System.out.println("--- Load Report ---");
+        System.out.printf("Duration: %.1f s%n", seconds);
+        System.out.printf("Commands: %d (%.1f/s)%n", commandsSent.get(), commandsSent.get() / seconds);
+        System.out.printf("Orders placed: %d (%.1f/s), turned away: %d, ready: %d, collected: %d, cancelled: %d, failed customers: %d%n",
+                ordersPlaced.get(), ordersPlaced.get() / seconds, turnedAway.get(), ordersReady.get(), collected.get(), cancelled.get(), failed.get());
+        System.out.println("Latency (ms)            count      p50      p90      p99      max");
+        for (Map.Entry<String, Latencies> entry : commandLatencies.entrySet())
+        {
+            System.out.println(entry.getValue().summary(entry.getKey()));
+        }
+        System.out.println(timeToReady.summary("time-to-ready"));
+    }
+
+
+    // One customer: connects, orders, polls, maybe adds on or cancels, then collects and leaves
+    private final class SimulatedCustomer
+    {
+        private final String name;
+        private final Random random;
+        private final AtomicInteger state = new AtomicInteger(0); // 0 ordering, 1 leaving, 2 gone
+        private volatile CafeClient.Session session;
+        private volatile long firstOrderNanos;
+        private volatile long etaMillis = 0; // Last ETA from the server, relative to when it was received
+
+        SimulatedCustomer(String name, Random random)
+        {
+            this.name = name;
+            this.random = random;
+        }
+
+        void arrive()
+        {
+            client.open(name, this::onPush).whenComplete((opened, error) -> {
+                if (error != null)
+                {
+                    failed.incrementAndGet();
+                    finished.countDown();
+                    return;
+                }
+                session = opened;
+                opened.closed().whenComplete((closed, lost) -> {
+                    if (lost != null) onDisconnect();
+                });
+
+                firstOrderNanos = System.nanoTime();
+                placeOrder();
+
+                if (random.nextDouble() < profile.addOnProbability)
+                {
+                    after(random.nextInt(profile.pollMillis * 2 + 1), this::placeOrder);
+                }
+                if (random.nextDouble() < profile.cancelProbability)
+                {
+                    after(random.nextInt(profile.cancelWithinMillis + 1), () -> leave(false));
+                }
+                after(profile.pollMillis, this::poll);
+            });
+        }
+
+        private void placeOrder()
+        {
+            if (state.get() != 0) return;
+
+            int drinks = 1 + random.nextInt(profile.maxDrinks);
+            int teas = 0;
+            for (int i = 0; i < drinks; i++)
+            {
+                if (random.nextDouble() < profile.teaRatio) teas++;
+            }
+            int coffees = drinks - teas;
+            int orderedTeas = teas;
+            ordersPlaced.incrementAndGet();
+            send("PLACE_ORDER", () -> session.placeOrder(orderedTeas, coffees)).thenAccept(reply -> {
+                noteEta(reply);
+                if (reply.startsWith("BUSY RETRY_AFTER="))
+                {
+                    // Back off as asked, then order again
+                    turnedAway.incrementAndGet();
+                    int seconds = Integer.parseInt(reply.substring("BUSY RETRY_AFTER=".length(), reply.indexOf(' ', "BUSY RETRY_AFTER=".length())));
+                    after(seconds * 1000L, this::placeOrder);
+                }
+                else if (reply.startsWith("REJECTED "))
+                {
+                    // Over a per-order or per-customer limit, waiting won't help
+                    turnedAway.incrementAndGet();
+                    after(0, () -> leave(false));
+                }
+            });
+        }
+
+        private void poll()
+        {
+            if (state.get() != 0) return;
+            send("ORDER_STATUS", session::orderStatus).thenAccept(this::noteEta);
+            after(profile.pollAtEta ? Math.max(profile.pollMillis, etaMillis) : profile.pollMillis, this::poll);
+        }
+
+        // Leaves the cafe, collecting first if the order is ready; pipelined, EXIT goes out without waiting for COLLECT
+        private void leave(boolean ready)
+        {
+            if (!state.compareAndSet(0, 1)) return;
+
+            if (ready && random.nextDouble() < profile.collectProbability)
+            {
+                send("COLLECT", session::collect);
+                collected.incrementAndGet();
+            }
+            else if (!ready)
+            {
+                cancelled.incrementAndGet();
+            }
+            send("EXIT", session::exit);
+            if (state.getAndSet(2) != 2)
+            {
+                finished.countDown();
+            }
+        }
+
+        private void onPush(String message)
+        {
+            if (message.endsWith(readyMessage))
+            {
+                ordersReady.incrementAndGet();
+                timeToReady.record(System.nanoTime() - firstOrderNanos);
+                after(random.nextInt(profile.collectWithinMillis + 1), () -> leave(true));
+            }
+        }
+
+        private void noteEta(String reply)
+        {
+            Matcher eta = etaPattern.matcher(reply);
+            if (eta.find())
+            {
+                etaMillis = Long.parseLong(eta.group(1)) * 1000;
+            }
+        }
+
+        private void onDisconnect()
+        {
+            if (state.getAndSet(2) != 2)
+            {
+                failed.incrementAndGet();
+                finished.countDown();
+            }
+        }
+
+        // Sends a command and records its latency once the reply is in
+        private CompletableFuture<String> send(String command, Supplier<CompletableFuture<String>> write)
+        {
+            long sentNanos = System.nanoTime();
+            commandsSent.incrementAndGet();
+            CompletableFuture<String> reply = write.get();
+            reply.thenRun(() -> commandLatencies.get(command).record(System.nanoTime() - sentNanos));
+            return reply;
+        }
+
+        private void after(long delayMillis, Runnable action)
+        {
+            scheduler.schedule(action, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+
+    // Latency samples in nanoseconds, summarised as percentiles at the end of the run
+    private static final class Latencies
+    {
+        private final ReentrantLock lock = new ReentrantLock();
+        private long[] samples = new long[1024];
+        private int count = 0;
+
+        void record(long nanos)
+        {
+            lock.lock();
+            try
+            {
+                if (count == samples.length)
+                {
+                    samples = Arrays.copyOf(samples, count * 2);
+                }
+                samples[count++] = nanos;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        String summary(String label)
+        {
+            lock.lock();
+            try
+            {
+                long[] sorted = Arrays.copyOf(samples, count);
+                Arrays.sort(sorted);
+                return String.format("%-20s %9d %8.1f %8.1f %8.1f %8.1f", label, count,
+                        percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99), percentile(sorted, 1.0));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private static double percentile(long[] sorted, double quantile)
+        {
+            if (sorted.length == 0) return 0;
+            int index = (int) Math.ceil(quantile * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+    }
+
+
+    // Workload profile, every field can be set with --name=value
+    private static final class Profile
+    {
+        String host = "localhost";
+        int port = 2610;
+        int customers = 100; // Customers to simulate in total
+        double rate = 10; // Arrivals per second
+        int maxDrinks = 4; // Drinks per order, uniform in 1..maxDrinks
+        double teaRatio = 0.5; // Share of drinks that are teas
+        double addOnProbability = 0.2; // Chance of a second order while waiting
+        int pollMillis = 2000; // Time between order status polls
+        boolean pollAtEta = false; // Wait for the ETA the server gave, if later than pollMillis, before polling again
+        double cancelProbability = 0.05; // Chance of leaving before the order is ready
+        int cancelWithinMillis = 30000; // Cancelling customers leave within this time of arriving
+        double collectProbability = 0.95; // Chance of collecting a ready order before leaving
+        int collectWithinMillis = 1000; // Delay between the ready message and collecting
+        int schedulerThreads = 2;
+        int clientThreads = 2; // Selector threads carrying the connections
+        boolean frames = true; // Framed protocol after the name handshake, false keeps text lines
+        int timeoutSeconds = 3600;
+        long seed = 42;
+
+        static Profile parse(String[] args)
+        {
+            Profile profile = new Profile();
+            for (String arg : args)
+            {
+                String[] pair = arg.replaceFirst("^--", "").split("=", 2);
+                if (pair.length != 2)
+                {
+                    throw new IllegalArgumentException("Expected --key=value but got " + arg);
+                }
+                switch (pair[0])
+                {
+                    case "host": profile.host = pair[1]; break;
+                    case "port": profile.port = Integer.parseInt(pair[1]); break;
+                    case "customers": profile.customers = Integer.parseInt(pair[1]); break;
+                    case "rate": profile.rate = Double.parseDouble(pair[1]); break;
+                    case "maxDrinks": profile.maxDrinks = Integer.parseInt(pair[1]); break;
+                    case "teaRatio": profile.teaRatio = Double.parseDouble(pair[1]); break;
+                    case "addOn": profile.addOnProbability = Double.parseDouble(pair[1]); break;
+                    case "pollMillis": profile.pollMillis = Integer.parseInt(pair[1]); break;
+                    case "pollAtEta": profile.pollAtEta = Boolean.parseBoolean(pair[1]); break;
+                    case "cancel": profile.cancelProbability = Double.parseDouble(pair[1]); break;
+                    case "cancelWithinMillis": profile.cancelWithinMillis = Integer.parseInt(pair[1]); break;
+                    case "collect": profile.collectProbability = Double.parseDouble(pair[1]); break;
+                    case "collectWithinMillis": profile.collectWithinMillis = Integer.parseInt(pair[1]); break;
+                    case "schedulerThreads": profile.schedulerThreads = Integer.parseInt(pair[1]); break;
+                    case "clientThreads": profile.clientThreads = Integer.parseInt(pair[1]); break;
+                    case "frames": profile.frames = Boolean.parseBoolean(pair[1]); break;
+                    case "timeoutSeconds": profile.timeoutSeconds = Integer.parseInt(pair[1]); break;
+                    case "seed": profile.seed = Long.parseLong(pair[1]); break;
+                    default: throw new IllegalArgumentException("Unknown option " + pair[0]);
+                }
+            }
+            return profile;
+        }
+
+        @Override
+        public String toString()
+        {
+            return customers + " customers at " + rate + "/s against " + host + ":" + port
+                    + ", up to " + maxDrinks + " drinks (" + (int) (teaRatio * 100) + "% tea)"
+                    + ", add-on " + addOnProbability + ", poll every " + pollMillis + " ms" + (pollAtEta ? " or at the ETA" : "")
+                    + ", cancel " + cancelProbability + ", collect " + collectProbability;
+        }
+    }
+}
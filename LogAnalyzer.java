@@ -0,0 +1,187 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import helpers.CafeLogReader;
+import helpers.CafeSnapshot;
+import helpers.DrinkType;
+import helpers.RotatingLog;
+
+// Offline report of a cafe log: per-minute machine utilisation, queue depth and customer counts.
+// Streams every segment of the given logs (rotated, gzipped, JSON or binary) one snapshot at a time,
+// so it runs in constant memory apart from one row per minute.
+// Averages are weighted by time: the cafe keeps the state of a snapshot until the next one.
+// Utilisation is drinks brewing per machine, so with batch brewing (-Dcafe.batch.*) it can pass 100%.
+//
+// Usage: java -cp "target/classes:gson-2.11.0.jar" LogAnalyzer [--teaSlots=2] [--coffeeSlots=2] [--maxGapSeconds=600] [--csv] cafe_logs.bin ...
+// A path names the active log file; its closed segments next to it are read first.
+
+public class LogAnalyzer
+{
+    private static final DateTimeFormatter minuteFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+
+    // Time-weighted values tracked per minute, in the order of CafeSnapshot's fields
+    private static final int inCafe = 0, waitingClients = 1, waitingTeas = 2, waitingCoffees = 3, brewingTeas = 4, brewingCoffees = 5;
+    private static final int values = 6;
+
+    private final int teaSlots;
+    private final int coffeeSlots;
+    private final long maxGapMillis; // Longer silences (e.g. the cafe was closed) count as no data
+    private final TreeMap<Long, Minute> minutes = new TreeMap<>();
+    private CafeSnapshot previous = null;
+    private long snapshots = 0;
+
+    // One row of the report
+    private static final class Minute
+    {
+        private long weightMillis = 0;
+        private long snapshots = 0;
+        private final double[] sums = new double[values];
+        private final long[] max = new long[values];
+    }
+
+    private LogAnalyzer(int teaSlots, int coffeeSlots, long maxGapMillis)
+    {
+        this.teaSlots = teaSlots;
+        this.coffeeSlots = coffeeSlots;
+        this.maxGapMillis = maxGapMillis;
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        int teaSlots = DrinkType.TEA.getDefaultCapacity();
+        int coffeeSlots = DrinkType.COFFEE.getDefaultCapacity();
+        long maxGapSeconds = 600;
+        boolean csv = false;
+        List<Path> logs = new ArrayList<>();
+        for (String arg : args)
+        {
+            String[] pair = arg.split("=", 2);
+            switch (pair[0])
+            {
+                case "--teaSlots": teaSlots = Integer.parseInt(pair[1]); break;
+                case "--coffeeSlots": coffeeSlots = Integer.parseInt(pair[1]); break;
+                case "--maxGapSeconds": maxGapSeconds = Long.parseLong(pair[1]); break;
+                case "--csv": csv = true; break;
+                default: logs.add(Path.of(arg));
+            }
+        }
+        if (logs.isEmpty())
+        {
+            System.out.println("Usage: LogAnalyzer [--teaSlots=2] [--coffeeSlots=2] [--maxGapSeconds=600] [--csv] <log file> ...");
+            return;
+        }
+
+        LogAnalyzer analyzer = new LogAnalyzer(teaSlots, coffeeSlots, maxGapSeconds * 1000);
+        long started = System.nanoTime();
+        for (Path log : logs)
+        {
+            for (Path segment : RotatingLog.segmentsOf(log))
+            {
+                CafeLogReader.read(segment, analyzer::add);
+            }
+        }
+        analyzer.finish();
+        analyzer.print(csv);
+        System.err.printf("%d snapshot(s) in %d minute(s), read in %d ms%n", analyzer.snapshots, analyzer.minutes.size(), (System.nanoTime() - started) / 1_000_000);
+    }
+
+    private void add(CafeSnapshot snapshot)
+    {
+        if (previous != null)
+        {
+            long gap = snapshot.timestampMillis() - previous.timestampMillis();
+            if (gap > 0 && gap <= maxGapMillis)
+            {
+                spread(previous, previous.timestampMillis(), snapshot.timestampMillis());
+            }
+        }
+        Minute minute = minute(snapshot.timestampMillis());
+        minute.snapshots++;
+        long[] state = valuesOf(snapshot);
+        for (int i = 0; i < values; i++)
+        {
+            minute.max[i] = Math.max(minute.max[i], state[i]);
+        }
+        previous = snapshot;
+        snapshots++;
+    }
+
+    // The last state lasts until the end of its minute
+    private void finish()
+    {
+        if (previous != null)
+        {
+            long end = previous.timestampMillis() / 60_000 * 60_000 + 60_000;
+            spread(previous, previous.timestampMillis(), end);
+        }
+    }
+
+    // Adds the state of a snapshot, held from start to end, to every minute it overlaps
+    private void spread(CafeSnapshot snapshot, long start, long end)
+    {
+        long[] state = valuesOf(snapshot);
+        while (start < end)
+        {
+            long minuteEnd = start / 60_000 * 60_000 + 60_000;
+            long until = Math.min(end, minuteEnd);
+            Minute minute = minute(start);
+            minute.weightMillis += until - start;
+            for (int i = 0; i < values; i++)
+            {
+                minute.sums[i] += state[i] * (double) (until - start);
+                minute.max[i] = Math.max(minute.max[i], state[i]);
+            }
+            start = until;
+        }
+    }
+
+    private Minute minute(long millis)
+    {
+        return minutes.computeIfAbsent(millis / 60_000 * 60_000, key -> new Minute());
+    }
+
+    private static long[] valuesOf(CafeSnapshot snapshot)
+    {
+        return new long[] {snapshot.clientsInCafe(), snapshot.clientsWaiting(), snapshot.waitingTeas(), snapshot.waitingCoffees(),
+                snapshot.brewingTeas(), snapshot.brewingCoffees()};
+    }
+
+    private void print(boolean csv)
+    {
+        String header = csv
+                ? "minute,snapshots,tea_busy_pct,coffee_busy_pct,tea_queue_avg,tea_queue_max,coffee_queue_avg,coffee_queue_max,clients_avg,clients_max,waiting_clients_avg"
+                : String.format("%-16s %9s %7s %8s %17s %20s %15s %7s", "minute", "snapshots", "tea %", "coffee %", "tea queue avg/max", "coffee queue avg/max", "clients avg/max", "waiting");
+        System.out.println(header);
+        for (Map.Entry<Long, Minute> entry : minutes.entrySet())
+        {
+            Minute minute = entry.getValue();
+            double[] avg = new double[values];
+            for (int i = 0; i < values; i++)
+            {
+                avg[i] = minute.weightMillis > 0 ? minute.sums[i] / minute.weightMillis : minute.max[i];
+            }
+            double teaBusy = 100 * avg[brewingTeas] / teaSlots;
+            double coffeeBusy = 100 * avg[brewingCoffees] / coffeeSlots;
+            String time = minuteFormat.format(Instant.ofEpochMilli(entry.getKey()));
+            if (csv)
+            {
+                System.out.printf("%s,%d,%.1f,%.1f,%.2f,%d,%.2f,%d,%.2f,%d,%.2f%n", time, minute.snapshots, teaBusy, coffeeBusy,
+                        avg[waitingTeas], minute.max[waitingTeas], avg[waitingCoffees], minute.max[waitingCoffees],
+                        avg[inCafe], minute.max[inCafe], avg[waitingClients]);
+            }
+            else
+            {
+                System.out.printf("%-16s %9d %7.1f %8.1f %10.1f/%-6d %13.1f/%-6d %8.1f/%-6d %7.1f%n", time, minute.snapshots, teaBusy, coffeeBusy,
+                        avg[waitingTeas], minute.max[waitingTeas], avg[waitingCoffees], minute.max[waitingCoffees],
+                        avg[inCafe], minute.max[inCafe], avg[waitingClients]);
+            }
+        }
+    }
+}
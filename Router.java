@@ -0,0 +1,102 @@
+import helpers.Cafe;
+import helpers.CafeConfig;
+import helpers.CafeRouter;
+import helpers.CafeThreads;
+import helpers.NioCafeServer;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+// Front door of a cafe cluster: customers connect here exactly as they would to a single Barista.
+//
+// Usage:
+//   java Router --local=3                 three cafe nodes inside this JVM on ports 2611-2613
+//   java Router --nodes=localhost:2611/9411,localhost:2612/9412
+//                                         nodes started separately, e.g. java -Dcafe.metrics.port=9411 -Dcafe.journal.dir=node1 Barista --port=2611;
+//                                         the optional /metricsPort lets the router include the node in the cluster log
+// Other options: --port=2610, --statsMillis=5000 (0 turns the cluster log off), --virtual
+
+public class Router
+{
+    private static final int nioWorkers = 4; // Worker threads per in-JVM node
+
+    public static void main(String[] args)
+    {
+        int port = 2610;
+        int localNodes = 0;
+        String remoteNodes = null;
+        long statsMillis = 5000;
+        for (String arg : args)
+        {
+            String[] pair = arg.split("=", 2);
+            switch (pair[0])
+            {
+                case "--port": port = Integer.parseInt(pair[1]); break;
+                case "--local": localNodes = Integer.parseInt(pair[1]); break;
+                case "--nodes": remoteNodes = pair[1]; break;
+                case "--statsMillis": statsMillis = Long.parseLong(pair[1]); break;
+                case "--virtual": CafeThreads.useVirtualThreads(true); break;
+                default: System.out.println("Ignoring unknown option " + arg);
+            }
+        }
+
+        List<CafeRouter.Node> nodes = new ArrayList<>();
+        List<Cafe> cafes = new ArrayList<>();
+        for (int i = 1; i <= localNodes; i++)
+        {
+            nodes.add(startLocalNode("node" + i, port + i, cafes));
+        }
+        if (remoteNodes != null)
+        {
+            for (String node : remoteNodes.split(","))
+            {
+                nodes.add(remoteNode(node.trim()));
+            }
+        }
+        if (nodes.isEmpty())
+        {
+            System.out.println("No cafe nodes given. Use --local=<count> and/or --nodes=host:port[/metricsPort],...");
+            return;
+        }
+
+        //Handle SIGINT signal
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("Shutting down cafe cluster...");
+            for (Cafe cafe : cafes)
+            {
+                cafe.shutdownCafe();
+            }
+        }));
+
+        new CafeRouter(port, nodes, statsMillis).run();
+    }
+
+    // A whole cafe in this JVM with its own port, brewing machines and log file, and with -Dcafe.journal.dir its own journal under it
+    private static CafeRouter.Node startLocalNode(String name, int port, List<Cafe> cafes)
+    {
+        CafeConfig config = new CafeConfig()
+                .setLogPath("cafe_logs_" + name + ".json")
+                .setLogConsoleMillis(-1) // The router prints the cluster log instead
+                .setMetricsPort(0);
+        if (config.getJournalDir() != null && !config.getJournalDir().isEmpty())
+        {
+            config.setJournalDir(config.getJournalDir() + "/" + name);
+        }
+        Cafe cafe = new Cafe(config);
+        cafes.add(cafe);
+        CafeThreads.startDaemon(name, new NioCafeServer(port, cafe, nioWorkers));
+        return new CafeRouter.Node(name, new InetSocketAddress("localhost", port), cafe::snapshot);
+    }
+
+    // host:port or host:port/metricsPort
+    private static CafeRouter.Node remoteNode(String spec)
+    {
+        String[] addressAndMetrics = spec.split("/", 2);
+        String[] hostAndPort = addressAndMetrics[0].split(":", 2);
+        String host = hostAndPort[0];
+        int port = Integer.parseInt(hostAndPort[1]);
+        return new CafeRouter.Node(host + ":" + port, new InetSocketAddress(host, port),
+                addressAndMetrics.length == 2 ? CafeRouter.scrapeMetrics(host, Integer.parseInt(addressAndMetrics[1])) : () -> null);
+    }
+}
@@ -0,0 +1,43 @@
+package benchmarks;
+
+import helpers.Cafe;
+import helpers.CafeConfig;
+import helpers.DrinkType;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+// Shared setup for benchmarks that need a running Cafe.
+
+final class BenchmarkSupport
+{
+    private static final PrintStream console = System.out;
+
+    private BenchmarkSupport() {}
+
+    // A cafe without a log file, journal, console output or admission limits, brewing every drink in brewMillis
+    static Cafe quietCafe(int brewMillis)
+    {
+        CafeConfig config = new CafeConfig()
+                .setLogPath(null)
+                .setJournalDir(null)
+                .setLogConsoleMillis(-1)
+                .setOrderDrinkLimit(0)
+                .setCustomerDrinkLimit(0)
+                .setWaitingDrinkLimit(0)
+                .setBrewTime(DrinkType.TEA, brewMillis)
+                .setBrewTime(DrinkType.COFFEE, brewMillis);
+        return new Cafe(config);
+    }
+
+    // The cafe reports every order on System.out; keep that out of the measurement
+    static void muteConsole()
+    {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    static void restoreConsole()
+    {
+        System.setOut(console);
+    }
+}
@@ -0,0 +1,66 @@
+package benchmarks;
+
+import helpers.Cafe;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Cafe-wide operations with N customers already holding orders.
+// Brewing takes an hour so the state stays put while measuring, and the cafe is rebuilt for every iteration,
+// so add-ons from one iteration don't pile up into the next.
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CafeBenchmark
+{
+    @Param({"10", "1000", "10000"})
+    public int activeOrders;
+
+    private Cafe cafe;
+    private int[] clientIDs;
+
+    @Setup(Level.Iteration)
+    public void setup()
+    {
+        BenchmarkSupport.muteConsole();
+        cafe = BenchmarkSupport.quietCafe(3_600_000);
+        clientIDs = new int[activeOrders];
+        for (int i = 0; i < activeOrders; i++)
+        {
+            clientIDs[i] = 10_000 + i;
+            cafe.addOrder(clientIDs[i], "Customer" + i, 2, 2);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown()
+    {
+        cafe.shutdownCafe();
+        BenchmarkSupport.restoreConsole();
+    }
+
+    // Add-on of one tea and one coffee to every existing order in turn: one lap per call, ten laps per iteration,
+    // so each iteration grows the orders by the same ten drinks a type. The score is the time of all ten laps.
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 10, batchSize = 10)
+    @Measurement(iterations = 20, batchSize = 10)
+    public void addOrder()
+    {
+        for (int clientID : clientIDs)
+        {
+            cafe.addOrder(clientID, "Customer", 1, 1);
+        }
+    }
+
+    @Benchmark
+    public void cafeLogState()
+    {
+        cafe.cafeLogState();
+    }
+}
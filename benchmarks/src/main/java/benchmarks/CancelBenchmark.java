@@ -0,0 +1,59 @@
+package benchmarks;
+
+import helpers.Cafe;
+import helpers.DrinkState;
+import helpers.Order;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Cancelling an order whose brewing drinks get transferred to other customers.
+// Each invocation sets up a fresh cafe: one leaving customer with every slot brewing
+// and N other customers with drinks still waiting.
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, batchSize = 1)
+@Measurement(iterations = 20, batchSize = 1)
+@Fork(1)
+public class CancelBenchmark
+{
+    @Param({"10", "1000"})
+    public int activeOrders;
+
+    private Cafe cafe;
+
+    @Setup(Level.Invocation)
+    public void setup() throws InterruptedException
+    {
+        BenchmarkSupport.muteConsole();
+        cafe = BenchmarkSupport.quietCafe(3_600_000);
+        cafe.addOrder(1, "Leaving", 5, 5);
+
+        // The dispatcher fills the slots asynchronously
+        Order leaving = cafe.getActiveOrder(1);
+        while (leaving.countTeasByState(DrinkState.BREWING) + leaving.countCoffeesByState(DrinkState.BREWING) < 4)
+        {
+            Thread.sleep(1);
+        }
+
+        for (int i = 0; i < activeOrders; i++)
+        {
+            cafe.addOrder(10_000 + i, "Customer" + i, 3, 3);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown()
+    {
+        cafe.shutdownCafe();
+        BenchmarkSupport.restoreConsole();
+    }
+
+    @Benchmark
+    public void cancelOrder()
+    {
+        cafe.cancelOrder(1);
+    }
+}
@@ -0,0 +1,52 @@
+package benchmarks;
+
+import helpers.Cafe;
+import helpers.CustomerHandler;
+import helpers.ReplyWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+// Parsing and dispatch of one protocol line in CustomerHandler, replies written to a null writer.
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerBenchmark
+{
+    @Param({"ORDER_STATUS", "COLLECT", "PLACE_ORDER x 1", "FOO"})
+    public String command;
+
+    private Cafe cafe;
+    private CustomerHandler handler;
+    private ReplyWriter writer;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        BenchmarkSupport.muteConsole();
+        cafe = BenchmarkSupport.quietCafe(3_600_000);
+        writer = new ReplyWriter(Writer.nullWriter(), (bytes, flush) -> {});
+        cafe.getCustomers().enter(42);
+        handler = new CustomerHandler(42, cafe);
+        handler.greet("Bench", writer);
+        cafe.addOrder(42, "Bench", 2, 2);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        cafe.shutdownCafe();
+        BenchmarkSupport.restoreConsole();
+    }
+
+    @Benchmark
+    public boolean handleCommand()
+    {
+        return handler.handleLine(command, writer);
+    }
+}
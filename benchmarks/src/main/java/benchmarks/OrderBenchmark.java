@@ -0,0 +1,73 @@
+package benchmarks;
+
+import helpers.DrinkState;
+import helpers.DrinkType;
+import helpers.Order;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Per-order queries at different order sizes.
+// A third of each drink type is waiting, a third brewing and a third on the tray.
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OrderBenchmark
+{
+    @Param({"10", "1000", "100000"})
+    public int drinks;
+
+    private Order order;
+    private boolean flip = false;
+
+    @Setup
+    public void setup()
+    {
+        order = new Order("Bench", drinks, drinks);
+        for (DrinkType type : DrinkType.values())
+        {
+            for (int i = 0; i < drinks * 2 / 3; i++)
+            {
+                order.updateState(type, i, i < drinks / 3 ? DrinkState.TRAY : DrinkState.BREWING);
+            }
+        }
+    }
+
+    @Benchmark
+    public int countTeasByState()
+    {
+        return order.countTeasByState(DrinkState.WAITING);
+    }
+
+    @Benchmark
+    public int getNextWaitingTea()
+    {
+        return order.getNextWaitingTea();
+    }
+
+    // Unchanged order: served from the cached status
+    @Benchmark
+    public String getOrderStatus()
+    {
+        return order.getOrderStatus();
+    }
+
+    @Benchmark
+    public byte[] getOrderStatusLine()
+    {
+        return order.getOrderStatusLine();
+    }
+
+    // One drink moves between the tray and brewing before every call, so the status is rendered each time
+    @Benchmark
+    public String getOrderStatusAfterChange()
+    {
+        flip = !flip;
+        order.updateState(DrinkType.TEA, 0, flip ? DrinkState.BREWING : DrinkState.TRAY);
+        return order.getOrderStatus();
+    }
+}
@@ -0,0 +1,207 @@
+package benchmarks;
+
+import helpers.Cafe;
+import helpers.CafeConfig;
+import helpers.DrinkType;
+import helpers.VirtualClock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// Replays the same simulated day against each scheduling policy and batch setting, and compares how long orders take
+// to be ready. Most customers want one or two drinks, a few are offices ordering 10-20 coffees at once.
+// The day is played twice: at the given arrival rate and at peakFactor times that rate, where one drink per brew can't
+// keep up and batching has to earn its keep. A batch setting is size/waitMillis, the longest a partial batch is held
+// back for company (-Dcafe.batch.waitMillis); "drinks/h" is the drinks of the day over the time until the last was ready.
+// Runs on a VirtualClock with the real brew times and machines, so a whole day takes a moment.
+// Not a JMH benchmark: what matters here is waiting time in the cafe, not CPU time.
+//
+// Usage: java -cp benchmarks/target/benchmarks.jar benchmarks.SchedulingSimulation [meanGapSeconds] [hours] [seed] [batches] [peakFactor]
+//   e.g. ... SchedulingSimulation 55 8 42 1/0,4/0,4/5000 3
+
+public class SchedulingSimulation
+{
+    private static final String[] policies = {"fifo", "srpt", "round-robin", "wfq"};
+    private static final double officeShare = 0.06; // Share of arrivals that are office orders
+
+    // One arrival of the simulated day
+    private record Arrival(long atMillis, int teas, int coffees)
+    {
+        boolean isOffice()
+        {
+            return teas + coffees >= 10;
+        }
+    }
+
+    // Drinks one machine brews together and how long a partial batch may wait for more
+    private record Batching(int size, long waitMillis)
+    {
+        static Batching parse(String spec)
+        {
+            String[] parts = spec.split("/");
+            return new Batching(Integer.parseInt(parts[0]), parts.length > 1 ? Long.parseLong(parts[1]) : 0);
+        }
+
+        @Override
+        public String toString()
+        {
+            return size + "/" + waitMillis;
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        double meanGapSeconds = args.length > 0 ? Double.parseDouble(args[0]) : 55;
+        int hours = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+        List<Batching> batchings = new ArrayList<>();
+        for (String spec : (args.length > 3 ? args[3] : "1/0,4/0,4/5000").split(","))
+        {
+            batchings.add(Batching.parse(spec));
+        }
+        double peakFactor = args.length > 4 ? Double.parseDouble(args[4]) : 3;
+
+        simulate(generateDay(meanGapSeconds, hours, seed), meanGapSeconds, hours, batchings);
+        System.out.println();
+        simulate(generateDay(meanGapSeconds / peakFactor, hours, seed), meanGapSeconds / peakFactor, hours, batchings);
+    }
+
+    private static void simulate(List<Arrival> day, double meanGapSeconds, int hours, List<Batching> batchings)
+    {
+        System.out.printf("%d orders over %d hours, one every %.0f s on average, coffee load %.0f%% of the machines at one drink per brew%n",
+                day.size(), hours, meanGapSeconds, 100 * coffeeLoad(day, hours));
+        System.out.printf("%-12s %-7s %-7s %6s %9s %9s %9s %9s %9s%n", "policy", "batch", "orders", "count", "mean s", "p50 s", "p99 s", "max s", "drinks/h");
+
+        long drinks = day.stream().mapToLong(arrival -> arrival.teas() + arrival.coffees()).sum();
+        for (Batching batching : batchings)
+        {
+            for (String policy : policies)
+            {
+                Result result = run(policy, batching, day);
+                print(policy, batching, "small", result.small(), "");
+                print(policy, batching, "office", result.office(), "");
+                print(policy, batching, "all", concat(result.small(), result.office()),
+                        String.format("%9.0f", drinks * 3_600_000.0 / Math.max(1, result.lastReadyMillis())));
+            }
+        }
+    }
+
+    // Poisson arrivals; small orders are one or two drinks, office orders 10-20 coffees
+    private static List<Arrival> generateDay(double meanGapSeconds, int hours, long seed)
+    {
+        Random random = new Random(seed);
+        List<Arrival> day = new ArrayList<>();
+        long end = hours * 3_600_000L;
+        double at = 0;
+        while (true)
+        {
+            at += -Math.log(1 - random.nextDouble()) * meanGapSeconds * 1000;
+            if (at >= end) return day;
+            if (random.nextDouble() < officeShare)
+            {
+                day.add(new Arrival((long) at, 0, 10 + random.nextInt(11)));
+            }
+            else
+            {
+                int drinks = 1 + random.nextInt(2);
+                int teas = 0;
+                for (int i = 0; i < drinks; i++)
+                {
+                    if (random.nextBoolean()) teas++;
+                }
+                day.add(new Arrival((long) at, teas, drinks - teas));
+            }
+        }
+    }
+
+    private static double coffeeLoad(List<Arrival> day, int hours)
+    {
+        long coffees = day.stream().mapToLong(Arrival::coffees).sum();
+        return coffees * (double) DrinkType.COFFEE.getDefaultBrewTime() / (DrinkType.COFFEE.getDefaultCapacity() * hours * 3_600_000.0);
+    }
+
+    // Completion times in millis of the small orders and of the office orders, and when the last order was ready
+    private record Result(long[] small, long[] office, long lastReadyMillis) {}
+
+    private static Result run(String policy, Batching batching, List<Arrival> day)
+    {
+        VirtualClock clock = new VirtualClock(0);
+        CafeConfig config = new CafeConfig()
+                .setClock(clock)
+                .setLogPath(null)
+                .setJournalDir(null)
+                .setLogConsoleMillis(-1)
+                .setMetricsPort(0)
+                .setWaitingDrinkLimit(0) // Every order of the day gets in, however long the queue
+                .setScheduling(policy)
+                .setBatchWaitMillis(batching.waitMillis());
+        for (DrinkType type : DrinkType.values())
+        {
+            config.setBrewTime(type, type.getDefaultBrewTime()).setCapacity(type, type.getDefaultCapacity()).setBatchSize(type, batching.size());
+        }
+
+        BenchmarkSupport.muteConsole();
+        Cafe cafe = new Cafe(config);
+        List<Long> small = new ArrayList<>();
+        List<Long> office = new ArrayList<>();
+        long[] lastReady = {0};
+        try
+        {
+            for (int i = 0; i < day.size(); i++)
+            {
+                Arrival arrival = day.get(i);
+                int clientID = 10_000 + i;
+                clock.schedule(() -> {
+                    Map<DrinkType, Integer> drinks = new EnumMap<>(DrinkType.class);
+                    drinks.put(DrinkType.TEA, arrival.teas());
+                    drinks.put(DrinkType.COFFEE, arrival.coffees());
+                    cafe.addOrder(clientID, "Customer" + clientID, drinks);
+                    cafe.getActiveOrder(clientID).whenReady().thenRun(() -> {
+                        (arrival.isOffice() ? office : small).add(clock.currentTimeMillis() - arrival.atMillis());
+                        lastReady[0] = Math.max(lastReady[0], clock.currentTimeMillis());
+                    });
+                }, arrival.atMillis());
+            }
+            clock.runUntilIdle();
+        }
+        finally
+        {
+            cafe.shutdownCafe();
+            BenchmarkSupport.restoreConsole();
+        }
+        return new Result(toSortedArray(small), toSortedArray(office), lastReady[0]);
+    }
+
+    private static long[] toSortedArray(List<Long> values)
+    {
+        long[] sorted = values.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static long[] concat(long[] first, long[] second)
+    {
+        long[] all = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, all, first.length, second.length);
+        Arrays.sort(all);
+        return all;
+    }
+
+    private static void print(String policy, Batching batching, String orders, long[] sortedMillis, String extra)
+    {
+        if (sortedMillis.length == 0) return;
+        double mean = Arrays.stream(sortedMillis).average().orElse(0);
+        System.out.printf("%-12s %-7s %-7s %6d %9.1f %9.1f %9.1f %9.1f %s%n", policy, batching, orders, sortedMillis.length, mean / 1000,
+                percentile(sortedMillis, 50) / 1000.0, percentile(sortedMillis, 99) / 1000.0, sortedMillis[sortedMillis.length - 1] / 1000.0, extra);
+    }
+
+    private static long percentile(long[] sorted, double percent)
+    {
+        int index = (int) Math.ceil(percent / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
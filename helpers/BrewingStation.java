@@ -0,0 +1,73 @@
+package helpers;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The brewing machines of one drink type.
+// Slots are taken and released atomically, so two threads can never both take the last free machine,
+// and the number of machines can be changed while the cafe is running.
+
+public class BrewingStation
+{
+    private final DrinkType type;
+    private final AtomicInteger inUse = new AtomicInteger(0);
+    private volatile int capacity;
+
+    public BrewingStation(DrinkType type, int capacity)
+    {
+        this.type = type;
+        this.capacity = capacity;
+    }
+
+    // Takes a machine if one is free
+    public boolean tryAcquire()
+    {
+        while (true)
+        {
+            int used = inUse.get();
+            if (used >= capacity)
+            {
+                return false;
+            }
+            if (inUse.compareAndSet(used, used + 1))
+            {
+                return true;
+            }
+        }
+    }
+
+    // Gives a machine back once its drink is done or discarded
+    public void release()
+    {
+        inUse.decrementAndGet();
+    }
+
+    public boolean hasFreeSlot()
+    {
+        return inUse.get() < capacity;
+    }
+
+    // Shrinking does not stop running brews; the station simply hands out no new slots until below the new capacity
+    public void setCapacity(int capacity)
+    {
+        if (capacity < 0)
+        {
+            throw new IllegalArgumentException("Capacity for " + type.getKey() + " cannot be negative");
+        }
+        this.capacity = capacity;
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public int getInUse()
+    {
+        return inUse.get();
+    }
+
+    public DrinkType getType()
+    {
+        return type;
+    }
+}
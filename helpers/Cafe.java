@@ -1,247 +1,652 @@
 package helpers;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
-
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.time.LocalDateTime;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 // The central class managing cafe operations.
 // Handles drink preparation, order management, and logging system state.
+// Final because the constructor starts the dispatcher thread on this and replays the journal through it:
+// a subclass would have them running before its own fields were set.
 
-public class Cafe
+public final class Cafe
 {
-    private BufferedWriter logWriter;
-    private final ExecutorService brewingPool = Executors.newFixedThreadPool(4); // Max 4 concurrent brewing tasks
-    private final HashMap<String,String> customers; // HashMap to keep track of customers and their state (IDLE, WAITING)
+    private final CafeConfig config;
+    private final CafeLogger logger; // Background writer for the cafe log
+    private final CafeClock clock; // Time source; brews are timed events on it rather than sleeping threads
+    private final CafeCounters counters = new CafeCounters(); // Cafe-wide totals kept in step with every order and customer change
+    private final CustomerRegistry customers = new CustomerRegistry(counters); // Customers in the cafe by session ID and their state (IDLE, WAITING)
+    private final CafeMetrics metrics; // Latency histograms, and the listener of every order
+    private final MetricsEndpoint metricsEndpoint; // null unless a metrics port is configured
+    private final OrderJournal journal; // Makes the active orders survive a restart, null when persistence is off
+    private final OrderSubscriptions subscriptions; // Drink events streamed to customers who asked for them
+    private final AtomicLong nextOrderId = new AtomicLong(1);
     private final Map<Integer,Order> activeOrders = new ConcurrentHashMap<>(); // <clientID, Order>
-    private final BlockingQueue<Order> orderQueue = new LinkedBlockingQueue<>(); // Queue for appropriate serving approach
-    private static final int teaBrewTime = 30000; //30 seconds to brew tea
-    private static final int coffeeBrewTime = 45000; //45 seconds to brew coffee
+    private final ReentrantLock ordersLock = new ReentrantLock(); // Serialises order placement and cancellation
+    private final Map<String, List<Order>> unclaimedOrders = new HashMap<>(); // Recovered orders by customer name until they reconnect, guarded by ordersLock
+
+    // Every order reports its drinks to the metrics (and through them the counters), the journal and the subscriptions
+    private final OrderListener orderEvents = new OrderListener()
+    {
+        @Override
+        public void onDrinksChanged(Order order, DrinkType type, DrinkState from, DrinkState to, int count)
+        {
+            metrics.onDrinksChanged(order, type, from, to, count);
+            if (journal != null) journal.onDrinksChanged(order, type, from, to, count);
+        }
+
+        @Override
+        public void onDrinkLeftState(Order order, DrinkType type, DrinkState from, DrinkState to, long millisInState)
+        {
+            metrics.onDrinkLeftState(order, type, from, to, millisInState);
+        }
+
+        @Override
+        public void onDrinkMoved(Order order, DrinkType type, int drinkID, DrinkState from, DrinkState to, Order source)
+        {
+            subscriptions.onDrinkMoved(order, type, drinkID, from, to, source);
+        }
+    };
+
+    // Knows every drink in the waiting area and picks which one gets the next free machine, guarded by dispatchLock.
+    // Cancelled drinks are handed over in the same order.
+    private final SchedulingPolicy policy;
+    private final ReentrantLock dispatchLock = new ReentrantLock();
+    private final Condition dispatchSignal = dispatchLock.newCondition();
+    private boolean dispatchRequested = false; // Set under dispatchLock when a new order or a free slot should be looked at
+    private final Thread dispatcher; // Single thread that moves waiting drinks into brewing slots, null on a simulated clock
+    private final Set<Brew> activeBrews = ConcurrentHashMap.newKeySet(); // Drinks currently on the machines
+    private final Map<DrinkType, Set<Batch>> runningBatches = new EnumMap<>(DrinkType.class); // Batches holding a machine, for ready-time estimates
+    private final Set<Order> unfinishedOrders = new HashSet<>(); // Orders with drinks waiting or brewing, whose ETA can still move, guarded by dispatchLock
+    private final long[] partialBatchSince = new long[DrinkType.values().length]; // When a partial batch started waiting for company, -1 if none, guarded by dispatchLock
+
+    // Brewing machines per drink type; the capacity comes from the config and can be changed at runtime
+    private final Map<DrinkType, BrewingStation> stations = new EnumMap<>(DrinkType.class);
+
+    public Cafe()
+    {
+        this(new CafeConfig());
+    }
+
+    public Cafe(CafeConfig config)
+    {
+        this.config = config;
+        this.clock = config.getClock() != null ? config.getClock() : new SystemClock(config.getClockThreads());
+        this.logger = new CafeLogger(config);
+        for (DrinkType type : DrinkType.values())
+        {
+            stations.put(type, new BrewingStation(type, config.getCapacity(type)));
+            runningBatches.put(type, ConcurrentHashMap.newKeySet());
+            partialBatchSince[type.ordinal()] = -1;
+        }
+        policy = SchedulingPolicy.create(config.getScheduling(), config);
+        metrics = new CafeMetrics(counters, stations);
+        subscriptions = new OrderSubscriptions(config.getSubscriptionBacklog());
+        metricsEndpoint = config.getMetricsPort() > 0 ? openMetricsEndpoint(config.getMetricsPort()) : null;
+        journal = config.getJournalDir() != null && !config.getJournalDir().isEmpty() ? openJournal(config.getJournalDir()) : null;
+        // Simulated time has no background threads: dispatching happens on whichever thread caused it
+        dispatcher = clock.isSimulated() ? null : CafeThreads.startDaemon("cafe-dispatcher", this::dispatchOrders);
+        wakeDispatcher(); // Recovered orders may have drinks waiting
+        if (!unclaimedOrders.isEmpty() && config.getUnclaimedOrderMillis() > 0)
+        {
+            clock.schedule(this::expireUnclaimedOrders, config.getUnclaimedOrderMillis());
+        }
+    }
 
-    // These track the brewing slots to ensure no more than 2 teas or 2 coffees are brewed concurrently.
-    private static final AtomicInteger brewingTeas = new AtomicInteger(0);
-    private static final AtomicInteger brewingCoffees = new AtomicInteger(0);
+    private MetricsEndpoint openMetricsEndpoint(int port)
+    {
+        try
+        {
+            return new MetricsEndpoint(port, metrics);
+        } catch (IOException e) {
+            System.out.println("Metrics endpoint not started: " + e.getMessage());
+            return null;
+        }
+    }
 
-    public Cafe(HashMap<String,String> customers)
+    // Restores the orders of the last run, then starts logging new changes
+    private OrderJournal openJournal(String dir)
     {
-        this.customers = customers;
-        // Initialize the log file
+        OrderJournal opened = new OrderJournal(Path.of(dir), config.getJournalSyncMillis(), config.getJournalSegmentBytes());
         try
         {
-            logWriter = new BufferedWriter(new FileWriter("cafe_logs.json", true)); // Append mode
-        }catch (IOException e) {
-            logWriter = null;
-            System.out.println("Couldn't create log file");
+            long start = System.nanoTime();
+            Collection<OrderJournal.OrderImage> recovered = opened.recover();
+            Map<DrinkType, Integer> drinks = new EnumMap<>(DrinkType.class); // Reused, orders only read it while being built
+            for (OrderJournal.OrderImage image : recovered)
+            {
+                restoreOrder(image, drinks);
+            }
+            nextOrderId.set(opened.getNextOrderId());
+            opened.open();
+            if (!recovered.isEmpty())
+            {
+                System.out.println("Recovered " + recovered.size() + " order(s) from the journal in " + (System.nanoTime() - start) / 1_000_000 + " ms.");
+            }
+            return opened;
+        } catch (IOException e) {
+            System.out.println("Order journal not available, orders will not survive a restart: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Rebuilds one recovered order and queues its waiting drinks; it is handed back when its customer reconnects
+    private void restoreOrder(OrderJournal.OrderImage image, Map<DrinkType, Integer> drinks)
+    {
+        for (DrinkType type : DrinkType.values()) {
+            drinks.put(type, image.getCount(type, DrinkState.WAITING) + image.getCount(type, DrinkState.TRAY));
+        }
+        Order order = new Order(image.getId(), image.getCustomerName(), drinks, orderEvents, clock);
+        dispatchLock.lock();
+        try {
+            for (DrinkType type : DrinkType.values()) {
+                for (int drinkID = 0; drinkID < image.getCount(type, DrinkState.TRAY); drinkID++) {
+                    order.updateState(type, drinkID, DrinkState.TRAY);
+                }
+                policy.enqueue(order, type, image.getCount(type, DrinkState.WAITING));
+            }
+            updateEstimate(order);
+        } finally {
+            dispatchLock.unlock();
+        }
+        unclaimedOrders.computeIfAbsent(image.getCustomerName(), name -> new ArrayList<>()).add(order);
+    }
+
+    // Cancels the recovered orders nobody came back for within the grace period, so their drinks go to waiting customers
+    // and they stop holding machines and counting against the admission limits
+    private void expireUnclaimedOrders()
+    {
+        List<Order> expired = new ArrayList<>();
+        ordersLock.lock();
+        try {
+            unclaimedOrders.values().forEach(expired::addAll);
+            unclaimedOrders.clear();
+        } finally {
+            ordersLock.unlock();
+        }
+        if (!expired.isEmpty()) {
+            System.out.println(expired.size() + " recovered order(s) were not reclaimed in time and are cancelled.");
+        }
+        for (Order order : expired) {
+            cancelOrder(order);
+        }
+    }
+
+    // A customer coming back after a restart gets the order left under their name, null if there is none
+    public Order reclaimOrder(int ID, String customerName)
+    {
+        ordersLock.lock();
+        try {
+            List<Order> orders = unclaimedOrders.get(customerName);
+            if (orders == null || activeOrders.containsKey(ID)) {
+                return null;
+            }
+            Order order = orders.remove(0);
+            if (orders.isEmpty()) {
+                unclaimedOrders.remove(customerName);
+            }
+            activeOrders.put(ID, order);
+            return order;
+        } finally {
+            ordersLock.unlock();
         }
     }
 
     //Method that checks if customer already has a pending order before adding
-    public void addOrder(String clientID, String customerName, int teas, int coffees) {
-        int clientIdInt = Integer.parseInt(clientID);
+    public void addOrder(int clientID, String customerName, int teas, int coffees) {
+        Map<DrinkType, Integer> drinks = new EnumMap<>(DrinkType.class);
+        drinks.put(DrinkType.TEA, teas);
+        drinks.put(DrinkType.COFFEE, coffees);
+        addOrder(clientID, customerName, drinks);
+    }
 
-        synchronized (activeOrders) {
-            Order order = activeOrders.get(clientIdInt);
+    //Same as above for any mix of drink types.
+    //Throws OrderRejectedException, with nothing taken on, if the order is over one of the configured limits
+    public void addOrder(int clientID, String customerName, Map<DrinkType, Integer> drinks) {
+        ordersLock.lock();
+        try {
+            Order order = activeOrders.get(clientID);
+            admit(order, drinks);
 
             if (order != null) {
                 // Merge new items into the existing order
-                order.AddOnTea(teas);
-                order.AddOnCoffee(coffees);
-                System.out.println("Extra ordered by " + customerName + ": " + teas + " tea(s), " + coffees + " coffee(s).");
+                order.getLock().lock();
+                try {
+                    for (Map.Entry<DrinkType, Integer> drink : drinks.entrySet()) {
+                        order.addDrinks(drink.getKey(), drink.getValue());
+                    }
+                } finally {
+                    order.getLock().unlock();
+                }
+                System.out.println("Extra ordered by " + customerName + ": " + describeDrinks(drinks) + ".");
 
 
             } else {
                 // Create a new order
-                order = new Order(customerName, teas, coffees);
-                activeOrders.put(clientIdInt, order);
-                System.out.println("New order place by " + customerName + ": " + teas + " tea(s), " + coffees + " coffee(s).");
+                long orderId = nextOrderId.getAndIncrement();
+                if (journal != null) {
+                    journal.orderOpened(orderId, customerName); // Before the drinks, which the journal logs against this id
+                }
+                order = new Order(orderId, customerName, drinks, orderEvents, clock);
+                activeOrders.put(clientID, order);
+                System.out.println("New order place by " + customerName + ": " + describeDrinks(drinks) + ".");
             }
 
-            orderQueue.add(order); //Add order to the queue
+            //Hand the new drinks to the scheduling policy
+            dispatchLock.lock();
+            try {
+                for (Map.Entry<DrinkType, Integer> drink : drinks.entrySet()) {
+                    policy.enqueue(order, drink.getKey(), drink.getValue());
+                }
+                updateEstimate(order);
+            } finally {
+                dispatchLock.unlock();
+            }
+        } finally {
+            ordersLock.unlock();
         }
 
-        processOrders(); //Start processing
+        wakeDispatcher(); //Start processing
         cafeLogState(); //Output log status
 
+        if (journal != null && config.isJournalSyncOnReply()) {
+            journal.awaitDurable(); // The customer is only told about the order once it would survive a restart
+        }
+
     }
 
-    //Start threads for orders in queue
-    private void processOrders()
-    {
-        new Thread(()->{
-            try
-            {
-                while(true)
-                {
-                    //Wait and take next order in the queue
-                    Order order = orderQueue.take();
-                    processOrderDrinks(order);
+    // Admission control, called under ordersLock so two orders can't both squeeze into the last room.
+    // Only reads counters: the order's drink counts and the cafe-wide waiting totals.
+    private void admit(Order existing, Map<DrinkType, Integer> drinks) {
+        long requested = 0;
+        for (int count : drinks.values()) {
+            if (count < 0) {
+                throw reject(OrderRejectedException.Reason.INVALID, "You can't order a negative number of drinks.", 0);
+            }
+            requested += count;
+        }
+
+        int orderLimit = config.getOrderDrinkLimit();
+        if (orderLimit > 0 && requested > orderLimit) {
+            throw reject(OrderRejectedException.Reason.ORDER_TOO_LARGE, "Sorry, we take at most " + orderLimit + " drinks per order.", 0);
+        }
+
+        int customerLimit = config.getCustomerDrinkLimit();
+        if (customerLimit > 0) {
+            long outstanding = 0;
+            if (existing != null) {
+                for (DrinkType type : DrinkType.values()) {
+                    outstanding += existing.getDrinkCount(type);
                 }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
             }
-        }).start();
+            if (outstanding + requested > customerLimit) {
+                throw reject(OrderRejectedException.Reason.CUSTOMER_LIMIT,
+                        "Sorry, you can have at most " + customerLimit + " drinks on order. Please collect first.", 0);
+            }
+        }
+
+        int waitingLimit = config.getWaitingDrinkLimit();
+        if (waitingLimit > 0) {
+            long waiting = 0;
+            for (DrinkType type : DrinkType.values()) {
+                waiting += counters.getDrinks(type, DrinkState.WAITING);
+            }
+            if (waiting + requested > waitingLimit) {
+                long retryAfterMillis = drainMillis(waiting + requested - waitingLimit);
+                throw reject(OrderRejectedException.Reason.BUSY,
+                        "We're at capacity right now. Please order again in " + (retryAfterMillis + 999) / 1000 + " second(s).", retryAfterMillis);
+            }
+        }
+    }
+
+    private OrderRejectedException reject(OrderRejectedException.Reason reason, String message, long retryAfterMillis) {
+        metrics.recordRejection(reason);
+        return new OrderRejectedException(reason, message, retryAfterMillis);
+    }
+
+    // Rough time for all machines running flat out to take this many drinks out of the waiting area, at least a second
+    private long drainMillis(long drinks) {
+        double drinksPerMilli = 0;
+        for (DrinkType type : DrinkType.values()) {
+            drinksPerMilli += (double) stations.get(type).getCapacity() * Math.max(1, config.getBatchSize(type)) / Math.max(1, config.getBrewTime(type));
+        }
+        if (drinksPerMilli <= 0) {
+            return 60_000; // No machines at the moment, nothing to base a guess on
+        }
+        return Math.max(1000, (long) Math.ceil(drinks / drinksPerMilli));
     }
 
-    //Method to set "waiting" drinks to brew if slot is available
-    private void processOrderDrinks(Order order) {
-        while (order.countTeasByState("WAITING") > 0 || order.countCoffeesByState("WAITING") > 0) {
-            if (!activeOrders.containsValue(order)) {
-                // Stop processing if the order has been cancelled
-                break;
+    // e.g. "1 tea(s), 2 coffee(s)"
+    private static String describeDrinks(Map<DrinkType, Integer> drinks) {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<DrinkType, Integer> drink : drinks.entrySet()) {
+            if (text.length() > 0) {
+                text.append(", ");
             }
+            text.append(drink.getValue()).append(" ").append(drink.getKey().getKey()).append("(s)");
+        }
+        return text.toString();
+    }
+
+    //Wake the dispatcher after a new order or a freed brewing slot
+    private void wakeDispatcher()
+    {
+        dispatchLock.lock();
+        try {
+            if (dispatcher == null) {
+                dispatchRound(); // Simulated time: dispatch right away so no virtual time passes
+                return;
+            }
+            dispatchRequested = true;
+            dispatchSignal.signal();
+        } finally {
+            dispatchLock.unlock();
+        }
+    }
 
-            // Process teas
-            if (brewingTeas.get() < 2 && order.countTeasByState("WAITING") > 0) {
-                String teaID;
-                synchronized (order) {
-                    teaID = order.getNextWaitingTea();
-                    if (teaID != null) {
-                        brewingTeas.incrementAndGet();
-                        order.updateTeaState(teaID, "BREWING");
-                        cafeLogState();
+    //Dispatcher loop: sleeps until woken, then hands free brewing slots to queued orders
+    private void dispatchOrders()
+    {
+        try
+        {
+            while(true)
+            {
+                dispatchLock.lock();
+                try {
+                    while (!dispatchRequested) {
+                        dispatchSignal.await();
                     }
+                    dispatchRequested = false;
+                    dispatchRound();
+                } finally {
+                    dispatchLock.unlock();
                 }
-                if (teaID != null) {
-                    startBrewingDrink(order, teaID, "Tea", teaBrewTime);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //Fills free brewing slots with batches of drinks in the order the scheduling policy picks, called with dispatchLock held
+    private void dispatchRound()
+    {
+        for (DrinkType type : DrinkType.values()) {
+            BrewingStation station = stations.get(type);
+            while (station.hasFreeSlot() && policy.next(type) != null && isBatchDue(type)) {
+                if (!startBatch(type)) {
+                    break; // The slot went away with a capacity change
                 }
             }
+        }
+    }
 
-            // Process coffees
-            if (brewingCoffees.get() < 2 && order.countCoffeesByState("WAITING") > 0) {
-                String coffeeID;
-                synchronized (order) {
-                    coffeeID = order.getNextWaitingCoffee();
-                    if (coffeeID != null) {
-                        brewingCoffees.incrementAndGet();
-                        order.updateCoffeeState(coffeeID, "BREWING");
-                        cafeLogState();
+    //Whether a slot should start on the waiting drinks of a type now.
+    //A full batch always goes; a partial one goes right away while another slot is free as well,
+    //but the last free slot holds it for up to batchWaitMillis in case more drinks arrive to fill it.
+    private boolean isBatchDue(DrinkType type) {
+        int batchSize = config.getBatchSize(type);
+        if (batchSize <= 1 || config.getBatchWaitMillis() <= 0
+                || counters.getDrinks(type, DrinkState.WAITING) >= batchSize
+                || stations.get(type).getCapacity() - stations.get(type).getInUse() > 1) {
+            return true;
+        }
+        long now = clock.currentTimeMillis();
+        int index = type.ordinal();
+        if (partialBatchSince[index] < 0) {
+            partialBatchSince[index] = now;
+            clock.schedule(this::wakeDispatcher, config.getBatchWaitMillis()); // Dispatch whatever has gathered by then
+            return false;
+        }
+        return now - partialBatchSince[index] >= config.getBatchWaitMillis();
+    }
+
+    //Takes a slot and puts up to a batch of "waiting" drinks of a type on it, possibly from several orders
+    //Returns false if no slot was free after all
+    private boolean startBatch(DrinkType type) {
+        Batch batch = null;
+        Order order;
+        while ((batch == null || batch.drinks.size() < config.getBatchSize(type)) && (order = policy.next(type)) != null) {
+            order.getLock().lock();
+            try {
+                int drinkID = order.getNextWaiting(type);
+                if (drinkID < 0) {
+                    policy.remove(order, type); // Nothing of this type left waiting for this order
+                    continue;
+                }
+                if (batch == null) {
+                    if (!stations.get(type).tryAcquire()) {
+                        return false;
                     }
+                    batch = new Batch(type);
                 }
-                if (coffeeID != null) {
-                    startBrewingDrink(order, coffeeID, "Coffee", coffeeBrewTime);
+                order.updateState(type, drinkID, DrinkState.BREWING);
+                policy.served(order, type);
+                cafeLogState();
+                Brew brew = new Brew(batch, order, drinkID);
+                batch.drinks.add(brew);
+                activeBrews.add(brew);
+            } finally {
+                order.getLock().unlock();
+            }
+        }
+        if (batch != null) {
+            partialBatchSince[type.ordinal()] = -1;
+            batch.remaining.set(batch.drinks.size());
+            batch.finishMillis = clock.currentTimeMillis() + config.getBrewTime(type);
+            runningBatches.get(type).add(batch);
+            clock.schedule(batch, config.getBrewTime(type));
+            Order last = null;
+            for (Brew brew : batch.drinks) {
+                if (brew.order != last) {
+                    last = brew.order;
+                    updateEstimate(last); // Its drinks now finish with the batch
                 }
             }
+        }
+        return true;
+    }
 
-            // Add a short pause to avoid busy-waiting
-            try {
-                Thread.sleep(100); // Small delay to allow threads to progress
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
+    // Stores the order's ready estimate on it, so status polls only read it, and keeps track of orders whose estimate can
+    // still move. Called with dispatchLock held whenever the order's drinks join the queue, go on a machine or come off one.
+    private void updateEstimate(Order order) {
+        storeEstimate(order, estimateReadyMillis(order, clock.currentTimeMillis(), new Machines[DrinkType.values().length], null));
+    }
+
+    // Estimates every unfinished order again after a change that moves them all: a cancellation or a capacity change.
+    // The machines are worked out once per type and every order's place comes from one pass over the policy's queue,
+    // rather than a scan per order, so this grows with the orders waiting instead of with their square.
+    // Called with dispatchLock held.
+    private void updateAllEstimates() {
+        long now = clock.currentTimeMillis();
+        Machines[] machines = new Machines[DrinkType.values().length];
+        Map<Order, long[]> ahead = new HashMap<>();
+        for (DrinkType type : DrinkType.values()) {
+            int index = type.ordinal();
+            policy.forEachDrinksAhead(type, counters.getDrinks(type, DrinkState.WAITING),
+                    (order, drinks) -> ahead.computeIfAbsent(order, key -> new long[machines.length])[index] = drinks);
+        }
+        long[] none = new long[machines.length];
+        for (Order order : new ArrayList<>(unfinishedOrders)) {
+            storeEstimate(order, estimateReadyMillis(order, now, machines, ahead.getOrDefault(order, none)));
+        }
+    }
+
+    private void storeEstimate(Order order, long readyMillis) {
+        order.setEstimatedReadyMillis(readyMillis);
+        if (order.isReady()) {
+            unfinishedOrders.remove(order);
+        } else {
+            unfinishedOrders.add(order);
+        }
+    }
+
+    // When each machine of a type can next take a batch, soonest first: now if free, else when its batch is done.
+    // After shrinking there can be more batches than machines; the surplus ones finish before a machine is free,
+    // so the machines are the entries from first on. lastBatchDone is when everything brewing is out, now if nothing is.
+    private record Machines(long[] freeAt, int first, int capacity, long lastBatchDone) {}
+
+    private Machines machines(DrinkType type, long now) {
+        int capacity = stations.get(type).getCapacity();
+        long[] freeAt = new long[capacity + 4];
+        int machines = 0;
+        for (Batch batch : runningBatches.get(type)) {
+            if (machines == freeAt.length) {
+                freeAt = Arrays.copyOf(freeAt, machines * 2);
             }
+            freeAt[machines++] = Math.max(now, batch.finishMillis);
+        }
+        Arrays.sort(freeAt, 0, machines);
+        long lastBatchDone = machines > 0 ? freeAt[machines - 1] : now;
+        int idle = capacity - machines;
+        if (idle > 0) {
+            freeAt = Arrays.copyOf(freeAt, capacity);
+            System.arraycopy(freeAt, 0, freeAt, idle, machines);
+            Arrays.fill(freeAt, 0, idle, now);
+            machines = capacity;
         }
+        return new Machines(freeAt, machines - capacity, capacity, lastBatchDone);
     }
 
-    private void startBrewingDrink(Order order, String drinkID, String drinkType, int brewTime) {
-        brewingPool.submit(() -> {
-            try {
-                // Simulate brewing
-                Thread.sleep(brewTime);
-
-                // Update drink state to TRAY
-                synchronized (order) {
-                    if ("Tea".equals(drinkType)) {
-                        order.updateTeaState(drinkID, "TRAY");
-                        brewingTeas.decrementAndGet();
-                    } else if ("Coffee".equals(drinkType)) {
-                        order.updateCoffeeState(drinkID, "TRAY");
-                        brewingCoffees.decrementAndGet();
-                    }
+    // When the order's current drinks should all be on the tray, in millis on the cafe clock: now if none are waiting
+    // or brewing, -1 if no machine is left for them. Worked out per drink type from the order's place in the scheduling order,
+    // the free machines and the batches still brewing, so it costs the same however many orders there are.
+    // machines holds the types' machines worked out so far, filled in as needed; ahead is each type's drinksAhead
+    // when the caller already has it, null to ask the policy.
+    // Assumes full batches and no new orders jumping ahead; called with dispatchLock held, but no order's lock.
+    private long estimateReadyMillis(Order order, long now, Machines[] machines, long[] ahead)
+    {
+        long ready = now;
+        for (DrinkType type : DrinkType.values()) {
+            int waiting = order.countByState(type, DrinkState.WAITING);
+            int brewing = order.countByState(type, DrinkState.BREWING);
+            if (waiting == 0 && brewing == 0) {
+                continue;
+            }
 
-                    order.markReady(); // Notify if the entire order is ready
-                    cafeLogState();
-                }
+            int index = type.ordinal();
+            if (machines[index] == null) {
+                machines[index] = machines(type, now);
+            }
+            Machines free = machines[index];
+            long typeReady = brewing > 0 ? free.lastBatchDone() : now; // The order's brewing drinks are done by the last batch
 
-                synchronized (orderQueue) {
-                    // Notify processOrders that a brewing slot is free
-                    orderQueue.notify();
+            if (waiting > 0) {
+                int capacity = free.capacity();
+                if (capacity == 0) {
+                    return -1;
                 }
-
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt(); // Handle thread interruption
+                long total = counters.getDrinks(type, DrinkState.WAITING);
+                long place = ahead != null ? ahead[index] : policy.drinksAhead(order, type, total);
+                long drinks = Math.max(waiting, Math.min(place, total));
+
+                // The batch holding the order's last drink goes to the machines in turn, each lap taking one brewing time
+                int batchSize = Math.max(1, config.getBatchSize(type));
+                long batches = (drinks + batchSize - 1) / batchSize;
+                long laps = (batches - 1) / capacity;
+                int machine = (int) ((batches - 1) % capacity);
+                typeReady = Math.max(typeReady, free.freeAt()[free.first() + machine] + (laps + 1) * config.getBrewTime(type));
             }
-        });
+            ready = Math.max(ready, typeReady);
+        }
+        return ready;
+    }
+
+    // Change the number of machines for a drink type while the cafe is open
+    public void setBrewingCapacity(DrinkType type, int slots)
+    {
+        stations.get(type).setCapacity(slots);
+        System.out.println("Brewing capacity for " + type.getKey() + " set to " + slots + ".");
+        wakeDispatcher(); // New machines can start on waiting drinks right away
+        dispatchLock.lock();
+        try {
+            updateAllEstimates();
+        } finally {
+            dispatchLock.unlock();
+        }
+    }
+
+    public BrewingStation getStation(DrinkType type)
+    {
+        return stations.get(type);
+    }
+
+    public CafeMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    // Where customers subscribe to drink events instead of polling the order status
+    public OrderSubscriptions getSubscriptions()
+    {
+        return subscriptions;
+    }
+
+    // Current counts of this cafe
+    public CafeSnapshot snapshot()
+    {
+        return counters.snapshot(clock.currentTimeMillis());
     }
 
     // Logs the current cafe state to both the terminal and a JSON file for persistent record-keeping.
     // JSON entries are timestamped
     public void cafeLogState() {
+        // Hand the snapshot to the background writer for the console and the JSON log
+        logger.log(snapshot());
+    }
 
-        int totalWaitingTeas = 0;
-        int totalWaitingCoffees = 0;
-        int totalBrewingTeas = brewingTeas.get(); // Brewing slot tracking remains atomic
-        int totalBrewingCoffees = brewingCoffees.get(); // Brewing slot tracking remains atomic
-        int totalTrayTeas = 0;
-        int totalTrayCoffees = 0;
-
-        // Iterate through activeOrders to calculate states
-        for (Order order : activeOrders.values()) {
-            totalWaitingTeas += order.countTeasByState("WAITING");
-            totalWaitingCoffees += order.countCoffeesByState("WAITING");
-            totalTrayTeas += order.countTeasByState("TRAY");
-            totalTrayCoffees += order.countCoffeesByState("TRAY");
-        }
-
-        // Build and display the log
-        StringBuilder log = new StringBuilder();
-        log.append("--- Cafe Log ---\n");
-        log.append("Number of clients in the cafe: ").append(customers.size()).append("\n");
-
-        long clientsWaiting = customers.values().stream()
-                .filter("WAITING"::equals)
-                .count();
-        log.append("Number of clients waiting for orders: ").append(clientsWaiting).append("\n");
-
-        log.append("Items in waiting area: ").append(totalWaitingTeas).append(" tea(s), ")
-                .append(totalWaitingCoffees).append(" coffee(s)\n");
-        log.append("Items in brewing area: ").append(totalBrewingTeas).append(" tea(s), ")
-                .append(totalBrewingCoffees).append(" coffee(s)\n");
-        log.append("Items in tray area: ").append(totalTrayTeas).append(" tea(s), ")
-                .append(totalTrayCoffees).append(" coffee(s)\n");
-
-        System.out.println(log);
-
-        // Write JSON log if logWriter is initialized
-        if (logWriter != null) {
-            try {
-                JsonObject logEntry = new JsonObject();
-                logEntry.addProperty("timestamp", LocalDateTime.now().toString());
-                logEntry.addProperty("clients_in_cafe", customers.size());
-                logEntry.addProperty("clients_waiting", clientsWaiting);
-                logEntry.addProperty("waiting_teas", totalWaitingTeas);
-                logEntry.addProperty("waiting_coffees", totalWaitingCoffees);
-                logEntry.addProperty("brewing_teas", totalBrewingTeas);
-                logEntry.addProperty("brewing_coffees", totalBrewingCoffees);
-                logEntry.addProperty("tray_teas", totalTrayTeas);
-                logEntry.addProperty("tray_coffees", totalTrayCoffees);
+    // Customers in the cafe; new connections get their session ID here
+    public CustomerRegistry getCustomers()
+    {
+        return customers;
+    }
 
-                logWriter.write(new Gson().toJson(logEntry));
-                logWriter.newLine();
-                logWriter.flush();
-            } catch (IOException e) {
-                System.out.println("Failed to write log to JSON file: " + e.getMessage());
-            }
-        }
+    // Record a customer changing state (IDLE, WAITING)
+    public void setCustomerState(int clientID, CustomerState state)
+    {
+        customers.setState(clientID, state);
     }
 
-    //Shutdown brewing threads and close logWriter when cafe terminates
+    // Record a customer leaving the cafe
+    public void removeCustomer(int clientID)
+    {
+        customers.leave(clientID);
+    }
+
+    //Shutdown brewing threads and close the logger when cafe terminates
     public void shutdownCafe() {
-        try {
-            if (logWriter != null) {
-                logWriter.close();
-            }
-        } catch (IOException e) {
-            System.out.println("Failed to close log file: " + e.getMessage());
+        logger.close();
+        subscriptions.close();
+        if (metricsEndpoint != null) {
+            metricsEndpoint.close();
         }
-        brewingPool.shutdown();
+        if (journal != null) {
+            journal.close();
+        }
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+        }
+        clock.shutdown();
+    }
+
+    // Time source of this cafe
+    public CafeClock getClock()
+    {
+        return clock;
     }
 
     //Get order from active orders
@@ -251,15 +656,19 @@ public class Cafe
     }
 
     //Attempt collection
-    public boolean isCollectable(String clientID)
+    public boolean isCollectable(int ID)
     {
-        int ID = Integer.parseInt(clientID);
         Order order = activeOrders.get(ID);
 
         if (order != null && order.isReady())
         {
-            //Remove order from activeOrders
+            //Remove order from activeOrders and its drinks from the tray
             activeOrders.remove(ID);
+            order.collect();
+            if (journal != null) {
+                journal.orderClosed(order.getId());
+            }
+            metrics.recordOrderCollected(clock.currentTimeMillis() - order.getCreatedMillis());
 
             cafeLogState();
             return true;
@@ -268,129 +677,253 @@ public class Cafe
     }
 
     //Remove order for active orders and repurpose drinks to other customers if possible
-    public void cancelOrder(String clientID)
+    public void cancelOrder(int ID)
     {
 
-        int ID = Integer.parseInt(clientID);
         Order cancelledOrder;
 
         //Cancel and repurpose brewing or tray drinks
-        synchronized (activeOrders)
+        ordersLock.lock();
+        try
         {
             cancelledOrder = activeOrders.remove(ID);
+        } finally {
+            ordersLock.unlock();
         }
 
         if(cancelledOrder != null)
         {
-            System.out.println("Cancelling order for "+cancelledOrder.getCustomerName());
-
-            //Remove waiting drinks
-            int waitingTeasCount = cancelledOrder.countTeasByState("WAITING");
-            int waitingCoffeesCount = cancelledOrder.countCoffeesByState("WAITING");
-
-            System.out.println("Removed " + waitingTeasCount + " teas and " + waitingCoffeesCount + " coffees from waiting area for " + cancelledOrder.getCustomerName()+".");
-
-            // Handle drinks in the BREWING and TRAY areas
-            repurposeBrewingAndTrayDrinks(cancelledOrder);
+            cancelOrder(cancelledOrder);
         }
     }
-    //Check all teas and coffees for their status and then transfer brewing and tray drinks to someone else
-    private void repurposeBrewingAndTrayDrinks(Order cancelledOrder) {
-        // Repurpose teas
-        cancelledOrder.getTotalTeas().entrySet().removeIf(entry -> {
-            String teaID = entry.getKey();
-            String state = entry.getValue();
-            if ("BREWING".equals(state) || "TRAY".equals(state)) {
-                boolean isBrewing = "BREWING".equals(state);
-                boolean transferred = transferDrink(cancelledOrder, "Tea", isBrewing);
 
-                if (!transferred) {
-                    // If not repurposed, discard the drink
-                    if (isBrewing) {
-                        brewingTeas.decrementAndGet();
-                    }
-                    System.out.println(teaID + " from " + cancelledOrder.getCustomerName() + " discarded.");
+    //Cancel an order that is no longer in activeOrders (or never was, e.g. a recovered one nobody reclaimed)
+    private void cancelOrder(Order cancelledOrder)
+    {
+        System.out.println("Cancelling order for "+cancelledOrder.getCustomerName());
+
+        // The whole cancellation is applied as one batch while the dispatcher is held off
+        List<Order> notifyReady = new ArrayList<>();
+        dispatchLock.lock();
+        try {
+            cancelledOrder.getLock().lock();
+            try {
+                //Stop dispatching its waiting drinks and remove them
+                Map<DrinkType, Integer> waiting = new EnumMap<>(DrinkType.class);
+                for (DrinkType type : DrinkType.values()) {
+                    policy.remove(cancelledOrder, type);
+                    waiting.put(type, cancelledOrder.countByState(type, DrinkState.WAITING));
                 }
-                return true; // Remove the tea from cancelledOrder's map
-            }
-            return false; // Keep WAITING teas, if any
-        });
-
-        // Repurpose coffees
-        cancelledOrder.getTotalCoffees().entrySet().removeIf(entry -> {
-            String coffeeID = entry.getKey();
-            String state = entry.getValue();
-            if ("BREWING".equals(state) || "TRAY".equals(state)) {
-                boolean isBrewing = "BREWING".equals(state);
-                boolean transferred = transferDrink(cancelledOrder, "Coffee", isBrewing);
-
-                if (!transferred) {
-                    // If not repurposed, discard the drink
-                    if (isBrewing) {
-                        brewingCoffees.decrementAndGet();
-                    }
-                    System.out.println(coffeeID + " from " + cancelledOrder.getCustomerName() + " discarded.");
+                cancelledOrder.removeDrinksInState(DrinkState.WAITING);
+
+                System.out.println("Removed " + describeDrinks(waiting) + " from waiting area for " + cancelledOrder.getCustomerName()+".");
+
+                // Handle drinks in the BREWING and TRAY areas
+                for (DrinkType type : DrinkType.values()) {
+                    repurposeBrewingAndTrayDrinks(cancelledOrder, type, notifyReady);
                 }
-                return true; // Remove the coffee from cancelledOrder's map
+            } finally {
+                cancelledOrder.getLock().unlock();
             }
-            return false; // Keep WAITING coffees, if any
-        });
+            // Its drinks no longer hold up the orders behind it, and recipients got some of them
+            unfinishedOrders.remove(cancelledOrder);
+            updateAllEstimates();
+        } finally {
+            dispatchLock.unlock();
+        }
+        if (journal != null) {
+            journal.orderClosed(cancelledOrder.getId());
+        }
+
+        // Ready notifications go out once no cafe locks are held
+        for (Order recipient : notifyReady) {
+            recipient.markReady();
+        }
+
+        // Discarded brewing drinks may have freed a slot
+        wakeDispatcher();
+        cafeLogState();
     }
 
-    private boolean transferDrink(Order cancelledOrder, String drinkType, boolean isBrewing)
-    {
-        for (Order order : activeOrders.values()) {
-            if (!order.equals(cancelledOrder)) { // Skip the canceled order
-                synchronized (order) {
-                    // Check if there are drinks in the waiting area to repurpose
-                    if ("Tea".equals(drinkType) && order.countTeasByState("WAITING") > 0) {
-                        if (isBrewing && brewingTeas.get() >= 2) {
-                            continue; // Skip transfer if no brewing slots are available
-                        }
-
-                        String newTeaID = order.getNextWaitingTea();
-                        if (newTeaID != null) {
-                            order.updateTeaState(newTeaID, isBrewing ? "BREWING" : "TRAY");
-
-                            // Update atomic counters
-                            if (isBrewing) {
-                                brewingTeas.incrementAndGet();
-                            }
-
-                            transferLog(drinkType, cancelledOrder, order, isBrewing);
-                            return true; // Transfer successful
-                        }
-                    } else if ("Coffee".equals(drinkType) && order.countCoffeesByState("WAITING") > 0) {
-                        if (isBrewing && brewingCoffees.get() >= 2) {
-                            continue; // Skip transfer if no brewing slots are available
-                        }
-
-                        String newCoffeeID = order.getNextWaitingCoffee();
-                        if (newCoffeeID != null) {
-                            order.updateCoffeeState(newCoffeeID, isBrewing ? "BREWING" : "TRAY");
-
-                            // Update atomic counters
-                            if (isBrewing) {
-                                brewingCoffees.incrementAndGet();
-                            }
-
-                            transferLog(drinkType, cancelledOrder, order, isBrewing);
-                            return true; // Transfer successful
-                        }
-                    }
+    //Transfer brewing and tray drinks of one type to the waiting drinks the scheduling policy picks next, discard the rest.
+    //Called with dispatchLock and the cancelled order's lock held; recipients that may now be ready are added to notifyReady.
+    private void repurposeBrewingAndTrayDrinks(Order cancelledOrder, DrinkType type, List<Order> notifyReady) {
+        List<Brew> brews = new ArrayList<>();
+        for (Brew brew : activeBrews) {
+            if (brew.order == cancelledOrder && brew.batch.type == type) {
+                brews.add(brew);
+            }
+        }
+        int trayCount = cancelledOrder.countByState(type, DrinkState.TRAY);
+        cancelledOrder.removeDrinksInState(type, DrinkState.TRAY);
+
+        // Hand drinks over one at a time, brewing ones first, to whichever waiting drink would have been served next
+        Map<Order, int[]> moved = new LinkedHashMap<>(); // Recipient -> {brewing, tray} drinks received
+        Order recipient;
+        while ((!brews.isEmpty() || trayCount > 0) && (recipient = policy.next(type)) != null) {
+            recipient.getLock().lock();
+            try {
+                int newDrinkID = recipient.getNextWaiting(type);
+                if (newDrinkID < 0) {
+                    policy.remove(recipient, type); // Nothing of this type left waiting for this order
+                    continue;
                 }
+                int[] counts = moved.computeIfAbsent(recipient, order -> new int[2]);
+                if (!brews.isEmpty()) {
+                    // The drink keeps brewing in its slot, it just belongs to the recipient now
+                    Brew brew = brews.remove(brews.size() - 1);
+                    cancelledOrder.removeDrink(type, brew.drinkID);
+                    recipient.transferDrink(type, newDrinkID, DrinkState.BREWING, cancelledOrder);
+                    brew.order = recipient;
+                    brew.drinkID = newDrinkID;
+                    counts[0]++;
+                } else {
+                    recipient.transferDrink(type, newDrinkID, DrinkState.TRAY, cancelledOrder);
+                    trayCount--;
+                    counts[1]++;
+                }
+                policy.served(recipient, type);
+            } finally {
+                recipient.getLock().unlock();
             }
         }
-        return false; // Transfer not successful
+        for (Map.Entry<Order, int[]> transfer : moved.entrySet()) {
+            if (transfer.getValue()[1] > 0) {
+                notifyReady.add(transfer.getKey()); // Transferred tray drinks may complete the order
+            }
+            transferLog(type, cancelledOrder, transfer.getKey(), transfer.getValue()[0], transfer.getValue()[1]);
+        }
+
+        // If not repurposed, discard the drinks
+        for (Brew brew : brews) {
+            cancelledOrder.removeDrink(type, brew.drinkID);
+            brew.order = null; // The running brew finishes into the bin
+            activeBrews.remove(brew);
+            brew.batch.drinkDone(); // Frees the slot if nothing else in the batch is still wanted
+            System.out.println(type.getDisplayName() + brew.drinkID + " from " + cancelledOrder.getCustomerName() + " discarded.");
+        }
+        if (trayCount > 0) {
+            System.out.println(trayCount + " " + type.getDisplayName() + "(s) on the tray from " + cancelledOrder.getCustomerName() + " discarded.");
+        }
     }
 
     //Terminal output for transfers
-    private void transferLog(String drinkType, Order cancelledOrder, Order recipientOrder, boolean isBrewing) {
+    private void transferLog(DrinkType type, Order cancelledOrder, Order recipientOrder, int brewingMoved, int trayMoved) {
         String sourceCustomer = cancelledOrder.getCustomerName();
         String targetCustomer = recipientOrder.getCustomerName();
-        String location = isBrewing ? "currently brewing" : "in the tray";
-        System.out.println(drinkType + " " + location + " for " + sourceCustomer + " has been transferred to " + targetCustomer + "'s order.");
+        if (brewingMoved > 0) {
+            System.out.println(countedName(type, brewingMoved) + " currently brewing for " + sourceCustomer + (brewingMoved == 1 ? " has" : " have") + " been transferred to " + targetCustomer + "'s order.");
+        }
+        if (trayMoved > 0) {
+            System.out.println(countedName(type, trayMoved) + " in the tray for " + sourceCustomer + (trayMoved == 1 ? " has" : " have") + " been transferred to " + targetCustomer + "'s order.");
+        }
     }
 
-}
+    private static String countedName(DrinkType type, int count) {
+        return count == 1 ? type.getDisplayName() : count + " " + type.getDisplayName() + "(s)";
+    }
+
+
+    // Drinks brewed together in one slot, run by the clock when the brewing time is up.
+    // The slot is freed once every drink in it has reached the tray or been discarded.
+    private final class Batch implements Runnable
+    {
+        private final DrinkType type;
+        private final long startMillis = clock.currentTimeMillis();
+        private volatile long finishMillis; // Set when it goes on the machine
+        private final List<Brew> drinks = new ArrayList<>(); // Filled before the batch is scheduled
+        private final AtomicInteger remaining = new AtomicInteger();
+
+        Batch(DrinkType type)
+        {
+            this.type = type;
+        }
+
+        @Override
+        public void run()
+        {
+            List<Order> owners = new ArrayList<>();
+            for (Brew brew : drinks) {
+                Order owner = brew.finish();
+                if (owner != null && !owners.contains(owner)) {
+                    owners.add(owner);
+                }
+            }
 
+            dispatchLock.lock();
+            try {
+                for (Order owner : owners) {
+                    updateEstimate(owner);
+                }
+            } finally {
+                dispatchLock.unlock();
+            }
+
+            // Notify if the entire order is ready (outside the lock, listeners may write to sockets)
+            for (Order owner : owners) {
+                owner.markReady();
+            }
+
+            // Notify the dispatcher that a brewing slot is free
+            if (!owners.isEmpty()) {
+                wakeDispatcher();
+            }
+        }
+
+        // Called once per drink, under its owner's lock, when it reaches the tray or is discarded
+        private void drinkDone()
+        {
+            if (remaining.decrementAndGet() == 0) {
+                runningBatches.get(type).remove(this);
+                stations.get(type).release();
+            }
+        }
+    }
+
+    // One drink of a batch.
+    // When a cancelled order's drink is handed over while brewing, order and drinkID are re-pointed to the recipient;
+    // both are only changed while holding the current owner's lock. A null order means the drink was discarded.
+    private final class Brew
+    {
+        private final Batch batch;
+        private volatile Order order;
+        private volatile int drinkID;
+
+        Brew(Batch batch, Order order, int drinkID)
+        {
+            this.batch = batch;
+            this.order = order;
+            this.drinkID = drinkID;
+        }
+
+        // Moves the drink to its owner's tray, returns the owner or null if the drink was discarded
+        private Order finish()
+        {
+            // Lock whoever owns the drink now; the owner may change until we hold its lock
+            Order owner;
+            while (true) {
+                owner = order;
+                if (owner == null) {
+                    return null; // Discarded, its share of the slot was already given up
+                }
+                owner.getLock().lock();
+                if (owner == order) {
+                    break;
+                }
+                owner.getLock().unlock();
+            }
+
+            // Update drink state to TRAY
+            try {
+                owner.updateState(batch.type, drinkID, DrinkState.TRAY);
+                activeBrews.remove(this);
+                batch.drinkDone();
+                metrics.recordBrew(batch.type, clock.currentTimeMillis() - batch.startMillis);
+                cafeLogState();
+            } finally {
+                owner.getLock().unlock();
+            }
+            return owner;
+        }
+    }
+}
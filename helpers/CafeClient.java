@@ -0,0 +1,510 @@
+package helpers;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// Non-blocking client for programs that talk to the cafe on behalf of many customers, e.g. a kiosk or a load test.
+// A few selector threads carry any number of customer sessions. Every command returns a future of its reply and
+// commands can be pipelined. Sessions ask for framed replies (FrameCodec) after the name handshake, so each reply comes
+// back whole under the ID of its command; with a server that only speaks text lines they fall back to matching each
+// reply to the oldest command still waiting, since the server answers a connection's commands in order.
+// "Order ready" pushes go to the session's callback instead.
+// Futures are completed and callbacks run on a selector thread, so slow work should move to another thread.
+//
+// Usage:
+//   try (CafeClient client = new CafeClient("localhost", 2610, 2)) {
+//       CafeClient.Session ann = client.open("Ann", push -> System.out.println(push)).join();
+//       ann.placeOrder(1, 2);
+//       ann.orderStatus().thenAccept(System.out::println);
+//   }
+
+public class CafeClient implements AutoCloseable
+{
+    private static final int maxLineLength = 65536; // Longer lines are treated as a broken server
+    private static final String readyMessage = "your order is ready to collect!";
+    private static final String eventPrefix = "EVENT "; // Lines of a subscription, see OrderSubscriptions
+
+    private final InetSocketAddress address;
+    private final Loop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger(0);
+    private final boolean useFrames;
+
+    public CafeClient(String host, int port, int threads) throws IOException
+    {
+        this(host, port, threads, true);
+    }
+
+    // useFrames false keeps sessions on text lines, e.g. to compare the two protocols
+    public CafeClient(String host, int port, int threads, boolean useFrames) throws IOException
+    {
+        this.address = new InetSocketAddress(host, port);
+        this.useFrames = useFrames;
+        this.loops = new Loop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++)
+        {
+            loops[i] = new Loop(Selector.open());
+            loops[i].thread = CafeThreads.startDaemon("cafe-client-" + i, loops[i]);
+        }
+    }
+
+    // Connects a customer under the given name; completes once the barista has accepted them.
+    // onPush gets every message that isn't a reply, mainly "<name>, your order is ready to collect!"
+    public CompletableFuture<Session> open(String name, Consumer<String> onPush)
+    {
+        Loop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        Session session;
+        try
+        {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            session = new Session(name, channel, loop, onPush);
+            channel.connect(address);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        CompletableFuture<String> greeting = session.send(name, Reply.GREETING); // Queued until the connection is up
+        loop.registrations.add(session);
+        loop.selector.wakeup();
+        return greeting.thenCompose(response -> {
+            if (!response.trim().equalsIgnoreCase("success"))
+            {
+                session.close();
+                throw new IllegalStateException("Barista kicked " + name + " out after hearing their name: " + response);
+            }
+            if (!useFrames) return CompletableFuture.completedFuture(session);
+            // Any answer will do: the session switched to frames itself if the barista agreed
+            return session.send(FrameCodec.handshake, Reply.HANDSHAKE).thenApply(ack -> session);
+        });
+    }
+
+    // Closes every session and stops the selector threads
+    @Override
+    public void close()
+    {
+        for (Loop loop : loops)
+        {
+            loop.thread.interrupt();
+            loop.selector.wakeup();
+        }
+    }
+
+    // How a reply to a command is laid out in text mode. Most are one line; the status and the stats are a header line
+    // followed by "- " lines, the last of which is known, so a pipelined reply completes without waiting for the next one.
+    private enum Reply
+    {
+        GREETING, HANDSHAKE, LINE,
+        STATUS
+        {
+            boolean startsBlock(String line) { return line.startsWith("Order status for "); }
+            boolean endsBlock(String line) { return line.startsWith("- ETA "); }
+        },
+        STATS
+        {
+            boolean startsBlock(String line) { return line.startsWith("[Barista]: Cafe stats:"); }
+            boolean endsBlock(String line) { return line.startsWith("- threads:"); }
+        };
+
+        boolean startsBlock(String line) { return false; }
+        boolean endsBlock(String line) { return true; }
+    }
+
+    private record Pending(Reply reply, CompletableFuture<String> future) {}
+
+
+    // One selector thread and the sessions it carries
+    private static final class Loop implements Runnable
+    {
+        private final Selector selector;
+        private final Queue<Session> registrations = new ConcurrentLinkedQueue<>(); // New connections to register
+        private final Queue<Session> interestChanges = new ConcurrentLinkedQueue<>(); // Sessions with new writes queued
+        private Thread thread;
+
+        Loop(Selector selector)
+        {
+            this.selector = selector;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (!Thread.currentThread().isInterrupted())
+                {
+                    selector.select();
+
+                    Session session;
+                    while ((session = registrations.poll()) != null)
+                    {
+                        try
+                        {
+                            session.register();
+                        } catch (IOException e) {
+                            session.fail(e); // Closed before it got here
+                        }
+                    }
+                    while ((session = interestChanges.poll()) != null)
+                    {
+                        session.enableWrite();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext())
+                    {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Session ready = (Session) key.attachment();
+                        try
+                        {
+                            if (!key.isValid()) continue;
+                            if (key.isConnectable()) ready.finishConnect();
+                            if (key.isValid() && key.isReadable()) ready.read();
+                            if (key.isValid() && key.isWritable()) ready.write();
+                        } catch (IOException e) {
+                            ready.fail(e);
+                        } catch (CancelledKeyException e) {
+                            // Session closed from another thread meanwhile
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Cafe client stopped: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys())
+                {
+                    ((Session) key.attachment()).fail(new IOException("Cafe client closed"));
+                }
+                try
+                {
+                    selector.close();
+                } catch (IOException e) {
+                    System.out.println("Failed to close the client selector: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+
+    // One customer's connection. Commands may be sent from any thread; reads and writes happen on the selector thread.
+    public static final class Session implements AutoCloseable
+    {
+        private final String name;
+        private final SocketChannel channel;
+        private final Loop loop;
+        private final Consumer<String> onPush;
+        private SelectionKey key;
+
+        private final ReentrantLock sendLock = new ReentrantLock(); // Keeps the pending replies in the order the commands were written
+        private final Queue<Pending> pending = new ConcurrentLinkedQueue<>(); // Text mode, in the order of the commands
+        private final Map<Integer, CompletableFuture<String>> awaiting = new ConcurrentHashMap<>(); // Frame mode, by request ID
+        private volatile boolean framed = false; // Set by the selector thread when the barista acknowledges the switch
+        private int nextRequestId = 1; // Guarded by sendLock, 0 is for pushes
+        private final Queue<ByteBuffer> outbox = new ConcurrentLinkedQueue<>();
+        private boolean closed = false; // Guarded by sendLock
+        private final CompletableFuture<Void> closedFuture = new CompletableFuture<>();
+
+        // Read side, selector thread only
+        private ByteBuffer readBuffer = ByteBuffer.allocate(4096); // Grows for frames larger than this
+        private byte[] line = new byte[128];
+        private int lineLength = 0;
+        private StringBuilder block = null; // Multi-line reply being put together
+
+        private Session(String name, SocketChannel channel, Loop loop, Consumer<String> onPush)
+        {
+            this.name = name;
+            this.channel = channel;
+            this.loop = loop;
+            this.onPush = onPush;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        //SET OF COMMANDS, each completing with the barista's reply (lines joined by '\n')
+        public CompletableFuture<String> placeOrder(int teaCount, int coffeeCount)
+        {
+            return send("PLACE_ORDER " + teaCount + " " + coffeeCount, Reply.LINE);
+        }
+
+        public CompletableFuture<String> orderStatus()
+        {
+            return send("ORDER_STATUS", Reply.STATUS);
+        }
+
+        public CompletableFuture<String> collect()
+        {
+            return send("COLLECT", Reply.LINE);
+        }
+
+        public CompletableFuture<String> stats()
+        {
+            return send("STATS", Reply.STATS);
+        }
+
+        // Drink events of this customer's orders, or of every order for a display, then arrive through onPush as
+        // "EVENT ..." lines (several per push when they come in a burst), see OrderSubscriptions
+        public CompletableFuture<String> subscribe(boolean everyOrder)
+        {
+            return send(everyOrder ? "SUBSCRIBE ALL" : "SUBSCRIBE", Reply.LINE);
+        }
+
+        public CompletableFuture<String> unsubscribe()
+        {
+            return send("UNSUBSCRIBE", Reply.LINE);
+        }
+
+        // The barista closes the connection after saying goodbye
+        public CompletableFuture<String> exit()
+        {
+            return send("EXIT", Reply.LINE);
+        }
+
+        // Completes once the connection is gone, exceptionally if it was lost rather than closed
+        public CompletableFuture<Void> closed()
+        {
+            return closedFuture;
+        }
+
+        // Drops the connection without saying goodbye; the server treats it as the customer walking out
+        @Override
+        public void close()
+        {
+            fail(null);
+        }
+
+        private CompletableFuture<String> send(String command, Reply reply)
+        {
+            CompletableFuture<String> future = new CompletableFuture<>();
+            sendLock.lock();
+            try
+            {
+                if (closed)
+                {
+                    future.completeExceptionally(new IOException("Session of " + name + " is closed"));
+                    return future;
+                }
+                if (framed)
+                {
+                    int requestId = nextRequestId++;
+                    awaiting.put(requestId, future);
+                    outbox.add(ByteBuffer.wrap(FrameCodec.encode(FrameCodec.request, requestId, command)));
+                } else {
+                    pending.add(new Pending(reply, future));
+                    outbox.add(StandardCharsets.UTF_8.encode(command + "\n"));
+                }
+            } finally {
+                sendLock.unlock();
+            }
+            loop.interestChanges.add(this);
+            loop.selector.wakeup();
+            return future;
+        }
+
+        private void register() throws IOException
+        {
+            key = channel.register(loop.selector, SelectionKey.OP_CONNECT, this);
+        }
+
+        private void finishConnect() throws IOException
+        {
+            if (channel.finishConnect())
+            {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void enableWrite()
+        {
+            if (key != null && key.isValid() && channel.isConnected())
+            {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void write() throws IOException
+        {
+            ByteBuffer buffer;
+            while ((buffer = outbox.peek()) != null)
+            {
+                channel.write(buffer);
+                if (buffer.hasRemaining())
+                {
+                    return; // Socket is full, wait for the next OP_WRITE
+                }
+                outbox.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        // Reads what is available and splits it into lines, then into frames from the barista's acknowledgement on
+        private void read() throws IOException
+        {
+            int read = channel.read(readBuffer);
+            if (read < 0)
+            {
+                boolean answered = pending.isEmpty() && awaiting.isEmpty();
+                fail(answered ? null : new IOException("Barista closed the connection of " + name));
+                return;
+            }
+
+            readBuffer.flip();
+            while (!framed && readBuffer.hasRemaining())
+            {
+                byte b = readBuffer.get();
+                if (b == '\n')
+                {
+                    int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                    onLine(new String(line, 0, length, StandardCharsets.UTF_8));
+                    lineLength = 0;
+                }
+                else
+                {
+                    if (lineLength == maxLineLength)
+                    {
+                        throw new IOException("Line from the barista too long");
+                    }
+                    if (lineLength == line.length)
+                    {
+                        line = Arrays.copyOf(line, Math.min(line.length * 2, maxLineLength));
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+
+            FrameCodec.Frame frame;
+            while (framed && (frame = FrameCodec.decode(readBuffer)) != null)
+            {
+                onFrame(frame);
+            }
+            readBuffer.compact(); // Keeps a partial frame
+            readBuffer = FrameCodec.ensureRoom(readBuffer);
+        }
+
+        private void onFrame(FrameCodec.Frame frame)
+        {
+            if (frame.type() == FrameCodec.reply)
+            {
+                CompletableFuture<String> answered = awaiting.remove(frame.requestId());
+                if (answered != null) // null if the session was closed meanwhile
+                {
+                    answered.complete(frame.text());
+                }
+            }
+            else if (frame.type() == FrameCodec.push && onPush != null)
+            {
+                onPush.accept(frame.text());
+            }
+        }
+
+        private void onLine(String text)
+        {
+            if (block != null)
+            {
+                if (text.startsWith("- "))
+                {
+                    block.append('\n').append(text);
+                    Pending current = pending.peek();
+                    if (current == null || current.reply().endsBlock(text))
+                    {
+                        complete(block.toString());
+                    }
+                    return;
+                }
+                complete(block.toString()); // Ended without its usual last line, the new line is the next message
+            }
+
+            Pending next = pending.peek();
+            if (next == null || text.endsWith(readyMessage) || text.startsWith(eventPrefix))
+            {
+                if (onPush != null)
+                {
+                    onPush.accept(text); // Not a reply
+                }
+            }
+            else if (next.reply().startsBlock(text))
+            {
+                block = new StringBuilder(text);
+            }
+            else
+            {
+                if (next.reply() == Reply.HANDSHAKE && text.equals(FrameCodec.handshake))
+                {
+                    framed = true; // Whatever follows this line is frames
+                }
+                complete(text);
+            }
+        }
+
+        private void complete(String reply)
+        {
+            block = null;
+            Pending answered = pending.poll();
+            if (answered != null) // null if the session was closed meanwhile
+            {
+                answered.future().complete(reply);
+            }
+        }
+
+        // Closes the connection and fails every command still waiting for a reply; a null cause means a normal close
+        private void fail(IOException cause)
+        {
+            sendLock.lock();
+            try
+            {
+                if (closed) return;
+                closed = true;
+            } finally {
+                sendLock.unlock();
+            }
+            if (key != null)
+            {
+                key.cancel();
+            }
+            try
+            {
+                channel.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+            IOException lost = cause != null ? cause : new IOException("Session of " + name + " closed");
+            Pending left;
+            while ((left = pending.poll()) != null)
+            {
+                left.future().completeExceptionally(lost);
+            }
+            for (Integer requestId : awaiting.keySet())
+            {
+                CompletableFuture<String> future = awaiting.remove(requestId);
+                if (future != null)
+                {
+                    future.completeExceptionally(lost);
+                }
+            }
+            if (cause != null)
+            {
+                closedFuture.completeExceptionally(cause);
+            } else {
+                closedFuture.complete(null);
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package helpers;
+
+// Source of time for the cafe and the scheduler for timed events such as a drink finishing brewing.
+// SystemClock runs on wall-clock time; VirtualClock lets a simulation jump through time instantly.
+
+public interface CafeClock
+{
+    // Current time of this clock in milliseconds since the epoch
+    long currentTimeMillis();
+
+    // Runs the task once delayMillis of this clock's time have passed
+    void schedule(Runnable task, long delayMillis);
+
+    // True when time only moves when the simulation advances it.
+    // The cafe then dispatches on the caller's thread instead of a background dispatcher.
+    boolean isSimulated();
+
+    // Drops pending events and releases any threads
+    void shutdown();
+}
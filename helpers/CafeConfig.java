@@ -0,0 +1,321 @@
+package helpers;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Tunable settings of a Cafe.
+// Defaults match the real cafe; every value can be overridden with a -Dcafe.* system property
+// or set directly, e.g. by benchmarks that need instant brewing and no log file.
+
+public class CafeConfig
+{
+    // Per drink type, indexed by ordinal: -Dcafe.brew.<type>Millis, -Dcafe.slots.<type> and -Dcafe.batch.<type>, e.g. -Dcafe.slots.coffee=3
+    private final int[] brewTimes = new int[DrinkType.values().length];
+    private final int[] capacities = new int[DrinkType.values().length];
+    private final int[] batchSizes = new int[DrinkType.values().length]; // Drinks one slot brews together, 1 means no batching
+    private long batchWaitMillis = Long.getLong("cafe.batch.waitMillis", 5000); // Longest a partial batch is held back for more drinks
+
+    private CafeClock clock = null; // null means a SystemClock owned by the cafe
+    private int clockThreads = Integer.getInteger("cafe.clock.threads", 2);
+
+    private String logPath = System.getProperty("cafe.log.path", "cafe_logs.json"); // null disables the JSON log
+    private String logFormat = System.getProperty("cafe.log.format", "json"); // json, binary (same name ending in .bin) or both
+    private long logRotateBytes = Long.getLong("cafe.log.rotateBytes", 64L << 20); // Start a new segment past this size, 0 never
+    private long logRotateMillis = Long.getLong("cafe.log.rotateMillis", 0); // Start a new segment after this long, 0 never
+    private boolean logGzip = Boolean.parseBoolean(System.getProperty("cafe.log.gzip", "true")); // Compress closed segments
+    private int logCapacity = Integer.getInteger("cafe.log.capacity", 8192);
+    private long logFlushMillis = Long.getLong("cafe.log.flushMillis", 200);
+    private boolean logBlockWhenFull = Boolean.getBoolean("cafe.log.block");
+    private long logConsoleMillis = Long.getLong("cafe.log.consoleMillis", 1000); // Latest state at most this often, 0 every snapshot, negative off
+
+    private int metricsPort = Integer.getInteger("cafe.metrics.port", 0); // Local Prometheus endpoint, 0 turns it off
+
+    private String scheduling = System.getProperty("cafe.scheduling", "fifo"); // fifo, srpt, round-robin or wfq, see SchedulingPolicy
+    // Share of the bar per customer name under wfq, e.g. -Dcafe.scheduling.weights=Ann=2,Bob=0.5; everyone else weighs 1
+    private final Map<String, Double> schedulingWeights = parseWeights(System.getProperty("cafe.scheduling.weights", ""));
+
+    // Admission control, 0 turns a limit off
+    private int orderDrinkLimit = Integer.getInteger("cafe.limit.orderDrinks", 100); // Drinks in one place_order
+    private int customerDrinkLimit = Integer.getInteger("cafe.limit.customerDrinks", 200); // Uncollected drinks of one customer
+    private int waitingDrinkLimit = Integer.getInteger("cafe.limit.waitingDrinks", 10_000); // Drinks in the waiting area, beyond it orders get BUSY
+
+    private int subscriptionBacklog = Integer.getInteger("cafe.subscriptions.backlog", 1000); // Undelivered events per subscriber before it has to resync
+
+    private String journalDir = System.getProperty("cafe.journal.dir", ""); // Opt-in: null or empty (the default) turns persistence off
+    private long journalSyncMillis = Long.getLong("cafe.journal.syncMillis", 10); // Longest time an event waits for its fsync, 0 syncs after every event
+    private long journalSegmentBytes = Long.getLong("cafe.journal.segmentBytes", 16L << 20); // Snapshot and start a new log past this size
+    private boolean journalSyncOnReply = Boolean.parseBoolean(System.getProperty("cafe.journal.syncOnReply", "true")); // Confirm orders only once on disk
+    private long unclaimedOrderMillis = Long.getLong("cafe.journal.unclaimedMillis", 600_000); // Recovered orders nobody reclaims are cancelled after this, 0 keeps them
+
+    public CafeConfig()
+    {
+        for (DrinkType type : DrinkType.values())
+        {
+            brewTimes[type.ordinal()] = Integer.getInteger("cafe.brew." + type.getKey() + "Millis", type.getDefaultBrewTime());
+            capacities[type.ordinal()] = Integer.getInteger("cafe.slots." + type.getKey(), type.getDefaultCapacity());
+            batchSizes[type.ordinal()] = Integer.getInteger("cafe.batch." + type.getKey(), 1);
+        }
+    }
+
+    public int getBrewTime(DrinkType type)
+    {
+        return brewTimes[type.ordinal()];
+    }
+    public int getCapacity(DrinkType type)
+    {
+        return capacities[type.ordinal()];
+    }
+    public int getBatchSize(DrinkType type)
+    {
+        return batchSizes[type.ordinal()];
+    }
+    public long getBatchWaitMillis()
+    {
+        return batchWaitMillis;
+    }
+    public CafeClock getClock()
+    {
+        return clock;
+    }
+    public int getClockThreads()
+    {
+        return clockThreads;
+    }
+    public String getLogPath()
+    {
+        return logPath;
+    }
+    public String getLogFormat()
+    {
+        return logFormat;
+    }
+    public long getLogRotateBytes()
+    {
+        return logRotateBytes;
+    }
+    public long getLogRotateMillis()
+    {
+        return logRotateMillis;
+    }
+    public boolean isLogGzip()
+    {
+        return logGzip;
+    }
+    public int getLogCapacity()
+    {
+        return logCapacity;
+    }
+    public long getLogFlushMillis()
+    {
+        return logFlushMillis;
+    }
+    public boolean isLogBlockWhenFull()
+    {
+        return logBlockWhenFull;
+    }
+    public long getLogConsoleMillis()
+    {
+        return logConsoleMillis;
+    }
+    public int getMetricsPort()
+    {
+        return metricsPort;
+    }
+    public String getScheduling()
+    {
+        return scheduling;
+    }
+    public double getSchedulingWeight(String customerName)
+    {
+        return schedulingWeights.getOrDefault(customerName, 1.0);
+    }
+    public int getOrderDrinkLimit()
+    {
+        return orderDrinkLimit;
+    }
+    public int getCustomerDrinkLimit()
+    {
+        return customerDrinkLimit;
+    }
+    public int getWaitingDrinkLimit()
+    {
+        return waitingDrinkLimit;
+    }
+    public int getSubscriptionBacklog()
+    {
+        return subscriptionBacklog;
+    }
+    public String getJournalDir()
+    {
+        return journalDir;
+    }
+    public long getJournalSyncMillis()
+    {
+        return journalSyncMillis;
+    }
+    public long getJournalSegmentBytes()
+    {
+        return journalSegmentBytes;
+    }
+    public boolean isJournalSyncOnReply()
+    {
+        return journalSyncOnReply;
+    }
+    public long getUnclaimedOrderMillis()
+    {
+        return unclaimedOrderMillis;
+    }
+
+    // Setters return this so a config can be built in one expression
+    public CafeConfig setBrewTime(DrinkType type, int millis)
+    {
+        brewTimes[type.ordinal()] = millis;
+        return this;
+    }
+    public CafeConfig setCapacity(DrinkType type, int slots)
+    {
+        capacities[type.ordinal()] = slots;
+        return this;
+    }
+    public CafeConfig setBatchSize(DrinkType type, int drinks)
+    {
+        batchSizes[type.ordinal()] = drinks;
+        return this;
+    }
+    public CafeConfig setBatchWaitMillis(long batchWaitMillis)
+    {
+        this.batchWaitMillis = batchWaitMillis;
+        return this;
+    }
+    public CafeConfig setClock(CafeClock clock)
+    {
+        this.clock = clock;
+        return this;
+    }
+    public CafeConfig setClockThreads(int clockThreads)
+    {
+        this.clockThreads = clockThreads;
+        return this;
+    }
+    public CafeConfig setLogPath(String logPath)
+    {
+        this.logPath = logPath;
+        return this;
+    }
+    public CafeConfig setLogFormat(String logFormat)
+    {
+        this.logFormat = logFormat;
+        return this;
+    }
+    public CafeConfig setLogRotateBytes(long logRotateBytes)
+    {
+        this.logRotateBytes = logRotateBytes;
+        return this;
+    }
+    public CafeConfig setLogRotateMillis(long logRotateMillis)
+    {
+        this.logRotateMillis = logRotateMillis;
+        return this;
+    }
+    public CafeConfig setLogGzip(boolean logGzip)
+    {
+        this.logGzip = logGzip;
+        return this;
+    }
+    public CafeConfig setLogCapacity(int logCapacity)
+    {
+        this.logCapacity = logCapacity;
+        return this;
+    }
+    public CafeConfig setLogFlushMillis(long logFlushMillis)
+    {
+        this.logFlushMillis = logFlushMillis;
+        return this;
+    }
+    public CafeConfig setLogBlockWhenFull(boolean logBlockWhenFull)
+    {
+        this.logBlockWhenFull = logBlockWhenFull;
+        return this;
+    }
+    public CafeConfig setLogConsoleMillis(long logConsoleMillis)
+    {
+        this.logConsoleMillis = logConsoleMillis;
+        return this;
+    }
+    public CafeConfig setMetricsPort(int metricsPort)
+    {
+        this.metricsPort = metricsPort;
+        return this;
+    }
+    public CafeConfig setScheduling(String scheduling)
+    {
+        this.scheduling = scheduling;
+        return this;
+    }
+    public CafeConfig setSchedulingWeight(String customerName, double weight)
+    {
+        if (!(weight > 0)) throw new IllegalArgumentException("Scheduling weight of " + customerName + " must be positive");
+        schedulingWeights.put(customerName, weight);
+        return this;
+    }
+    public CafeConfig setOrderDrinkLimit(int orderDrinkLimit)
+    {
+        this.orderDrinkLimit = orderDrinkLimit;
+        return this;
+    }
+    public CafeConfig setCustomerDrinkLimit(int customerDrinkLimit)
+    {
+        this.customerDrinkLimit = customerDrinkLimit;
+        return this;
+    }
+    public CafeConfig setWaitingDrinkLimit(int waitingDrinkLimit)
+    {
+        this.waitingDrinkLimit = waitingDrinkLimit;
+        return this;
+    }
+    public CafeConfig setSubscriptionBacklog(int subscriptionBacklog)
+    {
+        this.subscriptionBacklog = subscriptionBacklog;
+        return this;
+    }
+    public CafeConfig setJournalDir(String journalDir)
+    {
+        this.journalDir = journalDir;
+        return this;
+    }
+    public CafeConfig setJournalSyncMillis(long journalSyncMillis)
+    {
+        this.journalSyncMillis = journalSyncMillis;
+        return this;
+    }
+    public CafeConfig setJournalSegmentBytes(long journalSegmentBytes)
+    {
+        this.journalSegmentBytes = journalSegmentBytes;
+        return this;
+    }
+    public CafeConfig setJournalSyncOnReply(boolean journalSyncOnReply)
+    {
+        this.journalSyncOnReply = journalSyncOnReply;
+        return this;
+    }
+    public CafeConfig setUnclaimedOrderMillis(long unclaimedOrderMillis)
+    {
+        this.unclaimedOrderMillis = unclaimedOrderMillis;
+        return this;
+    }
+
+    // name=weight pairs separated by commas
+    private static Map<String, Double> parseWeights(String weights)
+    {
+        Map<String, Double> parsed = new HashMap<>();
+        for (String pair : weights.split(","))
+        {
+            if (pair.isBlank()) continue;
+            int split = pair.lastIndexOf('=');
+            double weight = split > 0 ? Double.parseDouble(pair.substring(split + 1).trim()) : Double.NaN;
+            if (!(weight > 0)) throw new IllegalArgumentException("Bad scheduling weight \"" + pair + "\", use name=weight with a positive weight");
+            parsed.put(pair.substring(0, split).trim(), weight);
+        }
+        return parsed;
+    }
+}
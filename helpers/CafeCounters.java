@@ -0,0 +1,64 @@
+package helpers;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Cafe-wide totals kept up to date as drinks and customers change state,
+// so a snapshot of the cafe costs a handful of striped counter reads instead of a scan of every order.
+
+public class CafeCounters implements OrderListener
+{
+    private final LongAdder[][] drinks = new LongAdder[DrinkType.values().length][DrinkState.values().length]; // [type][state]
+    private final LongAdder clientsInCafe = new LongAdder();
+    private final LongAdder clientsWaiting = new LongAdder();
+
+    public CafeCounters()
+    {
+        for (LongAdder[] byState : drinks)
+        {
+            for (int i = 0; i < byState.length; i++)
+            {
+                byState[i] = new LongAdder();
+            }
+        }
+    }
+
+    @Override
+    public void onDrinksChanged(Order order, DrinkType type, DrinkState from, DrinkState to, int count)
+    {
+        if (from != null) drinks[type.ordinal()][from.ordinal()].add(-count);
+        if (to != null) drinks[type.ordinal()][to.ordinal()].add(count);
+    }
+
+    // Customer moved between states, null meaning not in the cafe
+    public void onCustomerChanged(CustomerState from, CustomerState to)
+    {
+        if (from == null && to != null) clientsInCafe.increment();
+        if (from != null && to == null) clientsInCafe.decrement();
+        if (from == CustomerState.WAITING) clientsWaiting.decrement();
+        if (to == CustomerState.WAITING) clientsWaiting.increment();
+    }
+
+    public int getDrinks(DrinkType type, DrinkState state)
+    {
+        return (int) drinks[type.ordinal()][state.ordinal()].sum();
+    }
+
+    public int getClientsInCafe()
+    {
+        return (int) clientsInCafe.sum();
+    }
+
+    public long getClientsWaiting()
+    {
+        return clientsWaiting.sum();
+    }
+
+    // Current totals as a log snapshot taken at the given time
+    public CafeSnapshot snapshot(long timestampMillis)
+    {
+        return new CafeSnapshot(timestampMillis, getClientsInCafe(), getClientsWaiting(),
+                getDrinks(DrinkType.TEA, DrinkState.WAITING), getDrinks(DrinkType.COFFEE, DrinkState.WAITING),
+                getDrinks(DrinkType.TEA, DrinkState.BREWING), getDrinks(DrinkType.COFFEE, DrinkState.BREWING),
+                getDrinks(DrinkType.TEA, DrinkState.TRAY), getDrinks(DrinkType.COFFEE, DrinkState.TRAY));
+    }
+}
@@ -0,0 +1,233 @@
+package helpers;
+
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+// Reads cafe log segments back one snapshot at a time, without loading a whole file.
+// JSON segments are streamed with Gson's JsonReader; binary segments are memory-mapped, or streamed when gzipped.
+//
+// Binary format, written by CafeLogger: an 8 byte header "CAFELOG" + version, then one record per snapshot made of
+// nine varints: the timestamp as a zigzag delta from the previous record (from 0 for the first), clients in the cafe,
+// clients waiting, then waiting, brewing and tray counts of tea and coffee. A typical record is about a dozen bytes.
+// A record cut short by a crash ends the segment.
+
+public final class CafeLogReader
+{
+    static final byte[] binaryHeader = {'C', 'A', 'F', 'E', 'L', 'O', 'G', 1};
+    static final int maxRecordBytes = 9 * 10;
+
+    private CafeLogReader() {}
+
+    // Binary segments end in .bin (or .bin.gz), anything else is read as JSON
+    public static boolean isBinary(Path segment)
+    {
+        String name = segment.getFileName().toString();
+        return name.endsWith(".bin") || name.endsWith(".bin.gz");
+    }
+
+    // Feeds every snapshot of one segment to the consumer, oldest first; returns how many were read
+    public static long read(Path segment, Consumer<CafeSnapshot> consumer) throws IOException
+    {
+        boolean gzipped = segment.getFileName().toString().endsWith(".gz");
+        if (isBinary(segment) && !gzipped)
+        {
+            return readMapped(segment, consumer);
+        }
+        InputStream file = Files.newInputStream(segment);
+        try (InputStream in = new BufferedInputStream(gzipped ? new GZIPInputStream(file, 64 * 1024) : file, 64 * 1024))
+        {
+            return isBinary(segment) ? readBinary(in, consumer) : readJson(in, consumer);
+        }
+    }
+
+    // Encodes one snapshot into record, returns its length
+    static int encode(CafeSnapshot snapshot, long previousMillis, byte[] record)
+    {
+        long delta = snapshot.timestampMillis() - previousMillis;
+        int at = putVarLong(record, 0, (delta << 1) ^ (delta >> 63));
+        at = putVarLong(record, at, snapshot.clientsInCafe());
+        at = putVarLong(record, at, snapshot.clientsWaiting());
+        at = putVarLong(record, at, snapshot.waitingTeas());
+        at = putVarLong(record, at, snapshot.waitingCoffees());
+        at = putVarLong(record, at, snapshot.brewingTeas());
+        at = putVarLong(record, at, snapshot.brewingCoffees());
+        at = putVarLong(record, at, snapshot.trayTeas());
+        return putVarLong(record, at, snapshot.trayCoffees());
+    }
+
+    private static int putVarLong(byte[] into, int at, long value)
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            into[at++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        into[at++] = (byte) value;
+        return at;
+    }
+
+    private static long readMapped(Path segment, Consumer<CafeSnapshot> consumer) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(segment))
+        {
+            if (channel.size() > Integer.MAX_VALUE)
+            {
+                // Too big for one mapping (rotation was off), stream it instead
+                try (InputStream in = new BufferedInputStream(Files.newInputStream(segment), 64 * 1024))
+                {
+                    return readBinary(in, consumer);
+                }
+            }
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (!hasHeader(data)) return 0;
+
+            long count = 0;
+            long previousMillis = 0;
+            long[] values = new long[9];
+            try
+            {
+                while (data.hasRemaining())
+                {
+                    for (int i = 0; i < values.length; i++)
+                    {
+                        values[i] = getVarLong(data);
+                    }
+                    previousMillis = emit(values, previousMillis, consumer);
+                    count++;
+                }
+            } catch (BufferUnderflowException e) {
+                // Torn last record
+            }
+            return count;
+        }
+    }
+
+    private static long readBinary(InputStream in, Consumer<CafeSnapshot> consumer) throws IOException
+    {
+        byte[] header = in.readNBytes(binaryHeader.length);
+        if (!Arrays.equals(header, binaryHeader)) return 0;
+
+        long count = 0;
+        long previousMillis = 0;
+        long[] values = new long[9];
+        try
+        {
+            while (true)
+            {
+                int first = in.read();
+                if (first < 0) return count;
+                values[0] = getVarLong(in, first);
+                for (int i = 1; i < values.length; i++)
+                {
+                    values[i] = getVarLong(in, in.read());
+                }
+                previousMillis = emit(values, previousMillis, consumer);
+                count++;
+            }
+        } catch (EOFException e) {
+            return count; // Torn last record
+        }
+    }
+
+    private static boolean hasHeader(ByteBuffer data)
+    {
+        if (data.remaining() < binaryHeader.length) return false;
+        byte[] header = new byte[binaryHeader.length];
+        data.get(header);
+        return Arrays.equals(header, binaryHeader);
+    }
+
+    private static long getVarLong(ByteBuffer data)
+    {
+        long value = 0;
+        for (int shift = 0; ; shift += 7)
+        {
+            byte b = data.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    private static long getVarLong(InputStream in, int first) throws IOException
+    {
+        long value = 0;
+        int b = first;
+        for (int shift = 0; ; shift += 7)
+        {
+            if (b < 0) throw new EOFException();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+            b = in.read();
+        }
+    }
+
+    // Turns the nine decoded values into a snapshot, returns its timestamp
+    private static long emit(long[] values, long previousMillis, Consumer<CafeSnapshot> consumer)
+    {
+        long millis = previousMillis + ((values[0] >>> 1) ^ -(values[0] & 1));
+        consumer.accept(new CafeSnapshot(millis, (int) values[1], values[2],
+                (int) values[3], (int) values[4], (int) values[5], (int) values[6], (int) values[7], (int) values[8]));
+        return millis;
+    }
+
+    private static long readJson(InputStream in, Consumer<CafeSnapshot> consumer) throws IOException
+    {
+        JsonReader json = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        json.setStrictness(Strictness.LENIENT); // One top-level object per line
+        ZoneId zone = ZoneId.systemDefault();
+        long count = 0;
+        try
+        {
+            while (json.peek() != JsonToken.END_DOCUMENT)
+            {
+                long millis = 0;
+                int inCafe = 0;
+                long waiting = 0;
+                int[] drinks = new int[6];
+                json.beginObject();
+                while (json.hasNext())
+                {
+                    switch (json.nextName())
+                    {
+                        case "timestamp": millis = LocalDateTime.parse(json.nextString()).atZone(zone).toInstant().toEpochMilli(); break;
+                        case "clients_in_cafe": inCafe = json.nextInt(); break;
+                        case "clients_waiting": waiting = json.nextLong(); break;
+                        case "waiting_teas": drinks[0] = json.nextInt(); break;
+                        case "waiting_coffees": drinks[1] = json.nextInt(); break;
+                        case "brewing_teas": drinks[2] = json.nextInt(); break;
+                        case "brewing_coffees": drinks[3] = json.nextInt(); break;
+                        case "tray_teas": drinks[4] = json.nextInt(); break;
+                        case "tray_coffees": drinks[5] = json.nextInt(); break;
+                        default: json.skipValue();
+                    }
+                }
+                json.endObject();
+                consumer.accept(new CafeSnapshot(millis, inCafe, waiting, drinks[0], drinks[1], drinks[2], drinks[3], drinks[4], drinks[5]));
+                count++;
+            }
+        } catch (EOFException | MalformedJsonException e) {
+            // Torn last line
+        }
+        return count;
+    }
+}
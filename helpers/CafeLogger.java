@@ -0,0 +1,256 @@
+package helpers;
+
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Background pipeline for the cafe state log.
+// Callers only enqueue a snapshot into a bounded buffer; one writer thread drains it in batches,
+// writes one JSON object per line and/or one compact binary record (see CafeLogReader) per snapshot,
+// and flushes once per batch or flush interval. Both logs roll over into segments by size or age (see RotatingLog).
+// Console output is printed by the same thread, at most once per console interval.
+
+public class CafeLogger implements AutoCloseable
+{
+    private final BlockingQueue<CafeSnapshot> buffer;
+    private final boolean blockWhenFull; // Block producers instead of dropping snapshots when the buffer is full
+    private final long flushIntervalMillis;
+    private final long consoleIntervalMillis; // 0 prints every snapshot, negative turns console output off
+    private final RotatingLog jsonLog; // null unless the format is json or both
+    private final BufferedWriter logWriter;
+    private final JsonWriter json;
+    private final RotatingLog binaryLog; // null unless the format is binary or both
+    private final byte[] record = new byte[CafeLogReader.maxRecordBytes];
+    private int binarySegment = 0; // Segment the last binary record went to, timestamps are deltas within one segment
+    private long lastBinaryMillis = 0;
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final Thread writerThread;
+    private volatile boolean isRunning = true;
+
+    private long lastConsoleMillis = 0; // Only touched by the writer thread
+    private CafeSnapshot pendingConsole = null; // Latest snapshot not yet shown on the console
+
+    // A null log path keeps the console output only
+    public CafeLogger(CafeConfig config)
+    {
+        this.buffer = new ArrayBlockingQueue<>(config.getLogCapacity());
+        this.flushIntervalMillis = config.getLogFlushMillis();
+        this.blockWhenFull = config.isLogBlockWhenFull();
+        this.consoleIntervalMillis = config.getLogConsoleMillis();
+
+        String path = config.getLogPath();
+        String format = config.getLogFormat();
+        boolean writeJson = format.equals("json") || format.equals("both");
+        boolean writeBinary = format.equals("binary") || format.equals("both");
+        if (path != null && !writeJson && !writeBinary)
+        {
+            System.out.println("Unknown log format " + format + ", use json, binary or both. Writing JSON.");
+            writeJson = true;
+        }
+        this.jsonLog = path != null && writeJson ? openLog(Path.of(path), new byte[0], config) : null;
+        this.binaryLog = path != null && writeBinary ? openLog(binaryPath(path), CafeLogReader.binaryHeader, config) : null;
+
+        BufferedWriter writer = jsonLog == null ? null : new BufferedWriter(new OutputStreamWriter(jsonLog, StandardCharsets.UTF_8));
+        this.logWriter = writer;
+        this.json = writer == null ? null : new JsonWriter(writer);
+        if (json != null)
+        {
+            json.setStrictness(Strictness.LENIENT); // One top-level object per line
+        }
+
+        writerThread = CafeThreads.startDaemon("cafe-logger", this::writeLoop);
+    }
+
+    private static RotatingLog openLog(Path path, byte[] header, CafeConfig config)
+    {
+        try
+        {
+            return new RotatingLog(path, header, config.getLogRotateBytes(), config.getLogRotateMillis(), config.isLogGzip());
+        } catch (IOException e) {
+            System.out.println("Couldn't create log file " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // cafe_logs.json -> cafe_logs.bin
+    static Path binaryPath(String jsonPath)
+    {
+        return Path.of(jsonPath.endsWith(".json") ? jsonPath.substring(0, jsonPath.length() - 5) + ".bin" : jsonPath + ".bin");
+    }
+
+    // Hand a snapshot to the writer thread. Never touches the file on the caller's thread.
+    public void log(CafeSnapshot snapshot)
+    {
+        if (!isRunning) return;
+
+        if (blockWhenFull)
+        {
+            try
+            {
+                buffer.put(snapshot);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        else if (!buffer.offer(snapshot))
+        {
+            dropped.incrementAndGet();
+        }
+    }
+
+    // Number of snapshots thrown away because the buffer was full
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    private void writeLoop()
+    {
+        List<CafeSnapshot> batch = new ArrayList<>();
+        while (isRunning || !buffer.isEmpty())
+        {
+            try
+            {
+                CafeSnapshot first = buffer.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+                if (first != null)
+                {
+                    batch.add(first);
+                    buffer.drainTo(batch);
+                }
+            } catch (InterruptedException e) {
+                // Woken up by close(), drain whatever is left
+                buffer.drainTo(batch);
+            }
+
+            writeBatch(batch);
+            batch.clear();
+            printConsole(false);
+        }
+        printConsole(true);
+    }
+
+    // Writes a batch and flushes it as one group
+    private void writeBatch(List<CafeSnapshot> batch)
+    {
+        if (batch.isEmpty()) return;
+
+        if (json != null)
+        {
+            try
+            {
+                for (CafeSnapshot snapshot : batch)
+                {
+                    writeJson(snapshot);
+                }
+                logWriter.flush();
+                jsonLog.rotateIfDue();
+            } catch (IOException e) {
+                System.out.println("Failed to write log to JSON file: " + e.getMessage());
+            }
+        }
+        if (binaryLog != null)
+        {
+            try
+            {
+                for (CafeSnapshot snapshot : batch)
+                {
+                    writeBinary(snapshot);
+                }
+                binaryLog.flush();
+                binaryLog.rotateIfDue();
+            } catch (IOException e) {
+                System.out.println("Failed to write binary log: " + e.getMessage());
+            }
+        }
+        pendingConsole = batch.get(batch.size() - 1);
+    }
+
+    private void writeJson(CafeSnapshot snapshot) throws IOException
+    {
+        LocalDateTime timestamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(snapshot.timestampMillis()), ZoneId.systemDefault());
+        json.beginObject();
+        json.name("timestamp").value(timestamp.toString());
+        json.name("clients_in_cafe").value(snapshot.clientsInCafe());
+        json.name("clients_waiting").value(snapshot.clientsWaiting());
+        json.name("waiting_teas").value(snapshot.waitingTeas());
+        json.name("waiting_coffees").value(snapshot.waitingCoffees());
+        json.name("brewing_teas").value(snapshot.brewingTeas());
+        json.name("brewing_coffees").value(snapshot.brewingCoffees());
+        json.name("tray_teas").value(snapshot.trayTeas());
+        json.name("tray_coffees").value(snapshot.trayCoffees());
+        json.endObject();
+        logWriter.newLine(); // JsonWriter writes straight through, so the line ends right after the object
+    }
+
+    private void writeBinary(CafeSnapshot snapshot) throws IOException
+    {
+        if (binaryLog.getSegments() != binarySegment)
+        {
+            binarySegment = binaryLog.getSegments();
+            lastBinaryMillis = 0; // The first record of a segment carries the full timestamp
+        }
+        binaryLog.write(record, 0, CafeLogReader.encode(snapshot, lastBinaryMillis, record));
+        lastBinaryMillis = snapshot.timestampMillis();
+    }
+
+    // Shows the latest snapshot on the console, at most once per console interval
+    private void printConsole(boolean force)
+    {
+        if (pendingConsole == null || consoleIntervalMillis < 0) return;
+
+        long now = System.currentTimeMillis();
+        if (force || now - lastConsoleMillis >= consoleIntervalMillis)
+        {
+            System.out.println(pendingConsole.toConsoleText());
+            lastConsoleMillis = now;
+            pendingConsole = null;
+        }
+    }
+
+    // Stops accepting snapshots, writes out what is buffered and closes the file
+    @Override
+    public void close()
+    {
+        isRunning = false;
+        writerThread.interrupt();
+        try
+        {
+            writerThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (dropped.get() > 0)
+        {
+            System.out.println("Cafe log dropped " + dropped.get() + " snapshot(s) under load");
+        }
+
+        try
+        {
+            if (logWriter != null)
+            {
+                logWriter.close();
+            }
+            if (binaryLog != null)
+            {
+                binaryLog.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to close log file: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package helpers;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Where the time goes in the cafe: latency histograms per customer command and per stage of a drink
+// (waiting for a machine, brewing, sitting on the tray) plus whole orders from placement to collection,
+// and how many orders admission control turned away.
+// Also the order listener of every order, passing drink counts on to the cafe's counters.
+// Reported as text for the STATS command and in Prometheus text format for the metrics endpoint.
+
+public class CafeMetrics implements OrderListener
+{
+    public static final String[] commands = {"place_order", "order_status", "collect", "exit", "stats", "protocol", "subscribe", "unsubscribe", "unknown"};
+    private static final double[] quantiles = {0.5, 0.9, 0.99};
+
+    private final CafeCounters counters;
+    private final Map<DrinkType, BrewingStation> stations;
+    private final long openedNanos = System.nanoTime();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private final Map<String, LatencyHistogram> commandTimes = new LinkedHashMap<>(); // Fixed keys, filled in the constructor
+    private final LatencyHistogram[] queueWait = new LatencyHistogram[DrinkType.values().length]; // WAITING -> BREWING
+    private final LatencyHistogram[] brewTime = new LatencyHistogram[DrinkType.values().length]; // On the machine
+    private final LatencyHistogram[] trayDwell = new LatencyHistogram[DrinkType.values().length]; // TRAY -> collected
+    private final LatencyHistogram orderTime = new LatencyHistogram(); // Placed -> collected
+    private final LongAdder[] rejections = new LongAdder[OrderRejectedException.Reason.values().length];
+
+    public CafeMetrics(CafeCounters counters, Map<DrinkType, BrewingStation> stations)
+    {
+        this.counters = counters;
+        this.stations = stations;
+        for (String command : commands)
+        {
+            commandTimes.put(command, new LatencyHistogram());
+        }
+        for (DrinkType type : DrinkType.values())
+        {
+            queueWait[type.ordinal()] = new LatencyHistogram();
+            brewTime[type.ordinal()] = new LatencyHistogram();
+            trayDwell[type.ordinal()] = new LatencyHistogram();
+        }
+        for (int i = 0; i < rejections.length; i++)
+        {
+            rejections[i] = new LongAdder();
+        }
+    }
+
+    // Histogram for one of the commands above, unknown commands share the "unknown" one
+    public LatencyHistogram command(String name)
+    {
+        LatencyHistogram histogram = commandTimes.get(name);
+        return histogram != null ? histogram : commandTimes.get("unknown");
+    }
+
+    public void recordBrew(DrinkType type, long millis)
+    {
+        brewTime[type.ordinal()].recordMillis(millis);
+    }
+
+    public void recordOrderCollected(long millis)
+    {
+        orderTime.recordMillis(millis);
+    }
+
+    public void recordRejection(OrderRejectedException.Reason reason)
+    {
+        rejections[reason.ordinal()].increment();
+    }
+
+    public long getRejections(OrderRejectedException.Reason reason)
+    {
+        return rejections[reason.ordinal()].sum();
+    }
+
+    @Override
+    public void onDrinksChanged(Order order, DrinkType type, DrinkState from, DrinkState to, int count)
+    {
+        counters.onDrinksChanged(order, type, from, to, count);
+    }
+
+    @Override
+    public void onDrinkLeftState(Order order, DrinkType type, DrinkState from, DrinkState to, long millisInState)
+    {
+        if (from == DrinkState.WAITING && to == DrinkState.BREWING)
+        {
+            queueWait[type.ordinal()].recordMillis(millisInState);
+        }
+        else if (from == DrinkState.TRAY && to == null && order.isCollected())
+        {
+            trayDwell[type.ordinal()].recordMillis(millisInState);
+        }
+    }
+
+    // Multi-line reply to the STATS command, continuation lines start with "- " like the order status
+    public String toStatsText()
+    {
+        StringBuilder text = new StringBuilder("[Barista]: Cafe stats:\n");
+        for (Map.Entry<String, LatencyHistogram> command : commandTimes.entrySet())
+        {
+            appendSummary(text, command.getKey() + " command", command.getValue());
+        }
+        for (DrinkType type : DrinkType.values())
+        {
+            appendSummary(text, type.getKey() + " queue wait", queueWait[type.ordinal()]);
+            appendSummary(text, type.getKey() + " brewing", brewTime[type.ordinal()]);
+            appendSummary(text, type.getKey() + " on tray", trayDwell[type.ordinal()]);
+        }
+        appendSummary(text, "order placed to collected", orderTime);
+        text.append("- orders turned away:");
+        for (OrderRejectedException.Reason reason : OrderRejectedException.Reason.values())
+        {
+            text.append(' ').append(reasonLabel(reason)).append(' ').append(getRejections(reason));
+        }
+        text.append('\n');
+
+        for (DrinkType type : DrinkType.values())
+        {
+            BrewingStation station = stations.get(type);
+            text.append(String.format(Locale.ROOT, "- %s machines: %d/%d in use, busy %.0f%% of the time since opening%n",
+                    type.getKey(), station.getInUse(), station.getCapacity(), 100 * busyFraction(type)));
+        }
+        text.append("- threads: ").append(threads.getThreadCount()).append(" platform, ")
+                .append(CafeThreads.getRunningCount()).append(" cafe (customer handlers, workers and dispatcher)");
+        return text.toString();
+    }
+
+    private static void appendSummary(StringBuilder text, String label, LatencyHistogram histogram)
+    {
+        text.append("- ").append(label).append(": ").append(histogram.getCount());
+        if (histogram.getCount() > 0)
+        {
+            text.append(", p50 ").append(duration(histogram.percentileMicros(0.5)))
+                    .append(", p90 ").append(duration(histogram.percentileMicros(0.9)))
+                    .append(", p99 ").append(duration(histogram.percentileMicros(0.99)))
+                    .append(", max ").append(duration(histogram.getMaxMicros()));
+        }
+        text.append('\n');
+    }
+
+    // e.g. "0.2 ms" or "31.5 s"
+    private static String duration(long micros)
+    {
+        return micros < 10_000_000
+                ? String.format(Locale.ROOT, "%.1f ms", micros / 1e3)
+                : String.format(Locale.ROOT, "%.1f s", micros / 1e6);
+    }
+
+    // Share of the machines' time spent brewing since the cafe opened, against the current number of machines
+    private double busyFraction(DrinkType type)
+    {
+        double openMicros = (System.nanoTime() - openedNanos) / 1e3 * stations.get(type).getCapacity();
+        return openMicros > 0 ? Math.min(1, brewTime[type.ordinal()].getSumMicros() / openMicros) : 0;
+    }
+
+    // Everything above in the Prometheus text exposition format
+    public String toPrometheus()
+    {
+        StringBuilder text = new StringBuilder();
+        header(text, "cafe_command_duration_seconds", "summary", "Time to handle a customer command");
+        for (Map.Entry<String, LatencyHistogram> command : commandTimes.entrySet())
+        {
+            appendPrometheus(text, "cafe_command_duration_seconds", "command=\"" + command.getKey() + "\"", command.getValue());
+        }
+        header(text, "cafe_drink_queue_seconds", "summary", "Time a drink waited for a brewing machine");
+        for (DrinkType type : DrinkType.values())
+        {
+            appendPrometheus(text, "cafe_drink_queue_seconds", typeLabel(type), queueWait[type.ordinal()]);
+        }
+        header(text, "cafe_drink_brew_seconds", "summary", "Time a drink spent on a brewing machine");
+        for (DrinkType type : DrinkType.values())
+        {
+            appendPrometheus(text, "cafe_drink_brew_seconds", typeLabel(type), brewTime[type.ordinal()]);
+        }
+        header(text, "cafe_drink_tray_seconds", "summary", "Time a drink sat on the tray before it was collected");
+        for (DrinkType type : DrinkType.values())
+        {
+            appendPrometheus(text, "cafe_drink_tray_seconds", typeLabel(type), trayDwell[type.ordinal()]);
+        }
+        header(text, "cafe_order_seconds", "summary", "Time from placing an order to collecting it");
+        appendPrometheus(text, "cafe_order_seconds", null, orderTime);
+
+        header(text, "cafe_orders_rejected_total", "counter", "Orders turned away by admission control");
+        for (OrderRejectedException.Reason reason : OrderRejectedException.Reason.values())
+        {
+            sample(text, "cafe_orders_rejected_total", "reason=\"" + reasonLabel(reason) + "\"", getRejections(reason));
+        }
+
+        header(text, "cafe_brewing_slots_in_use", "gauge", "Brewing machines currently in use");
+        for (DrinkType type : DrinkType.values())
+        {
+            sample(text, "cafe_brewing_slots_in_use", typeLabel(type), stations.get(type).getInUse());
+        }
+        header(text, "cafe_brewing_slots", "gauge", "Brewing machines in the cafe");
+        for (DrinkType type : DrinkType.values())
+        {
+            sample(text, "cafe_brewing_slots", typeLabel(type), stations.get(type).getCapacity());
+        }
+        header(text, "cafe_drinks", "gauge", "Drinks in each state");
+        for (DrinkType type : DrinkType.values())
+        {
+            for (DrinkState state : DrinkState.values())
+            {
+                sample(text, "cafe_drinks", typeLabel(type) + ",state=\"" + state.name().toLowerCase() + "\"",
+                        counters.getDrinks(type, state));
+            }
+        }
+        header(text, "cafe_clients", "gauge", "Customers in the cafe");
+        sample(text, "cafe_clients", "state=\"in_cafe\"", counters.getClientsInCafe());
+        sample(text, "cafe_clients", "state=\"waiting\"", counters.getClientsWaiting());
+        header(text, "cafe_threads", "gauge", "Live threads");
+        sample(text, "cafe_threads", "kind=\"platform\"", threads.getThreadCount());
+        sample(text, "cafe_threads", "kind=\"cafe\"", CafeThreads.getRunningCount());
+        return text.toString();
+    }
+
+    // e.g. "order_too_large"
+    private static String reasonLabel(OrderRejectedException.Reason reason)
+    {
+        return reason.name().toLowerCase(Locale.ROOT);
+    }
+
+    private static String typeLabel(DrinkType type)
+    {
+        return "type=\"" + type.getKey() + "\"";
+    }
+
+    private static void header(StringBuilder text, String name, String type, String help)
+    {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void appendPrometheus(StringBuilder text, String name, String labels, LatencyHistogram histogram)
+    {
+        String prefix = labels == null ? "" : labels + ",";
+        for (double quantile : quantiles)
+        {
+            sample(text, name, prefix + "quantile=\"" + quantile + "\"", histogram.percentileMicros(quantile) / 1e6);
+        }
+        sample(text, name + "_sum", labels, histogram.getSumMicros() / 1e6);
+        sample(text, name + "_count", labels, histogram.getCount());
+    }
+
+    private static void sample(StringBuilder text, String name, String labels, double value)
+    {
+        text.append(name);
+        if (labels != null)
+        {
+            text.append('{').append(labels).append('}');
+        }
+        text.append(' ');
+        if (value == Math.rint(value))
+        {
+            text.append((long) value);
+        } else {
+            text.append(value);
+        }
+        text.append('\n');
+    }
+}
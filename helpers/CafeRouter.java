@@ -0,0 +1,285 @@
+package helpers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+// Front door of a cafe cluster.
+// Speaks the customer line protocol: it reads the customer's name, picks a node by consistent hashing of that name,
+// replays the name to the node and then relays bytes both ways until either side hangs up.
+// The same name always lands on the same node (so an order recovered after a restart is found again);
+// if that node is down the customer goes to the next node in the list.
+// Every few seconds the router prints the counts of the whole cluster in the usual cafe log format.
+
+public class CafeRouter implements Runnable
+{
+    private static final int pointsPerNode = 64; // Positions of each node on the hash ring, evens out the share of customers
+    private static final int maxNameLength = 1024;
+    private static final int connectTimeoutMillis = 2000;
+
+    private final int port;
+    private final List<Node> nodes;
+    private final TreeMap<Integer, Integer> ring = new TreeMap<>(); // Hash position -> node index
+    private final long statsMillis;
+
+    // A cafe behind the router; stats may return null when the node cannot report them
+    public record Node(String name, InetSocketAddress address, Supplier<CafeSnapshot> stats) {}
+
+    public CafeRouter(int port, List<Node> nodes, long statsMillis)
+    {
+        this.port = port;
+        this.nodes = List.copyOf(nodes);
+        this.statsMillis = statsMillis;
+        for (int i = 0; i < nodes.size(); i++)
+        {
+            for (int point = 0; point < pointsPerNode; point++)
+            {
+                ring.put(hash(nodes.get(i).name() + "#" + point), i);
+            }
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        if (statsMillis > 0)
+        {
+            CafeThreads.startDaemon("cluster-log", this::logClusterState);
+        }
+
+        try(ServerSocket serverSocket = new ServerSocket(port))
+        {
+            System.out.println("Cafe cluster is open on port " + port + " with " + nodes.size() + " node(s). Waiting for customers...");
+            while (true)
+            {
+                Socket client = serverSocket.accept();
+                CafeThreads.start("route-" + client.getPort(), () -> route(client));
+            }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    // Node that owns a customer name for the given attempt: its owner on the ring first, then the nodes after it in the list
+    public int nodeFor(String customerName, int attempt)
+    {
+        Map.Entry<Integer, Integer> owner = ring.ceilingEntry(hash(customerName));
+        int first = (owner != null ? owner : ring.firstEntry()).getValue();
+        return (first + attempt) % nodes.size();
+    }
+
+    private void route(Socket client)
+    {
+        try (client)
+        {
+            InputStream fromClient = client.getInputStream();
+            OutputStream toClient = client.getOutputStream();
+            byte[] nameLine = readLine(fromClient);
+            if (nameLine == null) return;
+            String customerName = new String(nameLine, StandardCharsets.UTF_8).trim();
+
+            try (Socket node = connect(customerName))
+            {
+                if (node == null)
+                {
+                    System.out.println("No cafe node is reachable for " + customerName + ".");
+                    return; // The customer sees the cafe disappear, as with a single server that is down
+                }
+                OutputStream toNode = node.getOutputStream();
+                toNode.write(nameLine);
+                toNode.write('\n');
+                toNode.flush();
+
+                // Customer -> node on a second thread, node -> customer on this one
+                Thread upstream = CafeThreads.start("route-up-" + client.getPort(), () -> relay(fromClient, toNode, node));
+                relay(node.getInputStream(), toClient, client);
+                upstream.join();
+            }
+        } catch (IOException e) {
+            // Either side hung up
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Socket connect(String customerName)
+    {
+        for (int attempt = 0; attempt < nodes.size(); attempt++)
+        {
+            Node node = nodes.get(nodeFor(customerName, attempt));
+            Socket socket = new Socket();
+            try
+            {
+                socket.setTcpNoDelay(true);
+                socket.connect(node.address(), connectTimeoutMillis);
+                return socket;
+            } catch (IOException e) {
+                System.out.println("Cafe node " + node.name() + " is not reachable: " + e.getMessage());
+                closeQuietly(socket);
+            }
+        }
+        return null;
+    }
+
+    // Copies until the source ends, then closes the other side so its reader ends too
+    private static void relay(InputStream from, OutputStream to, Socket toClose)
+    {
+        byte[] buffer = new byte[8192];
+        try
+        {
+            int read;
+            while ((read = from.read(buffer)) != -1)
+            {
+                to.write(buffer, 0, read);
+                to.flush();
+            }
+        } catch (IOException e) {
+            // Connection closed from the other direction
+        } finally {
+            closeQuietly(toClose);
+        }
+    }
+
+    // The handshake line without its line break, null if the customer left before sending it
+    private static byte[] readLine(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int next;
+        while ((next = in.read()) != -1 && next != '\n')
+        {
+            if (line.size() >= maxNameLength) return null;
+            if (next != '\r') line.write(next);
+        }
+        return next == -1 ? null : line.toByteArray();
+    }
+
+    private static void closeQuietly(Socket socket)
+    {
+        try
+        {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    // FNV-1a with a final mix, so similar names and node labels spread over the ring
+    private static int hash(String key)
+    {
+        int hash = 0x811C9DC5;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8))
+        {
+            hash ^= b;
+            hash *= 0x01000193;
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+
+
+    // Prints the summed counts of all nodes whenever they changed
+    private void logClusterState()
+    {
+        String last = "";
+        while (true)
+        {
+            try
+            {
+                Thread.sleep(statsMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            CafeSnapshot total = new CafeSnapshot(System.currentTimeMillis(), 0, 0, 0, 0, 0, 0, 0, 0);
+            StringBuilder perNode = new StringBuilder("Clients per node:");
+            for (Node node : nodes)
+            {
+                CafeSnapshot snapshot = node.stats().get();
+                perNode.append(' ').append(node.name()).append('=').append(snapshot != null ? snapshot.clientsInCafe() : "n/a");
+                if (snapshot != null)
+                {
+                    total = total.plus(snapshot);
+                }
+            }
+
+            String text = total.toConsoleText("Cluster Log (" + nodes.size() + " nodes)") + perNode;
+            if (!text.equals(last))
+            {
+                System.out.println(text);
+                last = text;
+            }
+        }
+    }
+
+    // Stats of a node in another process, read from its metrics endpoint (-Dcafe.metrics.port on that node)
+    public static Supplier<CafeSnapshot> scrapeMetrics(String host, int metricsPort)
+    {
+        HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(1)).build();
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://" + host + ":" + metricsPort + "/metrics"))
+                .timeout(Duration.ofSeconds(1)).build();
+        return () -> {
+            try
+            {
+                return parseMetrics(http.send(request, HttpResponse.BodyHandlers.ofString()).body());
+            } catch (IOException e) {
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        };
+    }
+
+    // Picks the client and drink gauges out of the Prometheus text written by CafeMetrics
+    static CafeSnapshot parseMetrics(String text)
+    {
+        int[][] drinks = new int[DrinkType.values().length][DrinkState.values().length];
+        int inCafe = 0;
+        long waiting = 0;
+        for (String line : text.split("\n"))
+        {
+            int space = line.lastIndexOf(' ');
+            if (line.startsWith("#") || space < 0) continue;
+            String sample = line.substring(0, space);
+            long value = (long) Double.parseDouble(line.substring(space + 1));
+
+            if (sample.equals("cafe_clients{state=\"in_cafe\"}")) inCafe = (int) value;
+            else if (sample.equals("cafe_clients{state=\"waiting\"}")) waiting = value;
+            else if (sample.startsWith("cafe_drinks{"))
+            {
+                for (DrinkType type : DrinkType.values())
+                {
+                    for (DrinkState state : DrinkState.values())
+                    {
+                        if (sample.equals("cafe_drinks{type=\"" + type.getKey() + "\",state=\"" + state.name().toLowerCase() + "\"}"))
+                        {
+                            drinks[type.ordinal()][state.ordinal()] = (int) value;
+                        }
+                    }
+                }
+            }
+        }
+        int tea = DrinkType.TEA.ordinal();
+        int coffee = DrinkType.COFFEE.ordinal();
+        return new CafeSnapshot(System.currentTimeMillis(), inCafe, waiting,
+                drinks[tea][DrinkState.WAITING.ordinal()], drinks[coffee][DrinkState.WAITING.ordinal()],
+                drinks[tea][DrinkState.BREWING.ordinal()], drinks[coffee][DrinkState.BREWING.ordinal()],
+                drinks[tea][DrinkState.TRAY.ordinal()], drinks[coffee][DrinkState.TRAY.ordinal()]);
+    }
+}
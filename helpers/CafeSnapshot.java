@@ -0,0 +1,40 @@
+package helpers;
+
+// Point-in-time counts of the cafe, as written to the console and the JSON log.
+
+public record CafeSnapshot(long timestampMillis,
+                           int clientsInCafe,
+                           long clientsWaiting,
+                           int waitingTeas,
+                           int waitingCoffees,
+                           int brewingTeas,
+                           int brewingCoffees,
+                           int trayTeas,
+                           int trayCoffees)
+{
+    // Counts of two cafes together, e.g. to report a whole cluster
+    public CafeSnapshot plus(CafeSnapshot other)
+    {
+        return new CafeSnapshot(Math.max(timestampMillis, other.timestampMillis),
+                clientsInCafe + other.clientsInCafe, clientsWaiting + other.clientsWaiting,
+                waitingTeas + other.waitingTeas, waitingCoffees + other.waitingCoffees,
+                brewingTeas + other.brewingTeas, brewingCoffees + other.brewingCoffees,
+                trayTeas + other.trayTeas, trayCoffees + other.trayCoffees);
+    }
+
+    // Human readable block shown in the server terminal
+    public String toConsoleText()
+    {
+        return toConsoleText("Cafe Log");
+    }
+
+    public String toConsoleText(String title)
+    {
+        return "--- " + title + " ---\n" +
+                "Number of clients in the cafe: " + clientsInCafe + "\n" +
+                "Number of clients waiting for orders: " + clientsWaiting + "\n" +
+                "Items in waiting area: " + waitingTeas + " tea(s), " + waitingCoffees + " coffee(s)\n" +
+                "Items in brewing area: " + brewingTeas + " tea(s), " + brewingCoffees + " coffee(s)\n" +
+                "Items in tray area: " + trayTeas + " tea(s), " + trayCoffees + " coffee(s)\n";
+    }
+}
@@ -0,0 +1,95 @@
+package helpers;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Single place where the server creates its threads and pools.
+// In virtual mode every customer handler, worker and clock thread runs on a virtual thread,
+// so blocking socket reads no longer hold on to a platform thread.
+
+public final class CafeThreads
+{
+    private static volatile boolean virtual = false;
+    private static final AtomicInteger running = new AtomicInteger(); // Threads started through start/startDaemon that are still running
+
+    private CafeThreads() {}
+
+    // Must be called before the cafe is opened
+    public static void useVirtualThreads(boolean useVirtual)
+    {
+        virtual = useVirtual;
+    }
+
+    public static boolean isVirtual()
+    {
+        return virtual;
+    }
+
+    // Threads started here and still running; unlike the JVM's thread count this includes virtual threads
+    public static int getRunningCount()
+    {
+        return running.get();
+    }
+
+    private static Runnable counted(Runnable task)
+    {
+        return () -> {
+            running.incrementAndGet();
+            try
+            {
+                task.run();
+            } finally {
+                running.decrementAndGet();
+            }
+        };
+    }
+
+    // Start a named thread in the configured mode
+    public static Thread start(String name, Runnable task)
+    {
+        task = counted(task);
+        if (virtual)
+        {
+            return Thread.ofVirtual().name(name).start(task);
+        }
+        Thread thread = new Thread(task, name);
+        thread.start();
+        return thread;
+    }
+
+    // Same as start, but the thread does not keep the JVM alive
+    public static Thread startDaemon(String name, Runnable task)
+    {
+        task = counted(task);
+        if (virtual)
+        {
+            return Thread.ofVirtual().name(name).start(task); // Virtual threads are always daemons
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    // Pool of at most platformThreads threads, or one virtual thread per task in virtual mode
+    public static ExecutorService newPool(String name, int platformThreads)
+    {
+        if (virtual)
+        {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+        }
+        return Executors.newFixedThreadPool(platformThreads, Thread.ofPlatform().name(name + "-", 0).factory());
+    }
+
+    // Scheduler for timed events; its threads never keep the JVM alive
+    public static ScheduledExecutorService newScheduler(String name, int threads)
+    {
+        if (virtual)
+        {
+            return Executors.newScheduledThreadPool(threads, Thread.ofVirtual().name(name + "-", 0).factory());
+        }
+        return Executors.newScheduledThreadPool(threads, Thread.ofPlatform().name(name + "-", 0).daemon(true).factory());
+    }
+}
@@ -1,37 +1,76 @@
 package helpers;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
-import java.util.Scanner;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
 
 // Facilitates communication between a customer and the cafe server.
+// One blocking socket and reader thread per customer, replies printed as they come; programs that drive many customers
+// and need each reply matched to its command should use CafeClient instead.
 
 public class CustomerConnection implements AutoCloseable
 {
-    private boolean isNormalExit = false;
-    private final int port = 2610;
+    private volatile boolean isNormalExit = false;
+    private static final String defaultHost = "localhost";
+    private static final int defaultPort = 2610;
+    private static final int maxLineLength = 65536;
+    private static final String readyMessage = "your order is ready to collect!";
     private final Socket socket;
-    private final Scanner reader;
+    private final InputStream reader;
+    private final OutputStream out;
     private final PrintWriter writer;
+    private boolean framed = false; // Decided in the constructor
+    private int nextRequestId = 1; // Guarded by out
+    private final List<String> earlyMessages = new ArrayList<>(); // Pushes that arrived during the protocol switch
 
     public CustomerConnection(String name) throws Exception {
+        this(name, defaultHost, defaultPort);
+    }
+
+    public CustomerConnection(String name, String host, int port) throws Exception {
+        this(name, host, port, false);
+    }
+
+    // useFrames asks the barista for framed messages (see FrameCodec) after the name handshake, so each reply arrives
+    // whole however many lines it has; they are still handed on line by line. Stays with text lines if the barista can't.
+    public CustomerConnection(String name, String host, int port, boolean useFrames) throws Exception {
         try
         {
             //Connecting to the server and creating objects for communication
-            socket = new Socket("localhost", port);
-            reader = new Scanner(socket.getInputStream());
-            writer = new PrintWriter(socket.getOutputStream(), true);
+            socket = new Socket(host, port);
+            reader = new BufferedInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
+            writer = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), true);
 
             //Send customer name
             writer.println(name);
 
 
             //Parsing the response
-            String response = reader.nextLine();
-            if (response.trim().compareToIgnoreCase("success") != 0)
+            String response = FrameCodec.readLine(reader, maxLineLength);
+            if (response == null || response.trim().compareToIgnoreCase("success") != 0)
                 throw new Exception("Barista kicked you out after hearing your name...");
 
+            if (useFrames)
+            {
+                writer.println(FrameCodec.handshake);
+                String answer;
+                while ((answer = FrameCodec.readLine(reader, maxLineLength)) != null && answer.endsWith(readyMessage))
+                {
+                    earlyMessages.add(answer); // An order from before a restart may be ready already
+                }
+                framed = FrameCodec.handshake.equals(answer);
+            }
+
         }catch(IOException e){
             throw new Exception("Cafe magically disappeared...");
         }
@@ -39,11 +78,20 @@ public class CustomerConnection implements AutoCloseable
 
     // Listens for server messages and logs them in real-time to keep the client informed of status updates
     public void receiveBaristasMessages(Runnable onServerDisconnect) {
-        new Thread(() -> {
+        receiveBaristasMessages(System.out::println, onServerDisconnect, Thread.ofPlatform());
+    }
+
+    // Same as above, but hands every line to onMessage on a thread made by the given builder
+    // (e.g. Thread.ofVirtual() when one JVM drives thousands of connections)
+    public void receiveBaristasMessages(Consumer<String> onMessage, Runnable onServerDisconnect, Thread.Builder threads) {
+        threads.start(() -> {
             try {
-                while (reader.hasNextLine()) { // Keep reading messages from the server
-                    String message = reader.nextLine(); // Read message
-                    System.out.println(message);
+                earlyMessages.forEach(onMessage);
+                String message;
+                while ((message = nextMessage()) != null) { // Keep reading messages from the server
+                    for (String line : message.split("\n")) {
+                        onMessage.accept(line);
+                    }
                 }
                 // check if it was a normal exit
                 if (!isNormalExit) {
@@ -60,7 +108,32 @@ public class CustomerConnection implements AutoCloseable
                     System.out.println("Error during cleanup: " + e.getMessage());
                 }
             }
-        }).start();
+        });
+    }
+
+
+    // Next reply or push, null once the server has closed the connection
+    private String nextMessage() throws IOException {
+        if (!framed) {
+            return FrameCodec.readLine(reader, maxLineLength);
+        }
+        FrameCodec.Frame frame = FrameCodec.read(reader);
+        return frame == null ? null : frame.text();
+    }
+
+    private void send(String command) {
+        if (!framed) {
+            writer.println(command);
+            return;
+        }
+        synchronized (out) {
+            try {
+                out.write(FrameCodec.encode(FrameCodec.request, nextRequestId++, command));
+                out.flush();
+            } catch (IOException e) {
+                // Like the text writer: a lost connection shows up on the reading side
+            }
+        }
     }
 
 
@@ -68,32 +141,56 @@ public class CustomerConnection implements AutoCloseable
     public void placeOrder(int teaCount,int coffeeCount)
     {
         //Send request to place an Order
-        writer.println("PLACE_ORDER "+teaCount+" "+coffeeCount);
+        send("PLACE_ORDER "+teaCount+" "+coffeeCount);
     }
 
     public void orderStatus()
     {
         //Send request to see order status
-        writer.println("ORDER_STATUS");
+        send("ORDER_STATUS");
     }
 
     public void attemptCollection()
     {
         //Send request to collect an order
-        writer.println("COLLECT");
+        send("COLLECT");
+    }
+
+    public void requestStats()
+    {
+        //Send request to see the cafe's latency and utilisation stats
+        send("STATS");
+    }
+
+    public void subscribe(boolean everyOrder)
+    {
+        //Ask for drink events as they happen, of every order for a display
+        send(everyOrder ? "SUBSCRIBE ALL" : "SUBSCRIBE");
+    }
+
+    public void unsubscribe()
+    {
+        //Stop the drink events
+        send("UNSUBSCRIBE");
     }
 
     public void exitCafe()
     {
         isNormalExit = true;// Set the flag for a normal exit
-        writer.println("EXIT"); //Send exit status
+        send("EXIT"); //Send exit status
     }
 
     @Override
     public void close() {
         //Close reader and writer
-        reader.close();
         writer.close();
+        try
+        {
+            reader.close();
+            socket.close();
+        } catch (IOException e) {
+            // Already closed by the streams
+        }
 
     }
 }
@@ -2,64 +2,131 @@ package helpers;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 
 // Handles individual customer requests on the server side.
 // Parses commands, manages customer state, and interacts with the `Cafe` class.
 
 public class CustomerHandler implements Runnable
 {
+    private static final int maxLineLength = 8192; // Longer lines are treated as a broken client
+    public static final String failedReply = "[Barista]: Sorry, something went wrong with that request. Please try again.";
+
     private final Socket socket;
+    private final int clientID; // Session ID from the cafe's customer registry
     private final Cafe cafe;
-    private final HashMap<String, String> customers;
     private String customerName = null;
     private volatile boolean isRunning = true; // Control flag for the command loops
-    private volatile boolean isReadyCheckActive = false; // To track readiness-check status
+    private CompletableFuture<Order> announcedReady = null; // Ready future we already hooked the "order ready" message to, only used by the command thread
+    private volatile OrderSubscriptions.Subscription subscription = null; // Drink events streamed to this customer, null unless subscribed
+    private final Executor pushes; // Writes the "order ready" message, so a slow customer never holds up the thread finishing the order
 
-    public CustomerHandler(Socket socket, Cafe cafe,HashMap<String, String> customers)
+    public CustomerHandler(Socket socket, int clientID, Cafe cafe)
     {
         this.socket = socket;
+        this.clientID = clientID;
+        this.cafe = cafe;
+        this.pushes = CafeThreads.newPool("customer-" + clientID + "-pushes", 1); // Its thread starts with the first push
+    }
+
+    // Used by the non-blocking front end, which owns the connection and feeds lines in itself
+    public CustomerHandler(int clientID, Cafe cafe)
+    {
+        this.socket = null;
+        this.clientID = clientID;
         this.cafe = cafe;
-        this.customers = customers;
+        this.pushes = Runnable::run; // Its writes only queue bytes for the selector, they never block
     }
 
     @Override
     public void run()
     {
-        String clientID = String.valueOf(socket.getPort()); //Use socket as an ID
-
-        try(Scanner scanner = new Scanner(socket.getInputStream());
-            PrintWriter writer = new PrintWriter(socket.getOutputStream(),true)){
+        try(InputStream in = new BufferedInputStream(socket.getInputStream());
+            ReplyWriter writer = ReplyWriter.forStream(socket.getOutputStream())){
 
             //Customer initialization
-            customerName = scanner.nextLine();
-            System.out.println(customerName+" walked into the cafe.");
-            customers.put(clientID,"IDLE");
-
-            //Send success response
-            writer.println("SUCCESS");
-
-            //Show log in terminal
-            cafe.cafeLogState();
+            String name = FrameCodec.readLine(in, maxLineLength);
+            if (name == null) return; // Left before giving a name
+            greet(name, writer);
 
-            //Main command handling loop
-            while(isRunning && scanner.hasNextLine())
+            //Main command handling loop: text lines, or frames once the customer has switched to them
+            while(isRunning)
             {
-                String request = scanner.nextLine().toLowerCase();
-                handleCommand(request,writer,clientID);
+                if (writer.isFramed())
+                {
+                    FrameCodec.Frame frame = FrameCodec.read(in);
+                    if (frame == null) break;
+                    handleFrame(frame, writer, in.available() > 0);
+                }
+                else
+                {
+                    String line = FrameCodec.readLine(in, maxLineLength);
+                    if (line == null) break;
+                    handleLine(line, writer);
+                }
             }
 
             } catch (IOException e){
             System.out.println("Connection error for"+customerName+": "+ e.getMessage());
         }finally {
-            cleanup(clientID);
+            cleanup();
+        }
+    }
+
+    // Registers the customer under the name they gave and acknowledges the handshake
+    public void greet(String name, PrintWriter writer)
+    {
+        customerName = name;
+        System.out.println(customerName+" walked into the cafe.");
+        cafe.setCustomerState(clientID, CustomerState.IDLE);
+
+        //Send success response
+        writer.println("SUCCESS");
+
+        //Back after a server restart: hand over the order left under this name
+        if (cafe.reclaimOrder(clientID, customerName) != null)
+        {
+            System.out.println(customerName + " is back for their order from before the restart.");
+            cafe.setCustomerState(clientID, CustomerState.WAITING);
+            notifyWhenReady(writer, clientID);
         }
+
+        //Show log in terminal
+        cafe.cafeLogState();
+    }
+
+    // Handles one command line, returns false once the customer has asked to leave
+    public boolean handleLine(String line, PrintWriter writer)
+    {
+        handleCommand(line.toLowerCase(), writer, clientID);
+        return isRunning;
+    }
+
+    // Handles one framed request: everything the command prints goes back as a single reply frame under the request's ID.
+    // With more requests already waiting the reply isn't flushed yet, so pipelined replies leave in one write.
+    // A request that fails still gets its reply, ending in the error line, so the customer isn't left waiting for it.
+    public boolean handleFrame(FrameCodec.Frame frame, ReplyWriter writer, boolean more)
+    {
+        if (frame.type() != FrameCodec.request) return isRunning; // Clients only send requests
+        writer.beginReply(frame.requestId());
+        try
+        {
+            handleCommand(frame.text().toLowerCase(), writer, clientID);
+        } catch (RuntimeException e) {
+            System.out.println("Request \"" + frame.text() + "\" from " + customerName + " failed: " + e);
+            writer.println(failedReply);
+        } finally {
+            writer.endReply(!more);
+        }
+        return isRunning;
     }
 
     // Processes customer commands (e.g., "place_order", "order_status", "collect").
-    private void handleCommand(String request, PrintWriter writer, String clientID)
+    private void handleCommand(String request, PrintWriter writer, int clientID)
     {
+        long startNanos = System.nanoTime();
         String[] parts = request.split(" ");
         switch(parts[0])
         {
@@ -75,15 +142,33 @@ public class CustomerHandler implements Runnable
             case "exit":
                 handleExit(writer,clientID);
                 break;
+            case "stats":
+                writer.println(cafe.getMetrics().toStatsText());
+                break;
+            case "protocol":
+                handleProtocol(parts, writer);
+                break;
+            case "subscribe":
+                handleSubscribe(parts, writer, clientID);
+                break;
+            case "unsubscribe":
+                handleUnsubscribe(writer);
+                break;
             default:
                 writer.println("[Barista]: You gave me an unknown command. Please try again.");
         }
+        cafe.getMetrics().command(parts[0]).recordNanos(System.nanoTime() - startNanos);
     }
 
     // VARIOUS COMMAND HANDLING METHODS
     // Interacts with cafe and orders to build appropriate response
-    private void handlePlaceOrder(String[] parts, PrintWriter writer, String clientID)
+    private void handlePlaceOrder(String[] parts, PrintWriter writer, int clientID)
     {
+        if (parts.length < 3)
+        {
+            writer.println("[Barista]: Invalid order format. Please specify numbers for teas and coffees.");
+            return;
+        }
         try
         {
             //Parse order details
@@ -107,37 +192,52 @@ public class CustomerHandler implements Runnable
                 response.append(coffees).append(" coffee(s)");
             }
 
+            //When to come back, for the whole order including earlier drinks
+            Order order = cafe.getActiveOrder(clientID);
+            long etaSeconds = order != null ? order.getEtaSeconds() : -1;
+            if (etaSeconds >= 0)
+            {
+                response.append(". ETA ").append(etaSeconds).append("s");
+            }
+
             writer.println(response);
-            customers.put(clientID, "WAITING");
+            cafe.setCustomerState(clientID, CustomerState.WAITING);
 
-            // Begin checking for order completion to inform a customer
-            checkOrderReady(writer,clientID);
+            // Have the order tell the customer once it is complete
+            notifyWhenReady(writer,clientID);
         }catch (NumberFormatException e) {
             writer.println("[Barista]: Invalid order format. Please specify numbers for teas and coffees.");
+        }catch (OrderRejectedException e) {
+            writer.println(e.toReply()); //Turned away by admission control, nothing was ordered
         }
     }
 
-    private void handleOrderStatus(PrintWriter writer, String clientID)
+    private void handleOrderStatus(PrintWriter writer, int clientID)
     {
-        Order order = cafe.getActiveOrder(Integer.parseInt(clientID));
+        Order order = cafe.getActiveOrder(clientID);
         if(order != null)
         {
-            writer.println(order.getOrderStatus());
+            if (writer instanceof ReplyWriter reply)
+            {
+                reply.printEncoded(order.getOrderStatusLine()); // Cached bytes until the order changes
+            } else {
+                writer.println(order.getOrderStatus());
+            }
         } else {
             writer.println("[Barista]: Your currently have no active orders");
         }
     }
 
-    private void handleCollect(PrintWriter writer, String clientID)
+    private void handleCollect(PrintWriter writer, int clientID)
     {
         if(cafe.isCollectable(clientID))
         {
-            customers.put(clientID,"IDLE");
+            cafe.setCustomerState(clientID, CustomerState.IDLE);
             cafe.cafeLogState();
             writer.println("[Barista]: You have collected your order! Enjoy!");
             System.out.println(customerName + " has collected his order.");
         }
-        else if(cafe.getActiveOrder(Integer.parseInt(clientID)) == null)
+        else if(cafe.getActiveOrder(clientID) == null)
         {
             writer.println("[Barista]: You didn't order yet!");
         }
@@ -147,21 +247,72 @@ public class CustomerHandler implements Runnable
         }
     }
 
-    private void handleExit(PrintWriter writer, String clientID)
+    // Switches to frames when the customer asks for the version we speak; anything else keeps text lines ("PROTOCOL 1")
+    private void handleProtocol(String[] parts, PrintWriter writer)
+    {
+        ReplyWriter reply = writer instanceof ReplyWriter replyWriter ? replyWriter : null;
+        boolean wantsFrames = parts.length == 2 && parts[1].equals(String.valueOf(FrameCodec.version));
+        if (reply != null && wantsFrames && !reply.isFramed())
+        {
+            reply.startFrames(FrameCodec.handshake);
+        } else {
+            // The version in use, which can't change back once frames have started
+            writer.println(reply != null && reply.isFramed() ? FrameCodec.handshake : "PROTOCOL 1");
+        }
+    }
+
+    // Streams drink events (see OrderSubscriptions) of the customer's own orders, or of every order with "subscribe all"
+    // for a front-of-house display. A second subscribe replaces the first.
+    private void handleSubscribe(String[] parts, PrintWriter writer, int clientID)
+    {
+        boolean everyOrder = parts.length > 1 && parts[1].equals("all");
+        OrderSubscriptions.Subscription previous = subscription;
+        if (previous != null)
+        {
+            previous.close();
+        }
+        subscription = cafe.getSubscriptions().subscribe(
+                everyOrder ? order -> true : order -> cafe.getActiveOrder(clientID) == order,
+                events -> {
+                    if (!isRunning) return;
+                    if (writer instanceof ReplyWriter reply) {
+                        reply.printPush(events); // One frame, or one flush, per batch of events
+                    } else {
+                        writer.println(events);
+                    }
+                });
+        writer.println(everyOrder
+                ? "[Barista]: Subscribed to the drinks of every order. Events follow as EVENT lines."
+                : "[Barista]: Subscribed to the drinks of your orders. Events follow as EVENT lines.");
+    }
+
+    private void handleUnsubscribe(PrintWriter writer)
+    {
+        OrderSubscriptions.Subscription previous = subscription;
+        if (previous == null)
+        {
+            writer.println("[Barista]: You weren't subscribed.");
+            return;
+        }
+        previous.close();
+        subscription = null;
+        writer.println("[Barista]: Unsubscribed, no more events.");
+    }
+
+    private void handleExit(PrintWriter writer, int clientID)
     {
         try
         {
             isRunning = false; // Stop the main thread loop
-            isReadyCheckActive = false; // Stop order check
 
-            Order activeOrder = cafe.getActiveOrder(Integer.parseInt(clientID));
+            Order activeOrder = cafe.getActiveOrder(clientID);
             if(activeOrder != null)
             {
                 cafe.cancelOrder(clientID);
             }
 
             //Remove customer from the cafe
-            customers.remove(clientID);
+            cafe.removeCustomer(clientID);
             cafe.cafeLogState();
 
             writer.println("[Barista]: Goodbye, " + customerName + "! Come again!");
@@ -171,40 +322,45 @@ public class CustomerHandler implements Runnable
         }
     }
 
-    private void cleanup(String clientID)
+    // Called once the connection is gone, whichever way it ended
+    public void cleanup()
     {
-        customers.remove(clientID);
+        isRunning = false; // Stop pushing messages to a closed connection
+        OrderSubscriptions.Subscription previous = subscription;
+        if (previous != null)
+        {
+            previous.close();
+        }
+        if (pushes instanceof ExecutorService pool)
+        {
+            pool.shutdown();
+        }
+        cafe.removeCustomer(clientID);
         System.out.println(customerName + " has left the cafe.");
     }
 
 
-    // Runs a thread to monitor if a customer's order is ready.
-    // Notifies the customer as soon as the order is ready for collection.
-    private void checkOrderReady(PrintWriter writer, String clientID) {
-        if (isReadyCheckActive) return; // Prevent multiple threads for readiness check
+    // Hooks the "order ready" message onto the order's ready future.
+    // No thread waits for it: the brew (or transfer) that completes the order hands the message to pushes,
+    // which writes it from the connection's side instead of the clock thread that finished brewing.
+    private void notifyWhenReady(PrintWriter writer, int clientID) {
+        Order order = cafe.getActiveOrder(clientID);
+        if (order == null) return; // No active order
 
-        isReadyCheckActive = true; // Mark readiness check as active
-
-        new Thread(() -> {
-            try {
-                Order order = cafe.getActiveOrder(Integer.parseInt(clientID));
-                if (order == null) return; // No active order
-
-                synchronized (order.getLock()) {
-                    while (isRunning && !order.isReady()) {
-                        order.getLock().wait(); // Wait until order is ready or thread is stopped
-                    }
-                }
+        CompletableFuture<Order> ready = order.whenReady();
+        if (ready == announcedReady) return; // Already hooked for this round of drinks
+        announcedReady = ready;
 
-                // Notify customer if thread is still running
-                if (isRunning) {
-                    writer.println("[Barista]: " + customerName + ", your order is ready to collect!");
+        ready.thenRunAsync(() -> {
+            // Notify customer if they are still here
+            if (isRunning) {
+                String message = "[Barista]: " + customerName + ", your order is ready to collect!";
+                if (writer instanceof ReplyWriter reply) {
+                    reply.printPush(message); // A frame of its own once the customer uses frames
+                } else {
+                    writer.println(message);
                 }
-            } catch (InterruptedException e) {
-                System.out.println("Order readiness check interrupted for " + customerName);
-            } finally {
-                isReadyCheckActive = false; // Reset the flag
             }
-        }).start();
+        }, pushes);
     }
 }
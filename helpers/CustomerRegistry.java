@@ -0,0 +1,74 @@
+package helpers;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Customers in the cafe by session ID, with their state.
+// Lookups don't lock and updates only contend on the same hash bin, so connection handlers never queue up behind each other;
+// every change is passed on to the cafe counters, which keep the number of customers in the cafe and waiting.
+// Session IDs are handed out here rather than taken from the client port, which two hosts can share.
+
+public class CustomerRegistry
+{
+    private final ConcurrentHashMap<Integer, CustomerState> customers = new ConcurrentHashMap<>();
+    private final AtomicInteger nextSessionID = new AtomicInteger(1);
+    private final CafeCounters counters;
+
+    public CustomerRegistry(CafeCounters counters)
+    {
+        this.counters = counters;
+    }
+
+    // A new customer walks in: returns their session ID, registered as IDLE
+    public int enter()
+    {
+        int sessionID = nextSessionID.getAndIncrement();
+        enter(sessionID);
+        return sessionID;
+    }
+
+    // Registers a customer under an ID chosen by the caller; no change if they are already in
+    public void enter(int sessionID)
+    {
+        if (customers.putIfAbsent(sessionID, CustomerState.IDLE) == null)
+        {
+            counters.onCustomerChanged(null, CustomerState.IDLE);
+        }
+    }
+
+    // Moves a customer to another state; ignored once they have left, so a late update can't bring them back
+    public void setState(int sessionID, CustomerState state)
+    {
+        CustomerState previous = customers.replace(sessionID, state);
+        if (previous != null)
+        {
+            counters.onCustomerChanged(previous, state);
+        }
+    }
+
+    // The customer has left, whichever way; leaving twice is harmless
+    public void leave(int sessionID)
+    {
+        CustomerState previous = customers.remove(sessionID);
+        if (previous != null)
+        {
+            counters.onCustomerChanged(previous, null);
+        }
+    }
+
+    // State of a customer, null if they are not in the cafe
+    public CustomerState getState(int sessionID)
+    {
+        return customers.get(sessionID);
+    }
+
+    public int getClientsInCafe()
+    {
+        return counters.getClientsInCafe();
+    }
+
+    public long getClientsWaiting()
+    {
+        return counters.getClientsWaiting();
+    }
+}
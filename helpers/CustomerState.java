@@ -0,0 +1,9 @@
+package helpers;
+
+// What a customer in the cafe is doing
+
+public enum CustomerState
+{
+    IDLE,    // Connected, no order in progress
+    WAITING  // Waiting for an order to be ready
+}
@@ -0,0 +1,10 @@
+package helpers;
+
+// The states a single drink moves through, from being ordered to sitting on the tray.
+
+public enum DrinkState
+{
+    WAITING,
+    BREWING,
+    TRAY
+}
@@ -0,0 +1,56 @@
+package helpers;
+
+// Kinds of drinks the cafe brews, with their default brewing time and number of machines.
+// Adding a drink type here is enough for the dispatcher, transfers and counters to handle it.
+
+public enum DrinkType
+{
+    TEA("Tea", 30000, 2), //30 seconds to brew tea, 2 machines
+    COFFEE("Coffee", 45000, 2); //45 seconds to brew coffee, 2 machines
+
+    private final String displayName;
+    private final int defaultBrewTime;
+    private final int defaultCapacity;
+
+    DrinkType(String displayName, int defaultBrewTime, int defaultCapacity)
+    {
+        this.displayName = displayName;
+        this.defaultBrewTime = defaultBrewTime;
+        this.defaultCapacity = defaultCapacity;
+    }
+
+    // Name used in terminal output, e.g. "Tea"
+    public String getDisplayName()
+    {
+        return displayName;
+    }
+
+    // Key used in configuration, e.g. "tea"
+    public String getKey()
+    {
+        return name().toLowerCase();
+    }
+
+    public int getDefaultBrewTime()
+    {
+        return defaultBrewTime;
+    }
+
+    public int getDefaultCapacity()
+    {
+        return defaultCapacity;
+    }
+
+    // Looks a drink type up by its configuration key, null if there is none
+    public static DrinkType fromKey(String key)
+    {
+        for (DrinkType type : values())
+        {
+            if (type.getKey().equals(key))
+            {
+                return type;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,114 @@
+package helpers;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.ObjLongConsumer;
+
+// First come, first served by drink: drinks are brewed in the order they were ordered.
+// An add-on queues behind everything ordered before it instead of jumping ahead with the rest of its order.
+// Simple and predictable, but a 20-coffee order holds up every order placed after it.
+// Positions are kept as running totals per type, so an order's place in the queue is a subtraction.
+
+public class FifoPolicy implements SchedulingPolicy
+{
+    private final Map<DrinkType, ArrayDeque<Batch>> queues = new EnumMap<>(DrinkType.class);
+    private final Map<DrinkType, Map<Order, Batch>> lastBatches = new EnumMap<>(DrinkType.class); // Latest batch of each order still queued
+    private final long[] queued = new long[DrinkType.values().length]; // Drinks ever queued per type
+    private final long[] left = new long[DrinkType.values().length]; // Drinks ever served or removed per type
+
+    // drinks ordered together, served from the head of the queue
+    private static final class Batch
+    {
+        private final Order order;
+        private final long ticket; // Drinks ever queued of the type up to and including this batch
+        private int drinks;
+
+        Batch(Order order, int drinks, long ticket)
+        {
+            this.order = order;
+            this.drinks = drinks;
+            this.ticket = ticket;
+        }
+    }
+
+    public FifoPolicy()
+    {
+        for (DrinkType type : DrinkType.values())
+        {
+            queues.put(type, new ArrayDeque<>());
+            lastBatches.put(type, new HashMap<>());
+        }
+    }
+
+    @Override
+    public void enqueue(Order order, DrinkType type, int drinks)
+    {
+        if (drinks > 0)
+        {
+            queued[type.ordinal()] += drinks;
+            Batch batch = new Batch(order, drinks, queued[type.ordinal()]);
+            queues.get(type).addLast(batch);
+            lastBatches.get(type).put(order, batch);
+        }
+    }
+
+    @Override
+    public Order next(DrinkType type)
+    {
+        Batch head = queues.get(type).peekFirst();
+        return head != null ? head.order : null;
+    }
+
+    @Override
+    public void served(Order order, DrinkType type)
+    {
+        // Nearly always the head, which is what next() handed out
+        Iterator<Batch> batches = queues.get(type).iterator();
+        while (batches.hasNext())
+        {
+            Batch batch = batches.next();
+            if (batch.order == order)
+            {
+                left[type.ordinal()]++;
+                if (--batch.drinks == 0)
+                {
+                    batches.remove();
+                    lastBatches.get(type).remove(order, batch);
+                }
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void remove(Order order, DrinkType type)
+    {
+        queues.get(type).removeIf(batch -> {
+            if (batch.order != order) return false;
+            left[type.ordinal()] += batch.drinks;
+            return true;
+        });
+        lastBatches.get(type).remove(order);
+    }
+
+    // Drinks queued up to the order's last batch that have not left yet.
+    // A cancellation behind the order is counted as if it were ahead, so this can come out low until the queue moves on.
+    @Override
+    public long drinksAhead(Order order, DrinkType type, long waiting)
+    {
+        Batch last = lastBatches.get(type).get(order);
+        return last != null ? last.ticket - left[type.ordinal()] : 0;
+    }
+
+    @Override
+    public void forEachDrinksAhead(DrinkType type, long waiting, ObjLongConsumer<Order> places)
+    {
+        for (Batch last : lastBatches.get(type).values())
+        {
+            places.accept(last.order, last.ticket - left[type.ordinal()]);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package helpers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Wire format of protocol version 2. A client asks for it by sending "PROTOCOL 2" after the name handshake;
+// the barista answers "PROTOCOL 2" as a text line and from then on both sides only send frames:
+//   int length of the rest (big-endian), byte type, int request ID, UTF-8 text
+// A request carries one command line under an ID the client picks. Its reply carries the same ID and the whole answer,
+// however many lines it has, so replies can be matched to commands and pipelined without knowing each reply's layout.
+// Pushes such as "order ready" carry ID 0. A barista that doesn't speak version 2 answers "PROTOCOL 1" (older ones
+// with their unknown-command line) and the connection stays with text lines, which is still the default.
+
+public final class FrameCodec
+{
+    public static final int version = 2;
+    public static final String handshake = "PROTOCOL " + version;
+
+    public static final byte request = 1;
+    public static final byte reply = 2;
+    public static final byte push = 3;
+
+    public static final int headerLength = 9; // Length, type and request ID
+    public static final int maxFrameLength = 1 << 20; // Longer frames are treated as a broken peer
+
+    public record Frame(byte type, int requestId, String text) {}
+
+    private FrameCodec() {}
+
+    public static byte[] encode(byte type, int requestId, String text)
+    {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return encode(type, requestId, bytes, 0, bytes.length);
+    }
+
+    public static byte[] encode(byte type, int requestId, byte[] text, int offset, int length)
+    {
+        byte[] frame = new byte[headerLength + length];
+        ByteBuffer.wrap(frame).putInt(length + headerLength - 4).put(type).putInt(requestId).put(text, offset, length);
+        return frame;
+    }
+
+    // Next frame from a blocking stream, null if the stream ended between frames
+    public static Frame read(InputStream in) throws IOException
+    {
+        byte[] lengthBytes = in.readNBytes(4);
+        if (lengthBytes.length == 0) return null;
+        if (lengthBytes.length < 4) throw new EOFException("Stream ended inside a frame");
+        int length = checkLength(ByteBuffer.wrap(lengthBytes).getInt());
+
+        byte[] rest = in.readNBytes(length);
+        if (rest.length < length) throw new EOFException("Stream ended inside a frame");
+        ByteBuffer frame = ByteBuffer.wrap(rest);
+        return new Frame(frame.get(), frame.getInt(), new String(rest, 5, length - 5, StandardCharsets.UTF_8));
+    }
+
+    // Next complete frame in a buffer in read mode, null if it hasn't all arrived yet; a partial frame stays in the buffer
+    public static Frame decode(ByteBuffer buffer) throws IOException
+    {
+        if (buffer.remaining() < 4) return null;
+        int length = checkLength(buffer.getInt(buffer.position()));
+        if (buffer.remaining() < 4 + length) return null;
+
+        buffer.getInt();
+        byte type = buffer.get();
+        int requestId = buffer.getInt();
+        String text = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length - 5, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length - 5);
+        return new Frame(type, requestId, text);
+    }
+
+    // The buffer (in write mode, after a compact) with room for the frame at its start, reallocated if that frame is larger
+    public static ByteBuffer ensureRoom(ByteBuffer buffer) throws IOException
+    {
+        if (buffer.position() < 4) return buffer;
+        int needed = 4 + checkLength(buffer.getInt(0));
+        if (needed <= buffer.capacity()) return buffer;
+
+        ByteBuffer larger = ByteBuffer.allocate(needed);
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    // One text line from a blocking stream without its line break, null if the stream ended first.
+    // Reads byte by byte from a buffered stream, so frames after a protocol switch stay in the stream.
+    public static String readLine(InputStream in, int maxLength) throws IOException
+    {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int next;
+        while ((next = in.read()) != -1 && next != '\n')
+        {
+            if (line.size() >= maxLength) throw new IOException("Line longer than " + maxLength + " bytes");
+            line.write(next);
+        }
+        if (next == -1 && line.size() == 0) return null;
+
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static int checkLength(int length) throws IOException
+    {
+        if (length < headerLength - 4 || length > maxFrameLength)
+        {
+            throw new IOException("Bad frame length " + length);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,97 @@
+package helpers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Log-linear histogram of durations in microseconds.
+// Every power of two is split into 4 buckets, so a percentile read back is within about 12% of the real value.
+// Recording is a few atomic increments on preallocated arrays: no locks and no allocation.
+
+public class LatencyHistogram
+{
+    private static final int subBuckets = 4; // Per power of two, must be a power of two itself
+    private static final int subBucketBits = 2;
+    private static final int bucketCount = 160; // Up to 2^40 us (about 12 days), larger values land in the last bucket
+
+    private final AtomicLongArray buckets = new AtomicLongArray(bucketCount);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void recordNanos(long nanos)
+    {
+        record(nanos / 1000);
+    }
+
+    public void recordMillis(long millis)
+    {
+        record(millis * 1000);
+    }
+
+    public void record(long micros)
+    {
+        if (micros < 0) micros = 0;
+        buckets.incrementAndGet(bucketOf(micros));
+        count.incrementAndGet();
+        sumMicros.addAndGet(micros);
+
+        long max;
+        while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros))
+        {
+            // Lost a race with a larger or concurrent value, re-read and retry
+        }
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getSumMicros()
+    {
+        return sumMicros.get();
+    }
+
+    public long getMaxMicros()
+    {
+        return maxMicros.get();
+    }
+
+    // Estimated value at the given quantile (0..1), 0 when nothing was recorded.
+    // Read while recording goes on, so it is a close but not an exact point-in-time view.
+    public long percentileMicros(double quantile)
+    {
+        long total = count.get();
+        if (total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < bucketCount; i++)
+        {
+            seen += buckets.get(i);
+            if (seen >= rank)
+            {
+                return Math.min(midpoint(i), maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    // Values below 4 get a bucket each, above that the top 3 bits pick the bucket
+    private static int bucketOf(long micros)
+    {
+        if (micros < subBuckets) return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - subBucketBits)) & (subBuckets - 1);
+        return Math.min(bucketCount - 1, (exponent - 1) * subBuckets + sub);
+    }
+
+    private static long midpoint(int bucket)
+    {
+        if (bucket < subBuckets) return bucket;
+        int exponent = bucket / subBuckets + 1;
+        long width = 1L << (exponent - subBucketBits);
+        long lower = (subBuckets + bucket % subBuckets) * width;
+        return lower + width / 2;
+    }
+}
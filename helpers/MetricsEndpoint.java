@@ -0,0 +1,38 @@
+package helpers;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+// Serves the cafe metrics at http://localhost:<port>/metrics in Prometheus text format.
+// Bound to the loopback address only; scrapes are answered on the server's own single thread.
+
+public class MetricsEndpoint
+{
+    private final HttpServer server;
+
+    public MetricsEndpoint(int port, CafeMetrics metrics) throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody())
+            {
+                out.write(body);
+            }
+        });
+        server.start();
+        System.out.println("Metrics available at http://localhost:" + server.getAddress().getPort() + "/metrics");
+    }
+
+    public void close()
+    {
+        server.stop(0);
+    }
+}
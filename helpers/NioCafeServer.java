@@ -0,0 +1,360 @@
+package helpers;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Non-blocking front end for the cafe.
+// One selector thread accepts connections, reads and splits lines (or protocol frames), and writes queued replies.
+// Commands are handed to a small worker pool, one connection at a time in arrival order,
+// so thousands of idle customers cost a buffer each instead of a thread each.
+
+public class NioCafeServer implements Runnable
+{
+    private static final int maxLineLength = 8192; // Longer lines are treated as a broken client
+    private static final byte textLine = 0; // Inbox entry type for a text line, next to FrameCodec's frame types
+    private static final int maxGatheredWrites = 64; // Queued buffers handed to one write call
+    private static final long acceptPauseMillis = 100; // How long to stop accepting after a failed accept, e.g. out of file descriptors
+
+    private final int port;
+    private final Cafe cafe;
+    private final ExecutorService workers;
+    private final Queue<Connection> interestChanges = new ConcurrentLinkedQueue<>(); // Connections with new writes queued
+    private Selector selector;
+    private long acceptPausedUntil = 0; // Nanos; accepting is off until then, selector thread only
+
+    public NioCafeServer(int port, Cafe cafe, int workerCount)
+    {
+        this.port = port;
+        this.cafe = cafe;
+        this.workers = CafeThreads.newPool("nio-worker", workerCount);
+    }
+
+    @Override
+    public void run()
+    {
+        try(Selector selector = Selector.open();
+            ServerSocketChannel serverChannel = ServerSocketChannel.open())
+        {
+            this.selector = selector;
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            SelectionKey acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("Cafe is open (non-blocking mode). Waiting for customers...");
+
+            while (!Thread.currentThread().isInterrupted())
+            {
+                if (acceptPausedUntil == 0)
+                {
+                    selector.select();
+                }
+                else
+                {
+                    selector.select(acceptPauseMillis);
+                    if (System.nanoTime() - acceptPausedUntil >= 0)
+                    {
+                        acceptPausedUntil = 0;
+                        acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+                    }
+                }
+
+                // Turn on write interest for connections that queued replies from worker or brewing threads
+                Connection changed;
+                while ((changed = interestChanges.poll()) != null)
+                {
+                    if (changed.key.isValid())
+                    {
+                        changed.key.interestOps(changed.key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable())
+                    {
+                        accept(serverChannel, key);
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try
+                    {
+                        if (key.isReadable()) connection.read();
+                        if (key.isValid() && key.isWritable()) connection.write();
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    // Takes the next customer. A failed accept (most likely out of file descriptors) only costs that customer:
+    // accepting pauses briefly, so the pending connection doesn't make the selector spin, and existing customers carry on.
+    private void accept(ServerSocketChannel serverChannel, SelectionKey acceptKey)
+    {
+        SocketChannel channel = null;
+        try
+        {
+            channel = serverChannel.accept();
+            if (channel == null) return;
+
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            int clientID = cafe.getCustomers().enter(); // Registers the customer as IDLE
+            Connection connection = new Connection(channel, new CustomerHandler(clientID, cafe));
+            connection.key = key;
+            key.attach(connection);
+        } catch (IOException e) {
+            System.out.println("Failed to accept a customer: " + e.getMessage());
+            if (channel != null)
+            {
+                try
+                {
+                    channel.close();
+                } catch (IOException closeFailed) {
+                    // Nothing more to do for this customer
+                }
+            }
+            acceptKey.interestOps(0);
+            acceptPausedUntil = System.nanoTime() + acceptPauseMillis * 1_000_000;
+        }
+    }
+
+
+    // State of one customer connection. Reads and writes happen on the selector thread,
+    // commands run on the worker pool one after another.
+    private final class Connection
+    {
+        private final SocketChannel channel;
+        private final CustomerHandler handler;
+        private final ReplyWriter writer;
+        private SelectionKey key;
+
+        private ByteBuffer readBuffer = ByteBuffer.allocate(4096); // Grows for frames larger than this
+        private byte[] line = new byte[128];
+        private int lineLength = 0;
+
+        private final Queue<FrameCodec.Frame> inbox = new ConcurrentLinkedQueue<>(); // Lines and frames waiting for a worker
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private boolean greeted = false; // Only touched by the worker currently draining the inbox
+        private volatile boolean closing = false; // Close once queued writes are flushed
+
+        private final Queue<ByteBuffer> outbox = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer[] gathered = new ByteBuffer[maxGatheredWrites]; // Selector thread only
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        Connection(SocketChannel channel, CustomerHandler handler)
+        {
+            this.channel = channel;
+            this.handler = handler;
+            this.writer = new ReplyWriter(new ChannelWriter(this), (bytes, flush) -> queueWrite(ByteBuffer.wrap(bytes), flush));
+        }
+
+        // Reads what is available and splits it into lines, or into frames once the customer has switched to them.
+        // The switch is flagged before its acknowledgement is queued, so the first frame never gets here too early.
+        void read() throws IOException
+        {
+            int read = channel.read(readBuffer);
+            if (read < 0)
+            {
+                close();
+                return;
+            }
+
+            readBuffer.flip();
+            while (!writer.isFramed() && readBuffer.hasRemaining())
+            {
+                byte b = readBuffer.get();
+                if (b == '\n')
+                {
+                    int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                    inbox.add(new FrameCodec.Frame(textLine, 0, new String(line, 0, length, StandardCharsets.UTF_8)));
+                    lineLength = 0;
+                }
+                else
+                {
+                    if (lineLength == maxLineLength)
+                    {
+                        close();
+                        return;
+                    }
+                    if (lineLength == line.length)
+                    {
+                        line = Arrays.copyOf(line, Math.min(line.length * 2, maxLineLength));
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+            FrameCodec.Frame frame;
+            while (writer.isFramed() && (frame = FrameCodec.decode(readBuffer)) != null)
+            {
+                inbox.add(frame);
+            }
+            readBuffer.compact(); // Keeps a partial frame
+            readBuffer = FrameCodec.ensureRoom(readBuffer);
+            schedule();
+        }
+
+        // Makes sure exactly one worker is draining this connection's inbox
+        private void schedule()
+        {
+            if (!inbox.isEmpty() && scheduled.compareAndSet(false, true))
+            {
+                workers.execute(this::drain);
+            }
+        }
+
+        // A line that fails gets an error reply instead of stopping the connection; framed requests answer their own failures
+        private void drain()
+        {
+            try
+            {
+                FrameCodec.Frame request;
+                while (!closing && (request = inbox.poll()) != null)
+                {
+                    try
+                    {
+                        handle(request);
+                    } catch (RuntimeException e) {
+                        System.out.println("Request \"" + request.text() + "\" failed: " + e);
+                        writer.println(CustomerHandler.failedReply);
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+                schedule(); // Lines may have arrived after the last poll
+            }
+        }
+
+        private void handle(FrameCodec.Frame request)
+        {
+            if (!greeted)
+            {
+                greeted = true;
+                handler.greet(request.text(), writer);
+                return;
+            }
+            // Framed replies are only flushed once the inbox is empty, pipelined ones share a wakeup and a write
+            boolean running = request.type() == textLine
+                    ? handler.handleLine(request.text(), writer)
+                    : handler.handleFrame(request, writer, !inbox.isEmpty());
+            if (!running)
+            {
+                closing = true; // Customer said goodbye, close after the reply goes out
+                queueWrite(null);
+            }
+        }
+
+        // Queues bytes for the selector thread; null only asks for a flush check
+        void queueWrite(ByteBuffer buffer)
+        {
+            queueWrite(buffer, true);
+        }
+
+        // Without flush the bytes wait in the outbox for the next flushed write, saving a selector wakeup
+        void queueWrite(ByteBuffer buffer, boolean flush)
+        {
+            if (closed.get()) return;
+            if (buffer != null) outbox.add(buffer);
+            if (!flush) return;
+            interestChanges.add(this);
+            selector.wakeup();
+        }
+
+        // Hands the queued buffers to the socket together, so a burst of replies costs one system call
+        void write() throws IOException
+        {
+            while (!outbox.isEmpty())
+            {
+                int count = 0;
+                for (ByteBuffer queued : outbox)
+                {
+                    gathered[count++] = queued;
+                    if (count == gathered.length) break;
+                }
+                channel.write(gathered, 0, count);
+                for (int i = 0; i < count; i++)
+                {
+                    if (gathered[i].hasRemaining())
+                    {
+                        return; // Socket is full, wait for the next OP_WRITE
+                    }
+                    outbox.poll();
+                }
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            if (closing)
+            {
+                close();
+            }
+        }
+
+        void close()
+        {
+            if (!closed.compareAndSet(false, true)) return;
+            closing = true;
+            key.cancel();
+            try
+            {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("Failed to close connection: " + e.getMessage());
+            }
+            workers.execute(handler::cleanup);
+        }
+    }
+
+
+    // Writer that turns each flushed println into one queued buffer on the connection
+    private static final class ChannelWriter extends Writer
+    {
+        private final Connection connection;
+        private final StringBuilder pending = new StringBuilder();
+
+        ChannelWriter(Connection connection)
+        {
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length)
+        {
+            pending.append(chars, offset, length);
+        }
+
+        @Override
+        public void flush()
+        {
+            if (pending.length() == 0) return;
+            connection.queueWrite(StandardCharsets.UTF_8.encode(CharBuffer.wrap(pending)));
+            pending.setLength(0);
+        }
+
+        @Override
+        public void close()
+        {
+            flush();
+        }
+    }
+}
@@ -1,211 +1,552 @@
 package helpers;
 
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 // Represents a customer's order.
-// Tracks the state of each drink (e.g., "WAITING", "BREWING", "TRAY") and provides methods to update or query these states.
+// Tracks the state of each drink (WAITING, BREWING, TRAY) and provides methods to update or query these states.
+// Drinks are identified by their type and their index within the order, and per-state counters are kept up to date
+// on every transition so counts and "next waiting" lookups are O(1) and allocation free.
 
 public class Order
 {
-    private final Object lock = new Object(); //Object lock
+    private final ReentrantLock lock = new ReentrantLock(); //Guards the drink lists (a lock rather than a monitor so virtual threads don't pin)
+    private CompletableFuture<Order> readyFuture = new CompletableFuture<>(); //Completed when the current drinks are all on the tray, replaced on add-ons
+    private final long id; // Identifies the order in the journal, 0 when it is not journaled
     private final String customerName;
+    private final OrderListener listener; // Told about every drink state change, may be null
+    private final CafeClock clock; // Stamps the time each drink entered its state, null means wall-clock time
+    private final long createdMillis;
+    private volatile boolean collected = false; // Set once the customer has taken the order off the tray, read without the lock by listeners
+    private volatile long version = 0; // Bumped under the lock on every drink change: state transitions, add-ons, transfers, removals
+    private volatile Status status = null; // Last rendered status, valid while its version and ETA are current
+    private volatile long estimatedReadyMillis = noEstimate; // Ready time on the order's clock, kept up to date by the cafe; -1 if unknown
+    private static final long noEstimate = Long.MIN_VALUE; // Never estimated: the status has no ETA line
+
+    // A rendered status, the version of the order it shows and its ETA in seconds (-1 if none);
+    // base is the status without the ETA line, reused while only the ETA moves
+    private record Status(long version, long etaSeconds, String base, String text, byte[] line) {}
+
+    // Drinks are kept in index-addressed lists, one per drink type, to track and change their states
+    private final Drinks[] drinks = new Drinks[DrinkType.values().length];
 
-    // Drinks are in the hashmap to track and change their states
-    private final Map<String, String> teas; // Map of <id> <state>
-    private final Map<String, String> coffees; // Map of <id> <state>
+    public Order(String customerName, int teaCount, int coffeeCount)
+    {
+        this(customerName, teaCount, coffeeCount, null);
+    }
 
-    //Set of atomicintegers to keep track of total number of drinks and total drinks that a ready (for various methods to handle checks and changes)
-    private final AtomicInteger totalTeas = new AtomicInteger(0);
-    private final AtomicInteger totalCoffees = new AtomicInteger(0);
-    private final AtomicInteger readyCount = new AtomicInteger(0);
+    public Order(String customerName, int teaCount, int coffeeCount, OrderListener listener)
+    {
+        this(customerName, Map.of(DrinkType.TEA, teaCount, DrinkType.COFFEE, coffeeCount), listener);
+    }
 
-    public Order(String customerName, int teaCount, int coffeeCount)
+    public Order(String customerName, Map<DrinkType, Integer> drinkCounts, OrderListener listener)
     {
-        this.customerName = customerName;
-        this.teas = new HashMap<>();
-        this.coffees = new HashMap<>();
-        this.totalTeas.addAndGet(teaCount);
-        this.totalCoffees.addAndGet(coffeeCount);
+        this(customerName, drinkCounts, listener, null);
+    }
 
-        //Initialize all drinks as WAITING
-        for (int i = 0; i < teaCount; i++)
+    public Order(String customerName, Map<DrinkType, Integer> drinkCounts, OrderListener listener, CafeClock clock)
+    {
+        this(0, customerName, drinkCounts, listener, clock);
+    }
+
+    public Order(long id, String customerName, Map<DrinkType, Integer> drinkCounts, OrderListener listener, CafeClock clock)
+    {
+        this.id = id;
+        this.customerName = customerName;
+        this.listener = listener;
+        this.clock = clock;
+        this.createdMillis = now();
+        for (DrinkType type : DrinkType.values())
         {
-            teas.put("Tea"+i,"WAITING");
+            drinks[type.ordinal()] = new Drinks(type);
         }
 
-        for (int i = 0; i < coffeeCount; i++)
+        //Initialize all drinks as WAITING
+        for (Map.Entry<DrinkType, Integer> drinkCount : drinkCounts.entrySet())
         {
-            coffees.put("Coffee"+i,"WAITING");
+            drinks(drinkCount.getKey()).add(drinkCount.getValue());
         }
+    }
+
+    private Drinks drinks(DrinkType type)
+    {
+        return drinks[type.ordinal()];
+    }
 
+    private long now()
+    {
+        return clock != null ? clock.currentTimeMillis() : System.currentTimeMillis();
     }
 
     //Getters
-    public Map<String,String> getTotalTeas()
+    public int getDrinkCount(DrinkType type)
+    {
+        lock.lock();
+        try
+        {
+            return drinks(type).size;
+        } finally {
+            lock.unlock();
+        }
+    }
+    public DrinkState getState(DrinkType type, int drinkID)
     {
-        return teas;
+        lock.lock();
+        try
+        {
+            return drinks(type).get(drinkID);
+        } finally {
+            lock.unlock();
+        }
     }
-    public Map<String,String> getTotalCoffees()
+    public long getId()
     {
-        return coffees;
+        return id;
     }
     public String getCustomerName()
     {
         return customerName;
     }
+    public long getCreatedMillis()
+    {
+        return createdMillis;
+    }
+    // Lock-free, so listeners called on every drink change don't take the order's lock again
+    public boolean isCollected()
+    {
+        return collected;
+    }
 
 
-    //When order is complete, notify threads waiting on the lock to proceed (waiting for order to complete)
-    public synchronized void markReady()
+    //When order is complete, complete its ready future so listeners (e.g. the customer's connection) are told.
+    //Must be called without holding the order lock: listeners run on the calling thread.
+    public void markReady()
     {
-        if(isReady())
+        CompletableFuture<Order> future;
+        lock.lock();
+        try
         {
-            synchronized (lock)
+            if(!isReady())
             {
-                lock.notifyAll();
+                return;
             }
+            future = readyFuture;
+        } finally {
+            lock.unlock();
         }
+        future.complete(this); // No-op if this round of drinks was already announced
     }
 
-    //Access to the internal lock object
-    public Object getLock()
+    //Future completed once every drink currently in the order is on the tray.
+    //Drinks added after that start a new round with a new future.
+    public CompletableFuture<Order> whenReady()
+    {
+        markReady(); // An order that is already ready (e.g. nothing left to brew) completes straight away
+        lock.lock();
+        try
+        {
+            return readyFuture;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Access to the internal lock
+    public ReentrantLock getLock()
     {
         return lock;
     }
 
 
     //Add extra drinks to the order
-    public void AddOnTea(int addNum)
+    public void addDrinks(DrinkType type, int addNum)
     {
-        for (int i = totalTeas.get(); i < totalTeas.get()+addNum; i++)
+        lock.lock();
+        try
         {
-            teas.put("Tea"+i,"WAITING");
+            drinks(type).add(addNum);
+        } finally {
+            lock.unlock();
         }
-        totalTeas.addAndGet(addNum);
+    }
+    public void AddOnTea(int addNum)
+    {
+        addDrinks(DrinkType.TEA, addNum);
     }
     public void AddOnCoffee(int addNum)
     {
-        for (int i = totalCoffees.get(); i < totalCoffees.get()+addNum; i++)
+        addDrinks(DrinkType.COFFEE, addNum);
+    }
+
+
+    // Update state for a specific drink
+    public void updateState(DrinkType type, int drinkID, DrinkState newState)
+    {
+        transferDrink(type, drinkID, newState, null);
+    }
+
+    // Same as updateState for a waiting drink that is served by a drink from a cancelled order (source), so listeners can tell
+    public void transferDrink(DrinkType type, int drinkID, DrinkState newState, Order source)
+    {
+        lock.lock();
+        try
+        {
+            if (!drinks(type).set(drinkID, newState, source))
+            {
+                throw new IllegalArgumentException(type + " " + drinkID + " not found.");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Remove a drink from the order (used when an order is cancelled and its drinks are repurposed)
+    public void removeDrink(DrinkType type, int drinkID)
+    {
+        lock.lock();
+        try
+        {
+            drinks(type).remove(drinkID);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Remove every drink in the given state, e.g. the waiting area of a cancelled order or the tray on collection
+    public void removeDrinksInState(DrinkState state)
+    {
+        lock.lock();
+        try
         {
-            coffees.put("Coffee"+i,"WAITING");
+            for (Drinks typed : drinks)
+            {
+                typed.removeAll(state);
+            }
+        } finally {
+            lock.unlock();
         }
-        totalCoffees.addAndGet(addNum);
     }
 
+    // The customer takes everything on the tray; listeners can tell this apart from a cancellation by isCollected()
+    public void collect()
+    {
+        lock.lock();
+        try
+        {
+            collected = true;
+            removeDrinksInState(DrinkState.TRAY);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-    // Update state for a specific tea
-    public void updateTeaState(String teaID, String newState)
+    public void removeDrinksInState(DrinkType type, DrinkState state)
     {
-        if (teas.containsKey(teaID))
+        lock.lock();
+        try
         {
-            teas.put(teaID, newState);
-            if(newState.equals("TRAY")){readyCount.incrementAndGet();}
-        } else {
-            throw new IllegalArgumentException("TeaID " + teaID + " not found.");
+            drinks(type).removeAll(state);
+        } finally {
+            lock.unlock();
         }
     }
-    // Update state for a specific coffee
-    public void updateCoffeeState(String coffeeID, String newState)
+
+    // Count drinks of a type in a specific state
+    public int countByState(DrinkType type, DrinkState state)
     {
-        if (coffees.containsKey(coffeeID))
+        lock.lock();
+        try
         {
-            coffees.put(coffeeID, newState);
-            if(newState.equals("TRAY")){readyCount.incrementAndGet();}
-        } else {
-            throw new IllegalArgumentException("CoffeeID " + coffeeID + " not found.");
+            return drinks(type).counts[state.ordinal()];
+        } finally {
+            lock.unlock();
         }
     }
+    public int countTeasByState(DrinkState state)
+    {
+        return countByState(DrinkType.TEA, state);
+    }
+    public int countCoffeesByState(DrinkState state)
+    {
+        return countByState(DrinkType.COFFEE, state);
+    }
+
+    // Retrieve the next waiting drink of a type, -1 when none are left
+    public int getNextWaiting(DrinkType type)
+    {
+        lock.lock();
+        try
+        {
+            return drinks(type).nextWaiting();
+        } finally {
+            lock.unlock();
+        }
+    }
+    public int getNextWaitingTea()
+    {
+        return getNextWaiting(DrinkType.TEA);
+    }
+    public int getNextWaitingCoffee()
+    {
+        return getNextWaiting(DrinkType.COFFEE);
+    }
 
-    // Count teas in a specific state
-    public int countTeasByState(String state)
+    // Changes with every drink change, so callers can tell whether anything moved
+    public long getVersion()
     {
-        return (int) teas.values().stream().filter(s -> s.equals(state)).count();
+        return version;
     }
 
-    // Count coffees in a specific state
-    public int countCoffeesByState(String state)
+    // Stores the time the current drinks should all be on the tray (-1 if unknown), e.g. the cafe's estimate from the
+    // scheduling queue whenever the order moves in it; from then on the status ends with an ETA line
+    public void setEstimatedReadyMillis(long readyMillis)
     {
-        return (int) coffees.values().stream().filter(s -> s.equals(state)).count();
+        this.estimatedReadyMillis = readyMillis;
     }
 
-    // Retrieve waiting drinks
-    public String getNextWaitingTea() {
-        return teas.entrySet().stream()
-                .filter(entry -> "WAITING".equals(entry.getValue()))
-                .map(Map.Entry::getKey)
-                .findFirst()
-                .orElse(null);
+    // Estimated time the current drinks are all on the tray, -1 if unknown
+    public long getEstimatedReadyMillis()
+    {
+        long readyMillis = estimatedReadyMillis;
+        return readyMillis == noEstimate ? -1 : readyMillis;
     }
 
-    public String getNextWaitingCoffee() {
-        return coffees.entrySet().stream()
-                .filter(entry -> "WAITING".equals(entry.getValue()))
-                .map(Map.Entry::getKey)
-                .findFirst()
-                .orElse(null);
+    // Seconds until the estimated ready time, -1 if there is none
+    public long getEtaSeconds()
+    {
+        long readyMillis = getEstimatedReadyMillis();
+        return readyMillis < 0 ? -1 : Math.max(0, (readyMillis - now() + 999) / 1000);
     }
 
-    //Get the status of the drinks
+    //Get the status of the drinks, rendered again only after the order changed.
+    //With a ready estimate it always ends with "- ETA <n>s" (0 once everything is on the tray) or "- ETA unknown"
     public String getOrderStatus()
     {
-        StringBuilder status = new StringBuilder();
-        status.append("Order status for ").append(customerName).append(":\n");
+        return currentStatus().text();
+    }
 
-        // Counters for teas
-        int waitingTeas = 0, brewingTeas = 0, trayTeas = 0;
+    // The same status as one UTF-8 line ready for the socket; shared between callers, so it must not be modified
+    public byte[] getOrderStatusLine()
+    {
+        return currentStatus().line();
+    }
 
-        // Iterate through the teas map once
-        for (String state : teas.values()) {
-            switch (state) {
-                case "WAITING": waitingTeas++; break;
-                case "BREWING": brewingTeas++; break;
-                case "TRAY": trayTeas++; break;
+    // Polling an unchanged order costs a few volatile reads and the clock; a new ETA alone only appends a line to the cached text
+    private Status currentStatus()
+    {
+        long etaSeconds = getEtaSeconds();
+        Status cached = status;
+        if (cached != null && cached.version() == version && cached.etaSeconds() == etaSeconds)
+        {
+            return cached;
+        }
+        lock.lock();
+        try
+        {
+            cached = status;
+            if (cached == null || cached.version() != version || cached.etaSeconds() != etaSeconds)
+            {
+                String base = cached != null && cached.version() == version ? cached.base() : renderStatus();
+                String text = estimatedReadyMillis == noEstimate ? base : base + "\n- ETA " + (etaSeconds < 0 ? "unknown" : etaSeconds + "s");
+                cached = new Status(version, etaSeconds, base, text, (text + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+                status = cached;
             }
+            return cached;
+        } finally {
+            lock.unlock();
         }
+    }
 
-        // Counters for coffees
-        int waitingCoffees = 0, brewingCoffees = 0, trayCoffees = 0;
+    private String renderStatus()
+    {
+        lock.lock();
+        try
+        {
+            StringBuilder status = new StringBuilder();
+            status.append("Order status for ").append(customerName).append(":\n");
 
-        // Iterate through the coffees map once
-        for (String state : coffees.values()) {
-            switch (state) {
-                case "WAITING": waitingCoffees++; break;
-                case "BREWING": brewingCoffees++; break;
-                case "TRAY": trayCoffees++; break;
+            // Append information about each state to the status
+            boolean hasDrinks = appendStateLine(status, DrinkState.WAITING, " in waiting area\n");
+            hasDrinks |= appendStateLine(status, DrinkState.BREWING, " currently brewing\n");
+            hasDrinks |= appendStateLine(status, DrinkState.TRAY, " ready on the tray\n");
+
+            // Case where there are no drinks in the order
+            if (!hasDrinks) {
+                status.append("- No items found in the order\n");
             }
-        }
 
-        // Append information about each state to the status
-        if (waitingTeas > 0 || waitingCoffees > 0) {
-            status.append("- ").append(waitingTeas).append(" tea(s) and ")
-                    .append(waitingCoffees).append(" coffee(s) in waiting area\n");
+            return status.toString().trim();
+        } finally {
+            lock.unlock();
         }
+    }
 
-        if (brewingTeas > 0 || brewingCoffees > 0) {
-            status.append("- ").append(brewingTeas).append(" tea(s) and ")
-                    .append(brewingCoffees).append(" coffee(s) currently brewing\n");
+    // e.g. "- 1 tea(s) and 0 coffee(s) currently brewing", skipped when no drink is in that state
+    private boolean appendStateLine(StringBuilder status, DrinkState state, String suffix)
+    {
+        int total = 0;
+        for (Drinks typed : drinks)
+        {
+            total += typed.counts[state.ordinal()];
         }
+        if (total == 0) return false;
 
-        if (trayTeas > 0 || trayCoffees > 0) {
-            status.append("- ").append(trayTeas).append(" tea(s) and ")
-                    .append(trayCoffees).append(" coffee(s) ready on the tray\n");
+        status.append("- ");
+        for (Drinks typed : drinks)
+        {
+            if (typed.type.ordinal() > 0)
+            {
+                status.append(typed.type.ordinal() == drinks.length - 1 ? " and " : ", ");
+            }
+            status.append(typed.counts[state.ordinal()]).append(" ").append(typed.type.getKey()).append("(s)");
         }
+        status.append(suffix);
+        return true;
+    }
 
-        // Case where there are no drinks in the order
-        if (status.toString().equals("Order status for " + customerName + ":\n")) {
-            status.append("- No items found in the order\n");
+    //Check if the order is fulfilled
+    public boolean isReady()
+    {
+        lock.lock();
+        try
+        {
+            for (Drinks typed : drinks)
+            {
+                if (typed.counts[DrinkState.WAITING.ordinal()] + typed.counts[DrinkState.BREWING.ordinal()] > 0)
+                {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
         }
+    }
 
-        return status.toString().trim();
+    private void notifyListener(DrinkType type, DrinkState from, DrinkState to, int count)
+    {
+        if (listener != null && count > 0)
+        {
+            listener.onDrinksChanged(this, type, from, to, count);
+        }
     }
 
-    //Check if the order is fulfilled
-    public boolean isReady()
+    private void notifyLeftState(DrinkType type, DrinkState from, DrinkState to, long sinceMillis, long nowMillis)
     {
-        return readyCount.get() == totalTeas.get() + totalCoffees.get();
+        if (listener != null)
+        {
+            listener.onDrinkLeftState(this, type, from, to, nowMillis - sinceMillis);
+        }
     }
 
+
+    // Index-addressed drink states of one drink type with per-state counters.
+    // A null slot is a drink that was removed from the order. Guarded by the owning Order's lock.
+    private final class Drinks
+    {
+        private final DrinkType type;
+        private DrinkState[] states = new DrinkState[4];
+        private long[] since = new long[4]; // When each drink entered its current state
+        private int size = 0;
+        private final int[] counts = new int[DrinkState.values().length];
+        private int nextWaiting = 0; // Every drink below this index has left the waiting area
+
+        Drinks(DrinkType type)
+        {
+            this.type = type;
+        }
+
+        void add(int addNum)
+        {
+            if (addNum > 0 && isReady())
+            {
+                readyFuture = new CompletableFuture<>(); // Previous round is done, these drinks start a new one
+            }
+            if (size + addNum > states.length)
+            {
+                states = Arrays.copyOf(states, Math.max(states.length * 2, size + addNum));
+                since = Arrays.copyOf(since, states.length);
+            }
+            Arrays.fill(states, size, size + addNum, DrinkState.WAITING);
+            Arrays.fill(since, size, size + addNum, now());
+            size += addNum;
+            counts[DrinkState.WAITING.ordinal()] += addNum;
+            version++;
+            notifyListener(type, null, DrinkState.WAITING, addNum);
+        }
+
+        DrinkState get(int id)
+        {
+            return id >= 0 && id < size ? states[id] : null;
+        }
+
+        boolean set(int id, DrinkState newState, Order source)
+        {
+            DrinkState oldState = get(id);
+            if (oldState == null)
+            {
+                return false;
+            }
+            long nowMillis = now();
+            counts[oldState.ordinal()]--;
+            counts[newState.ordinal()]++;
+            states[id] = newState;
+            version++;
+            notifyLeftState(type, oldState, newState, since[id], nowMillis);
+            since[id] = nowMillis;
+            notifyListener(type, oldState, newState, 1);
+            if (listener != null)
+            {
+                listener.onDrinkMoved(Order.this, type, id, oldState, newState, source);
+            }
+            return true;
+        }
+
+        void remove(int id)
+        {
+            DrinkState oldState = get(id);
+            if (oldState != null)
+            {
+                counts[oldState.ordinal()]--;
+                states[id] = null;
+                version++;
+                notifyLeftState(type, oldState, null, since[id], now());
+                notifyListener(type, oldState, null, 1);
+            }
+        }
+
+        void removeAll(DrinkState state)
+        {
+            int removed = counts[state.ordinal()];
+            if (removed == 0) return;
+
+            long nowMillis = now();
+            for (int id = 0; id < size; id++)
+            {
+                if (states[id] == state)
+                {
+                    states[id] = null;
+                    notifyLeftState(type, state, null, since[id], nowMillis);
+                }
+            }
+            counts[state.ordinal()] = 0;
+            version++;
+            notifyListener(type, state, null, removed);
+        }
+
+        // Drinks only ever leave the waiting area, so the cursor never moves backwards
+        int nextWaiting()
+        {
+            while (nextWaiting < size && states[nextWaiting] != DrinkState.WAITING)
+            {
+                nextWaiting++;
+            }
+            return nextWaiting < size ? nextWaiting : -1;
+        }
+    }
 }
@@ -0,0 +1,584 @@
+package helpers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+// Durable record of the active orders: an append-only log of order events plus periodic snapshots.
+//
+// Every event is a small binary record ([length][payload][crc32c]) encoded into an in-memory buffer under a short lock.
+// A writer thread swaps the buffer out, appends it to the current log segment with a FileChannel and forces it to disk,
+// so a burst of events shares one fsync (group commit). awaitDurable() lets a caller wait for its events to be on disk.
+//
+// The writer also applies each batch to a compact image of the orders (drink counts per type and state).
+// Once a segment grows past its size limit the image is written out as a snapshot and older files are deleted.
+// Recovery reads the latest snapshot and replays the segments written after it, stopping at the first torn record.
+//
+// Files in the journal directory:
+//   snapshot-<n>.bin  every order as of the start of segment n
+//   wal-<n>.log       events appended after that
+
+public class OrderJournal implements OrderListener
+{
+    private static final int snapshotMagic = 0x0CAFE5A9;
+    private static final byte orderOpened = 1;
+    private static final byte drinksChanged = 2;
+    private static final byte orderClosed = 3;
+    private static final int noState = -1; // Encodes a null from/to state
+
+    private final Path dir;
+    private final long syncMillis; // 0 or less: written out after every append instead of on a timer
+    private final long segmentBytes;
+
+    // Appending side, guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition work = lock.newCondition(); // Signalled when a caller waits for durability, on close, and per append without a timer
+    private final Condition synced = lock.newCondition(); // Signalled after every batch is on disk
+    private final CRC32C crc = new CRC32C();
+    private ByteBuffer active = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+    private int recordStart; // Position of the length prefix of the record being written
+    private long appendedBytes = 0;
+    private long durableBytes = 0;
+    private boolean syncRequested = false;
+    private volatile boolean open = false; // Events before open() (e.g. while recovered orders are rebuilt) are not logged
+    private volatile boolean failed = false;
+
+    // Writer side, only touched by the writer thread once open
+    private final Map<Long, OrderImage> image = new HashMap<>();
+    private long nextOrderId = 1;
+    private long segment = 0;
+    private FileChannel channel;
+    private Thread writer;
+
+    public OrderJournal(Path dir, long syncMillis, long segmentBytes)
+    {
+        this.dir = dir;
+        this.syncMillis = syncMillis;
+        this.segmentBytes = segmentBytes;
+    }
+
+    // Rebuilds the orders from the latest snapshot and the log segments after it.
+    // Drinks that were brewing when the cafe stopped are put back in the waiting area, their brews are lost.
+    public Collection<OrderImage> recover() throws IOException
+    {
+        Files.createDirectories(dir);
+        TreeMap<Long, Path> snapshots = listFiles("snapshot-", ".bin");
+        TreeMap<Long, Path> segments = listFiles("wal-", ".log");
+
+        long from = 0;
+        while (!snapshots.isEmpty())
+        {
+            Map.Entry<Long, Path> latest = snapshots.pollLastEntry();
+            if (readSnapshot(latest.getValue()))
+            {
+                from = latest.getKey();
+                break;
+            }
+            System.out.println("Skipping damaged journal snapshot " + latest.getValue().getFileName());
+            image.clear();
+        }
+        segment = Math.max(from, segments.isEmpty() ? 0 : segments.lastKey() + 1);
+
+        for (Map.Entry<Long, Path> log : segments.tailMap(from).entrySet())
+        {
+            try (FileChannel in = FileChannel.open(log.getValue(), StandardOpenOption.READ))
+            {
+                ByteBuffer data = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+                if (!replay(data))
+                {
+                    System.out.println("Journal " + log.getValue().getFileName() + " ends in a torn record, the rest is ignored");
+                }
+            }
+        }
+
+        for (OrderImage order : image.values())
+        {
+            order.moveAll(DrinkState.BREWING, DrinkState.WAITING);
+        }
+        return new ArrayList<>(image.values());
+    }
+
+    // Next free order id after recovery
+    public long getNextOrderId()
+    {
+        return nextOrderId;
+    }
+
+    // Starts logging. The writer first saves the recovered orders as a fresh snapshot and starts a new segment,
+    // so startup does not wait for it; events logged meanwhile are buffered until then.
+    public void open()
+    {
+        open = true;
+        writer = CafeThreads.startDaemon("cafe-journal", () -> {
+            try
+            {
+                startSegment();
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            writeLoop();
+        });
+    }
+
+    // An order was created; must be logged before its first drinks
+    public void orderOpened(long orderId, String customerName)
+    {
+        if (!open) return;
+        byte[] name = customerName.getBytes(StandardCharsets.UTF_8);
+        lock.lock();
+        try
+        {
+            ByteBuffer out = reserve(1 + 8 + 2 + name.length);
+            out.put(orderOpened).putLong(orderId).putShort((short) name.length).put(name);
+            seal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void onDrinksChanged(Order order, DrinkType type, DrinkState from, DrinkState to, int count)
+    {
+        if (!open) return;
+        lock.lock();
+        try
+        {
+            ByteBuffer out = reserve(1 + 8 + 3 + 4);
+            out.put(drinksChanged).putLong(order.getId()).put((byte) type.ordinal())
+                    .put((byte) (from == null ? noState : from.ordinal()))
+                    .put((byte) (to == null ? noState : to.ordinal()))
+                    .putInt(count);
+            seal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The order was collected or cancelled and is no longer part of the cafe
+    public void orderClosed(long orderId)
+    {
+        if (!open) return;
+        lock.lock();
+        try
+        {
+            reserve(1 + 8).put(orderClosed).putLong(orderId);
+            seal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks until every event logged so far is on disk; returns straight away if the journal has failed or is closed
+    public void awaitDurable()
+    {
+        if (!open) return;
+        lock.lock();
+        try
+        {
+            long target = appendedBytes;
+            syncRequested = true;
+            work.signal();
+            while (durableBytes < target && open && !failed)
+            {
+                synced.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Writes out what is left and a final snapshot, so the next start has no log to replay
+    public void close()
+    {
+        if (!open) return;
+        lock.lock();
+        try
+        {
+            open = false;
+            work.signal();
+            synced.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try
+        {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    // Room for a record with the given payload size, the length prefix already written. Called with lock held.
+    private ByteBuffer reserve(int payloadBytes)
+    {
+        int needed = 4 + payloadBytes + 4;
+        if (active.remaining() < needed)
+        {
+            // The writer is behind; grow rather than block the order that is logging
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(active.capacity() * 2, active.position() + needed));
+            active.flip();
+            bigger.put(active);
+            active = bigger;
+        }
+        recordStart = active.position();
+        return active.putInt(payloadBytes);
+    }
+
+    // Appends the checksum of the record just written. Called with lock held.
+    private void seal()
+    {
+        int payloadStart = recordStart + 4;
+        crc.reset();
+        crc.update(active.array(), payloadStart, active.position() - payloadStart);
+        active.putInt((int) crc.getValue());
+        appendedBytes += active.position() - recordStart;
+        if (syncMillis <= 0)
+        {
+            work.signal();
+        }
+    }
+
+    private void writeLoop()
+    {
+        while (true)
+        {
+            ByteBuffer batch;
+            long batchEnd;
+            boolean closing;
+            lock.lock();
+            try
+            {
+                if (open && !syncRequested)
+                {
+                    if (syncMillis > 0)
+                    {
+                        work.await(syncMillis, TimeUnit.MILLISECONDS);
+                    }
+                    else if (active.position() == 0)
+                    {
+                        work.await(); // Every append signals, so only wait with nothing to write; a timeout of 0 would spin
+                    }
+                }
+                syncRequested = false;
+                closing = !open;
+                batch = active;
+                active = spare;
+                batchEnd = appendedBytes;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            try
+            {
+                batch.flip();
+                if (batch.hasRemaining())
+                {
+                    while (batch.hasRemaining())
+                    {
+                        channel.write(batch);
+                    }
+                    channel.force(false);
+                    batch.rewind();
+                    replay(batch);
+                }
+                if (closing || channel.size() >= segmentBytes)
+                {
+                    startSegment();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+
+            lock.lock();
+            try
+            {
+                batch.clear();
+                spare = batch;
+                durableBytes = batchEnd;
+                synced.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            if (closing || failed)
+            {
+                closeChannel();
+                return;
+            }
+        }
+    }
+
+    private void fail(IOException e)
+    {
+        lock.lock();
+        try
+        {
+            failed = true;
+            open = false;
+            synced.signalAll(); // Nobody waits for a sync that will never come
+        } finally {
+            lock.unlock();
+        }
+        System.out.println("Order journal stopped: " + e.getMessage());
+    }
+
+    // Snapshot of the image as of now, then an empty segment after it; older files are no longer needed
+    private void startSegment() throws IOException
+    {
+        if (channel != null)
+        {
+            channel.force(true);
+            channel.close();
+            segment++;
+        }
+        writeSnapshot(segment);
+        channel = FileChannel.open(dir.resolve("wal-" + segment + ".log"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        deleteBefore(segment);
+    }
+
+    private void closeChannel()
+    {
+        if (channel == null) return;
+        try
+        {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+    }
+
+    // Applies every complete record in data to the image, false if it stopped at a damaged or partial record
+    private boolean replay(ByteBuffer data)
+    {
+        CRC32C check = new CRC32C();
+        ByteBuffer view = data.duplicate(); // Reused window over one payload at a time, so replaying allocates nothing per record
+        while (data.remaining() >= 4)
+        {
+            int start = data.position();
+            int length = data.getInt();
+            if (length <= 0 || data.remaining() < length + 4)
+            {
+                return false;
+            }
+            view.limit(start + 4 + length).position(start + 4);
+            check.reset();
+            check.update(view);
+            data.position(start + 4 + length);
+            if ((int) check.getValue() != data.getInt())
+            {
+                return false;
+            }
+            view.position(start + 4);
+            apply(view);
+        }
+        return !data.hasRemaining();
+    }
+
+    private void apply(ByteBuffer record)
+    {
+        byte kind = record.get();
+        long orderId = record.getLong();
+        nextOrderId = Math.max(nextOrderId, orderId + 1);
+        switch (kind)
+        {
+            case orderOpened:
+                byte[] name = new byte[record.getShort() & 0xFFFF];
+                record.get(name);
+                image.put(orderId, new OrderImage(orderId, new String(name, StandardCharsets.UTF_8)));
+                break;
+            case drinksChanged:
+                OrderImage order = image.get(orderId);
+                DrinkType type = DrinkType.values()[record.get()];
+                int from = record.get();
+                int to = record.get();
+                int count = record.getInt();
+                if (order != null)
+                {
+                    if (from != noState) order.counts[type.ordinal()][from] -= count;
+                    if (to != noState) order.counts[type.ordinal()][to] += count;
+                }
+                break;
+            case orderClosed:
+                image.remove(orderId);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Layout: magic, next order id, order count, then per order: id, name, count per drink type and state; crc32c last
+    private void writeSnapshot(long number) throws IOException
+    {
+        int types = DrinkType.values().length;
+        int states = DrinkState.values().length;
+        List<byte[]> names = new ArrayList<>(image.size());
+        int size = 4 + 8 + 4;
+        for (OrderImage order : image.values())
+        {
+            byte[] name = order.customerName.getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            size += 8 + 2 + name.length + 4 * types * states;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(size + 4);
+        out.putInt(snapshotMagic).putLong(nextOrderId).putInt(image.size());
+        int i = 0;
+        for (OrderImage order : image.values())
+        {
+            byte[] name = names.get(i++);
+            out.putLong(order.id).putShort((short) name.length).put(name);
+            for (int[] byState : order.counts)
+            {
+                for (int count : byState)
+                {
+                    out.putInt(count);
+                }
+            }
+        }
+        CRC32C check = new CRC32C();
+        check.update(out.array(), 0, size);
+        out.putInt((int) check.getValue());
+        out.flip();
+
+        Path temp = dir.resolve("snapshot-" + number + ".tmp");
+        try (FileChannel file = FileChannel.open(temp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            while (out.hasRemaining())
+            {
+                file.write(out);
+            }
+            file.force(true);
+        }
+        Files.move(temp, dir.resolve("snapshot-" + number + ".bin"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private boolean readSnapshot(Path file) throws IOException
+    {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (in.remaining() < 20 || in.getInt() != snapshotMagic)
+        {
+            return false;
+        }
+        CRC32C check = new CRC32C();
+        check.update(in.array(), 0, in.limit() - 4);
+        if ((int) check.getValue() != in.getInt(in.limit() - 4))
+        {
+            return false;
+        }
+
+        nextOrderId = in.getLong();
+        int orders = in.getInt();
+        for (int i = 0; i < orders; i++)
+        {
+            long id = in.getLong();
+            byte[] name = new byte[in.getShort() & 0xFFFF];
+            in.get(name);
+            OrderImage order = new OrderImage(id, new String(name, StandardCharsets.UTF_8));
+            for (int[] byState : order.counts)
+            {
+                for (int state = 0; state < byState.length; state++)
+                {
+                    byState[state] = in.getInt();
+                }
+            }
+            image.put(id, order);
+        }
+        return true;
+    }
+
+    // Journal files of one kind by number
+    private TreeMap<Long, Path> listFiles(String prefix, String suffix) throws IOException
+    {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, prefix + "*" + suffix))
+        {
+            for (Path entry : entries)
+            {
+                String name = entry.getFileName().toString();
+                try
+                {
+                    files.put(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())), entry);
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        return files;
+    }
+
+    private void deleteBefore(long number) throws IOException
+    {
+        for (Map.Entry<Long, Path> file : listFiles("snapshot-", ".bin").headMap(number).entrySet())
+        {
+            Files.deleteIfExists(file.getValue());
+        }
+        for (Map.Entry<Long, Path> file : listFiles("wal-", ".log").headMap(number).entrySet())
+        {
+            Files.deleteIfExists(file.getValue());
+        }
+    }
+
+
+    // Drink counts of one order as the journal last saw them
+    public static final class OrderImage
+    {
+        private final long id;
+        private final String customerName;
+        private final int[][] counts = new int[DrinkType.values().length][DrinkState.values().length]; // [type][state]
+
+        OrderImage(long id, String customerName)
+        {
+            this.id = id;
+            this.customerName = customerName;
+        }
+
+        public long getId()
+        {
+            return id;
+        }
+
+        public String getCustomerName()
+        {
+            return customerName;
+        }
+
+        public int getCount(DrinkType type, DrinkState state)
+        {
+            return counts[type.ordinal()][state.ordinal()];
+        }
+
+        void moveAll(DrinkState from, DrinkState to)
+        {
+            for (int[] byState : counts)
+            {
+                byState[to.ordinal()] += byState[from.ordinal()];
+                byState[from.ordinal()] = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package helpers;
+
+// Receives every change in the drinks of an order.
+// Called while the order's lock is held, so implementations must be quick and must not block.
+
+public interface OrderListener
+{
+    // count drinks of the given type moved from one state to another.
+    // from is null for drinks added to the order, to is null for drinks removed from it.
+    void onDrinksChanged(Order order, DrinkType type, DrinkState from, DrinkState to, int count);
+
+    // One drink left a state after spending millisInState in it, to is null when it was removed.
+    // Called once per drink, alongside onDrinksChanged, for listeners that time the stages of an order.
+    default void onDrinkLeftState(Order order, DrinkType type, DrinkState from, DrinkState to, long millisInState) {}
+
+    // One drink moved to another state and stays in the order, e.g. WAITING -> BREWING.
+    // source is the cancelled order the drink was handed over from, null for the order's own drinks.
+    default void onDrinkMoved(Order order, DrinkType type, int drinkID, DrinkState from, DrinkState to, Order source) {}
+}
@@ -0,0 +1,49 @@
+package helpers;
+
+// Thrown by Cafe.addOrder when admission control turns an order away; nothing of the order has been taken on.
+// Only BUSY is worth retrying as is, after the hinted delay; the other reasons need a smaller order or a collection first.
+// Carries no stack trace, as rejections are routine under overload and should cost next to nothing.
+
+public class OrderRejectedException extends RuntimeException
+{
+    public enum Reason
+    {
+        INVALID,         // Negative drink count
+        ORDER_TOO_LARGE, // More drinks in one order than cafe.limit.orderDrinks
+        CUSTOMER_LIMIT,  // The customer's uncollected drinks would pass cafe.limit.customerDrinks
+        BUSY             // The waiting area would pass cafe.limit.waitingDrinks
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    private final Reason reason;
+    private final long retryAfterMillis; // 0 unless BUSY
+
+    public OrderRejectedException(Reason reason, String message, long retryAfterMillis)
+    {
+        super(message, null, false, false);
+        this.reason = reason;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public Reason getReason()
+    {
+        return reason;
+    }
+
+    public long getRetryAfterMillis()
+    {
+        return retryAfterMillis;
+    }
+
+    // Reply to the customer, keyword first so clients can parse it,
+    // e.g. "BUSY RETRY_AFTER=12 [Barista]: ..." or "REJECTED ORDER_TOO_LARGE [Barista]: ..."
+    public String toReply()
+    {
+        if (reason == Reason.BUSY)
+        {
+            return "BUSY RETRY_AFTER=" + (retryAfterMillis + 999) / 1000 + " [Barista]: " + getMessage();
+        }
+        return "REJECTED " + reason + " [Barista]: " + getMessage();
+    }
+}
@@ -0,0 +1,260 @@
+package helpers;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+// Streams drink events to subscribed customers (SUBSCRIBE) and displays (SUBSCRIBE ALL), so they don't have to poll:
+//   EVENT MOVED order=12 drink=tea#3 from=WAITING to=BREWING customer=Ann
+//   EVENT TRANSFERRED order=12 drink=coffee#0 to=TRAY from_order=9 customer=Ann
+//   EVENT READY order=12 customer=Ann
+//   EVENT RESYNC dropped=250   (events were dropped, ask ORDER_STATUS for the current state)
+// Events are recorded while the order's lock is held and delivered later on a small pool, a batch of lines per write.
+// Until it is delivered, a drink's event is merged with the next one for the same drink (WAITING->BREWING and
+// BREWING->TRAY become WAITING->TRAY), so a slow subscriber gets fewer, later events rather than holding up the cafe;
+// one that still falls behind by more than the backlog loses them and gets RESYNC.
+
+public class OrderSubscriptions implements OrderListener
+{
+    private final int backlog;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final ReentrantLock poolLock = new ReentrantLock();
+    private ExecutorService pool = null; // Started with the first subscription, guarded by poolLock
+    private boolean closed = false; // Guarded by poolLock
+
+    public OrderSubscriptions(int backlog)
+    {
+        this.backlog = Math.max(1, backlog);
+    }
+
+    // Starts streaming events of the orders the filter accepts to the sink, one or more lines per call.
+    // The filter runs with the order's lock held; the sink on a delivery thread, never two calls at once.
+    public Subscription subscribe(Predicate<Order> filter, Consumer<String> sink)
+    {
+        poolLock.lock();
+        try
+        {
+            if (pool == null && !closed)
+            {
+                pool = CafeThreads.newPool("cafe-events", 4);
+            }
+        } finally {
+            poolLock.unlock();
+        }
+        Subscription subscription = new Subscription(filter, sink);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    public int getCount()
+    {
+        return subscriptions.size();
+    }
+
+    // Stops delivery; events still pending are dropped
+    public void close()
+    {
+        poolLock.lock();
+        try
+        {
+            closed = true;
+            if (pool != null)
+            {
+                pool.shutdownNow();
+            }
+        } finally {
+            poolLock.unlock();
+        }
+        subscriptions.clear();
+    }
+
+    @Override
+    public void onDrinksChanged(Order order, DrinkType type, DrinkState from, DrinkState to, int count)
+    {
+        // Only individual drinks are streamed, see onDrinkMoved
+    }
+
+    @Override
+    public void onDrinkMoved(Order order, DrinkType type, int drinkID, DrinkState from, DrinkState to, Order source)
+    {
+        if (subscriptions.isEmpty()) return;
+
+        Boolean ready = null; // Worked out once, and only if somebody is listening to this order
+        for (Subscription subscription : subscriptions)
+        {
+            if (!subscription.filter.test(order)) continue;
+
+            subscription.offer(new Event(order, type, drinkID, from, to, source));
+            if (to == DrinkState.TRAY)
+            {
+                if (ready == null) ready = order.isReady();
+                if (ready) subscription.offer(new Event(order, null, -1, null, null, null));
+            }
+        }
+    }
+
+    private void deliver(Subscription subscription)
+    {
+        poolLock.lock();
+        try
+        {
+            if (pool == null || closed) return;
+            pool.execute(subscription::drain);
+        } finally {
+            poolLock.unlock();
+        }
+    }
+
+
+    // One drink's change since it was last delivered, or with a null type the order being ready
+    private record Event(Order order, DrinkType type, int drinkID, DrinkState from, DrinkState to, Order source)
+    {
+        String key()
+        {
+            return order.getId() + (type == null ? " ready" : " " + type.getKey() + "#" + drinkID);
+        }
+
+        // This event followed by a later one for the same drink, as if it had happened in one step
+        Event then(Event later)
+        {
+            return new Event(order, type, drinkID, from, later.to, source != null ? source : later.source);
+        }
+
+        String toLine()
+        {
+            StringBuilder line = new StringBuilder("EVENT ");
+            if (type == null)
+            {
+                line.append("READY order=").append(order.getId());
+            }
+            else if (source != null)
+            {
+                line.append("TRANSFERRED order=").append(order.getId()).append(" drink=").append(type.getKey()).append('#').append(drinkID)
+                        .append(" to=").append(to).append(" from_order=").append(source.getId());
+            }
+            else
+            {
+                line.append("MOVED order=").append(order.getId()).append(" drink=").append(type.getKey()).append('#').append(drinkID)
+                        .append(" from=").append(from).append(" to=").append(to);
+            }
+            return line.append(" customer=").append(order.getCustomerName()).toString();
+        }
+    }
+
+
+    // One subscriber: its undelivered events by drink, and whether a delivery is already on its way
+    public final class Subscription implements AutoCloseable
+    {
+        private final Predicate<Order> filter;
+        private final Consumer<String> sink;
+        private final ReentrantLock pendingLock = new ReentrantLock();
+        private Map<String, Event> pending = new LinkedHashMap<>(); // Guarded by pendingLock, oldest first
+        private int dropped = 0; // Events lost since the last delivery, guarded by pendingLock
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        private Subscription(Predicate<Order> filter, Consumer<String> sink)
+        {
+            this.filter = filter;
+            this.sink = sink;
+        }
+
+        private void offer(Event event)
+        {
+            pendingLock.lock();
+            try
+            {
+                if (dropped > 0)
+                {
+                    dropped++; // Behind already, the next delivery is a resync
+                }
+                else
+                {
+                    Event earlier = pending.get(event.key());
+                    if (earlier != null)
+                    {
+                        pending.put(event.key(), earlier.then(event)); // Keeps its place in the stream
+                    }
+                    else if (pending.size() < backlog)
+                    {
+                        pending.put(event.key(), event);
+                    }
+                    else
+                    {
+                        dropped = pending.size() + 1;
+                        pending.clear();
+                    }
+                }
+            } finally {
+                pendingLock.unlock();
+            }
+            if (scheduled.compareAndSet(false, true))
+            {
+                deliver(this);
+            }
+        }
+
+        // Sends everything pending as one batch of lines; events arriving meanwhile wait for the next batch
+        private void drain()
+        {
+            while (true)
+            {
+                Map<String, Event> batch;
+                int lost;
+                pendingLock.lock();
+                try
+                {
+                    batch = pending;
+                    lost = dropped;
+                    pending = new LinkedHashMap<>();
+                    dropped = 0;
+                } finally {
+                    pendingLock.unlock();
+                }
+                if (!batch.isEmpty() || lost > 0)
+                {
+                    sink.accept(render(batch, lost));
+                }
+
+                scheduled.set(false);
+                pendingLock.lock();
+                try
+                {
+                    if ((pending.isEmpty() && dropped == 0) || !scheduled.compareAndSet(false, true))
+                    {
+                        return; // Nothing new, or another delivery has taken over
+                    }
+                } finally {
+                    pendingLock.unlock();
+                }
+            }
+        }
+
+        private String render(Map<String, Event> batch, int lost)
+        {
+            if (lost > 0)
+            {
+                return "EVENT RESYNC dropped=" + lost;
+            }
+            StringBuilder lines = new StringBuilder();
+            for (Event event : batch.values())
+            {
+                if (lines.length() > 0) lines.append('\n');
+                lines.append(event.toLine());
+            }
+            return lines.toString();
+        }
+
+        // Stops the stream; a batch already on its way may still arrive
+        @Override
+        public void close()
+        {
+            subscriptions.remove(this);
+        }
+    }
+}
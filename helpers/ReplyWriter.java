@@ -0,0 +1,339 @@
+package helpers;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Replies to one customer: a PrintWriter (auto-flushing println) that can also send an already encoded line,
+// e.g. a cached order status, straight to the connection without going through the character encoder again.
+// Once the customer switches to frames (see FrameCodec), whatever a command prints between beginReply and endReply
+// goes out as one reply frame, and pushes as their own frames; nothing is flushed per println any more.
+// Everything runs under writeLock instead of PrintWriter's synchronized lock: a virtual thread blocked on the socket
+// inside a monitor pins its carrier thread. So the text methods write to out themselves rather than through super.
+
+public class ReplyWriter extends PrintWriter
+{
+    // Where encoded lines and frames go, after the writer has flushed whatever text it still holds.
+    // flush is false while more replies are about to follow, so the sink may hold on to the bytes.
+    public interface EncodedSink
+    {
+        void write(byte[] bytes, boolean flush) throws IOException;
+    }
+
+    private final EncodedSink encoded;
+    private final ReentrantLock writeLock = new ReentrantLock(); // Keeps replies, pushes and lines from interleaving
+    private volatile boolean framed = false; // Set under writeLock, read without it by the front end's reader
+    private int replyId = 0; // Request being answered while framed, 0 outside a reply; guarded by writeLock
+    private final ByteArrayOutputStream replyText = new ByteArrayOutputStream(); // Text of that reply so far
+
+    public ReplyWriter(Writer out, EncodedSink encoded)
+    {
+        super(out, false); // println flushes in text mode itself, see writeText
+        this.encoded = encoded;
+    }
+
+    // Replies over a blocking socket stream, UTF-8 like the encoded lines. Text and frames share one buffer,
+    // flushed per println in text mode and once per batch of replies in frame mode.
+    public static ReplyWriter forStream(OutputStream socketOut)
+    {
+        BufferedOutputStream out = new BufferedOutputStream(socketOut, 8192);
+        return new ReplyWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)), (bytes, flush) -> {
+            out.write(bytes);
+            if (flush) out.flush();
+        });
+    }
+
+    // Sends a UTF-8 line that already ends in a line break; the array is only read, so it may be shared
+    public void printEncoded(byte[] line)
+    {
+        writeLock.lock(); // Same lock as println, so a reply never interleaves with a push from another thread
+        try
+        {
+            if (framed)
+            {
+                replyText.write(line, 0, line.length);
+                if (replyId == 0) sendFrame(FrameCodec.push, 0);
+                return;
+            }
+            flush();
+            send(line, true);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public boolean isFramed()
+    {
+        return framed;
+    }
+
+    // Acknowledges a protocol switch with a last text line; everything after it goes out in frames.
+    // The flag is set first, so a customer who gets the line and starts sending frames finds the reader switched.
+    public void startFrames(String acknowledgement)
+    {
+        writeLock.lock();
+        try
+        {
+            flush();
+            framed = true;
+            send((acknowledgement + "\n").getBytes(StandardCharsets.UTF_8), true);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // What the command thread prints from here to endReply answers the given request (text mode: no effect)
+    public void beginReply(int requestId)
+    {
+        writeLock.lock();
+        try
+        {
+            if (framed) replyId = requestId;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Sends the reply as one frame; flush is false when more requests are already waiting, so their replies share a write
+    public void endReply(boolean flush)
+    {
+        writeLock.lock();
+        try
+        {
+            if (!framed || replyId == 0) return;
+            sendFrame(FrameCodec.reply, replyId, flush);
+            replyId = 0;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // A message nobody asked for, e.g. "order ready": its own frame, or a plain line in text mode
+    public void printPush(String message)
+    {
+        writeLock.lock();
+        try
+        {
+            if (!framed)
+            {
+                println(message);
+                return;
+            }
+            byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+            send(FrameCodec.encode(FrameCodec.push, 0, bytes, 0, bytes.length), true);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Text printed while framed is collected rather than written; outside a reply each line is pushed on its own
+    @Override
+    public void write(int c)
+    {
+        write(String.valueOf((char) c));
+    }
+
+    @Override
+    public void write(char[] buf, int off, int len)
+    {
+        write(new String(buf, off, len), 0, len);
+    }
+
+    @Override
+    public void write(String s, int off, int len)
+    {
+        writeLock.lock();
+        try
+        {
+            if (framed)
+            {
+                replyText.writeBytes(s.substring(off, off + len).getBytes(StandardCharsets.UTF_8));
+            } else {
+                writeText(s.substring(off, off + len), false);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void println()
+    {
+        writeLock.lock();
+        try
+        {
+            if (!framed)
+            {
+                writeText(System.lineSeparator(), true);
+                return;
+            }
+            replyText.write('\n');
+            if (replyId == 0) sendFrame(FrameCodec.push, 0);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // PrintWriter prints and ends the line inside its synchronized block; these hold writeLock for both instead
+    @Override
+    public void println(String x)
+    {
+        printLine(String.valueOf(x));
+    }
+
+    @Override
+    public void println(Object x)
+    {
+        printLine(String.valueOf(x));
+    }
+
+    @Override
+    public void println(char[] x)
+    {
+        printLine(new String(x));
+    }
+
+    @Override
+    public void println(boolean x)
+    {
+        printLine(String.valueOf(x));
+    }
+
+    @Override
+    public void println(char x)
+    {
+        printLine(String.valueOf(x));
+    }
+
+    @Override
+    public void println(int x)
+    {
+        printLine(String.valueOf(x));
+    }
+
+    @Override
+    public void println(long x)
+    {
+        printLine(String.valueOf(x));
+    }
+
+    @Override
+    public void println(float x)
+    {
+        printLine(String.valueOf(x));
+    }
+
+    @Override
+    public void println(double x)
+    {
+        printLine(String.valueOf(x));
+    }
+
+    @Override
+    public PrintWriter format(String format, Object... args)
+    {
+        return format(Locale.getDefault(Locale.Category.FORMAT), format, args);
+    }
+
+    @Override
+    public PrintWriter format(Locale locale, String format, Object... args)
+    {
+        writeLock.lock();
+        try
+        {
+            write(String.format(locale, format, args));
+            if (!framed) flush();
+        } finally {
+            writeLock.unlock();
+        }
+        return this;
+    }
+
+    @Override
+    public void flush()
+    {
+        writeLock.lock();
+        try
+        {
+            if (out == null) return;
+            out.flush();
+        } catch (IOException e) {
+            setError();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        writeLock.lock();
+        try
+        {
+            if (out == null) return;
+            out.close();
+        } catch (IOException e) {
+            setError();
+        } finally {
+            out = null;
+            writeLock.unlock();
+        }
+    }
+
+    private void printLine(String line)
+    {
+        writeLock.lock();
+        try
+        {
+            write(line);
+            println();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Text mode output, straight to out; called with writeLock held
+    private void writeText(String text, boolean flush)
+    {
+        try
+        {
+            if (out == null) throw new IOException("Stream closed");
+            out.write(text);
+            if (flush) out.flush();
+        } catch (IOException e) {
+            setError();
+        }
+    }
+
+    // Sends the collected text as one frame, without its final line break; called with writeLock held
+    private void sendFrame(byte type, int requestId, boolean flush)
+    {
+        byte[] text = replyText.toByteArray();
+        int length = text.length > 0 && text[text.length - 1] == '\n' ? text.length - 1 : text.length;
+        replyText.reset();
+        send(FrameCodec.encode(type, requestId, text, 0, length), flush);
+    }
+
+    private void sendFrame(byte type, int requestId)
+    {
+        sendFrame(type, requestId, true);
+    }
+
+    private void send(byte[] bytes, boolean flush)
+    {
+        try
+        {
+            encoded.write(bytes, flush);
+        } catch (IOException e) {
+            setError();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package helpers;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+
+// An append-only log file that is rolled over into closed segments by size or age.
+// The active file keeps its configured name; a closed segment gets the time it was closed in its name,
+// e.g. cafe_logs.json -> cafe_logs.20261017-142300-123.json, and is gzipped in the background if enabled.
+// A log left over from an earlier run is closed as a segment on startup, so every file holds one run of the cafe.
+// Used by a single writer thread.
+
+public class RotatingLog extends OutputStream
+{
+    private static final DateTimeFormatter segmentTime = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS").withZone(ZoneId.systemDefault());
+
+    private final Path path;
+    private final byte[] header; // Written at the start of every segment
+    private final long maxBytes; // 0 turns size-based rotation off
+    private final long maxMillis; // 0 turns time-based rotation off
+    private final boolean gzip;
+
+    private OutputStream out;
+    private long bytes;
+    private long openedMillis;
+    private int segments = 0;
+    private final List<Thread> compressing = new ArrayList<>();
+
+    public RotatingLog(Path path, byte[] header, long maxBytes, long maxMillis, boolean gzip) throws IOException
+    {
+        this.path = path;
+        this.header = header;
+        this.maxBytes = maxBytes;
+        this.maxMillis = maxMillis;
+        this.gzip = gzip;
+        if (gzip)
+        {
+            compressLeftovers(); // Segments whose compression was cut short by a crash
+        }
+        if (Files.exists(path) && Files.size(path) > 0)
+        {
+            closeSegment(); // Left over from the last run
+        }
+        openSegment();
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        out.write(b);
+        bytes++;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException
+    {
+        out.write(data, offset, length);
+        bytes += length;
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        out.flush();
+    }
+
+    // Rolls over to a new segment if the active one is too big or too old; call between records, after a flush.
+    // Returns true if a new segment was started.
+    public boolean rotateIfDue() throws IOException
+    {
+        boolean tooBig = maxBytes > 0 && bytes >= maxBytes;
+        boolean tooOld = maxMillis > 0 && bytes > header.length && System.currentTimeMillis() - openedMillis >= maxMillis;
+        if (!tooBig && !tooOld) return false;
+
+        out.close();
+        closeSegment();
+        openSegment();
+        return true;
+    }
+
+    // Number of segments this log has started, so writers can reset per-segment state
+    public int getSegments()
+    {
+        return segments;
+    }
+
+    // Closes the active segment and waits for closed ones to finish compressing
+    @Override
+    public void close() throws IOException
+    {
+        out.close();
+        for (Thread thread : compressing)
+        {
+            try
+            {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void openSegment() throws IOException
+    {
+        out = new BufferedOutputStream(Files.newOutputStream(path), 64 * 1024); // Creates or truncates
+        out.write(header);
+        bytes = header.length;
+        openedMillis = System.currentTimeMillis();
+        segments++;
+    }
+
+    private void closeSegment() throws IOException
+    {
+        long closedMillis = System.currentTimeMillis();
+        Path closed = segmentPath(closedMillis);
+        while (Files.exists(closed) || Files.exists(gzipPath(closed)))
+        {
+            closed = segmentPath(++closedMillis); // Keeps names unique and in order
+        }
+        Files.move(path, closed);
+        if (gzip)
+        {
+            Path segment = closed;
+            compressing.removeIf(thread -> !thread.isAlive());
+            compressing.add(CafeThreads.startDaemon("cafe-log-gzip", () -> compress(segment)));
+        }
+    }
+
+    private Path segmentPath(long millis)
+    {
+        String[] name = splitName(path);
+        return path.resolveSibling(name[0] + "." + segmentTime.format(Instant.ofEpochMilli(millis)) + name[1]);
+    }
+
+    // Writes segment.gz next to the segment and deletes the original; a reader sees one or the other complete
+    private static void compress(Path segment)
+    {
+        Path gz = gzipPath(segment);
+        Path partial = segment.resolveSibling(gz.getFileName() + ".tmp");
+        try
+        {
+            try (InputStream in = Files.newInputStream(segment);
+                 OutputStream zipped = new GZIPOutputStream(Files.newOutputStream(partial), 64 * 1024))
+            {
+                in.transferTo(zipped);
+            }
+            Files.move(partial, gz, StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(segment);
+        } catch (IOException e) {
+            System.out.println("Failed to compress log segment " + segment + ": " + e.getMessage());
+        }
+    }
+
+    private void compressLeftovers() throws IOException
+    {
+        for (Path segment : segmentsOf(path))
+        {
+            if (!segment.equals(path) && !segment.getFileName().toString().endsWith(".gz"))
+            {
+                compress(segment); // Overwrites a half-written .gz.tmp
+            }
+        }
+    }
+
+    private static Path gzipPath(Path segment)
+    {
+        return segment.resolveSibling(segment.getFileName() + ".gz");
+    }
+
+    // {"cafe_logs", ".json"}
+    private static String[] splitName(Path path)
+    {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? new String[] {name.substring(0, dot), name.substring(dot)} : new String[] {name, ""};
+    }
+
+    // Closed segments of a log, oldest first (compressed or not), followed by the active file if it exists
+    public static List<Path> segmentsOf(Path path) throws IOException
+    {
+        String[] name = splitName(path);
+        String prefix = name[0] + ".";
+        TreeMap<String, Path> segments = new TreeMap<>(); // Segment name without .gz -> file, so a segment being compressed is read once
+        Path dir = path.toAbsolutePath().getParent();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*"))
+        {
+            for (Path file : files)
+            {
+                String fileName = file.getFileName().toString();
+                String segment = fileName.endsWith(".gz") ? fileName.substring(0, fileName.length() - 3) : fileName;
+                String time = segment.endsWith(name[1]) && segment.length() > prefix.length() + name[1].length()
+                        ? segment.substring(prefix.length(), segment.length() - name[1].length()) : "";
+                if (time.matches("\\d{8}-\\d{6}-\\d{3}"))
+                {
+                    segments.putIfAbsent(segment, file);
+                }
+            }
+        }
+        List<Path> ordered = new ArrayList<>(segments.values());
+        if (Files.exists(path))
+        {
+            ordered.add(path);
+        }
+        return ordered;
+    }
+}
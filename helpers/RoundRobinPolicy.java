@@ -0,0 +1,85 @@
+package helpers;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ObjLongConsumer;
+
+// Round robin across customers: each order with drinks waiting gets one drink brewed per turn,
+// so a small order is never more than one lap of the queue away from its next drink.
+
+public class RoundRobinPolicy implements SchedulingPolicy
+{
+    private final Map<DrinkType, ArrayDeque<Order>> rotations = new EnumMap<>(DrinkType.class);
+    private final Map<DrinkType, Map<Order, Integer>> waiting = new EnumMap<>(DrinkType.class);
+
+    public RoundRobinPolicy()
+    {
+        for (DrinkType type : DrinkType.values())
+        {
+            rotations.put(type, new ArrayDeque<>());
+            waiting.put(type, new HashMap<>());
+        }
+    }
+
+    @Override
+    public void enqueue(Order order, DrinkType type, int drinks)
+    {
+        if (drinks <= 0) return;
+        if (waiting.get(type).merge(order, drinks, Integer::sum) == drinks)
+        {
+            rotations.get(type).addLast(order); // Joins the back of the round
+        }
+    }
+
+    @Override
+    public Order next(DrinkType type)
+    {
+        return rotations.get(type).peekFirst();
+    }
+
+    @Override
+    public void served(Order order, DrinkType type)
+    {
+        Integer left = waiting.get(type).computeIfPresent(order, (key, drinks) -> drinks > 1 ? drinks - 1 : null);
+        ArrayDeque<Order> rotation = rotations.get(type);
+        if (rotation.peekFirst() == order)
+        {
+            rotation.pollFirst();
+            if (left != null)
+            {
+                rotation.addLast(order); // Had its turn, back of the round
+            }
+        }
+        else if (left == null)
+        {
+            rotation.remove(order);
+        }
+    }
+
+    @Override
+    public void remove(Order order, DrinkType type)
+    {
+        if (waiting.get(type).remove(order) != null)
+        {
+            rotations.get(type).remove(order);
+        }
+    }
+
+    // Every order in the round gets a drink per lap, so the order's last drink comes after
+    // about as many laps as it has drinks waiting
+    @Override
+    public long drinksAhead(Order order, DrinkType type, long total)
+    {
+        int own = waiting.get(type).getOrDefault(order, 0);
+        return Math.min(total, (long) own * rotations.get(type).size());
+    }
+
+    @Override
+    public void forEachDrinksAhead(DrinkType type, long total, ObjLongConsumer<Order> places)
+    {
+        long orders = rotations.get(type).size();
+        waiting.get(type).forEach((order, own) -> places.accept(order, Math.min(total, own * orders)));
+    }
+}
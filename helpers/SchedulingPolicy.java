@@ -0,0 +1,50 @@
+package helpers;
+
+import java.util.function.ObjLongConsumer;
+
+// Decides which order gets the next free brewing machine of a drink type.
+// The cafe tells the policy about every drink that enters or leaves the waiting area, and asks it for the next
+// order one drink at a time, both when a machine frees up and when a cancelled order's drinks are handed over.
+// Calls are made with the cafe's dispatch lock held, so implementations need no locking of their own.
+//
+// Pick one with -Dcafe.scheduling=fifo|srpt|round-robin|wfq (or CafeConfig.setScheduling);
+// wfq weighs each order by its customer's -Dcafe.scheduling.weights entry (CafeConfig.setSchedulingWeight).
+
+public interface SchedulingPolicy
+{
+    // drinks more drinks of the type are waiting for the order
+    void enqueue(Order order, DrinkType type, int drinks);
+
+    // The order whose waiting drink of the type should go next, null if nothing of that type is waiting
+    Order next(DrinkType type);
+
+    // One waiting drink of the type left the order's waiting area (started brewing or was replaced by a handed-over drink)
+    void served(Order order, DrinkType type);
+
+    // Forget the order's waiting drinks of the type, e.g. because the order was cancelled
+    void remove(Order order, DrinkType type);
+
+    // Roughly how many waiting drinks of the type get a machine up to and including the order's last one, for ready-time estimates.
+    // waiting is the total of the type in the waiting area. Must be cheap rather than exact; the default assumes
+    // everything waiting goes first, which suits policies where an order's place can't be told without a scan.
+    default long drinksAhead(Order order, DrinkType type, long waiting)
+    {
+        return waiting;
+    }
+
+    // drinksAhead for every order with drinks of the type waiting, handed to places in one pass over the queue.
+    // Used after a cancellation or capacity change, which moves every order at once; may be rougher than drinksAhead.
+    void forEachDrinksAhead(DrinkType type, long waiting, ObjLongConsumer<Order> places);
+
+    static SchedulingPolicy create(String name, CafeConfig config)
+    {
+        switch (name)
+        {
+            case "fifo": return new FifoPolicy();
+            case "srpt": return new ShortestRemainingPolicy(config);
+            case "round-robin": return new RoundRobinPolicy();
+            case "wfq": return new WeightedFairPolicy(config, order -> config.getSchedulingWeight(order.getCustomerName()));
+            default: throw new IllegalArgumentException("Unknown scheduling policy " + name + ", use fifo, srpt, round-robin or wfq");
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package helpers;
+
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.ObjLongConsumer;
+
+// Shortest remaining order first: the order with the least brewing time still waiting goes next,
+// ties go to the order that came first. Gets single drinks out fast, which cuts the mean wait a lot,
+// at the cost of large orders waiting longer when small ones keep arriving.
+
+public class ShortestRemainingPolicy implements SchedulingPolicy
+{
+    private final int[] brewTimes = new int[DrinkType.values().length];
+    private final Map<Order, Job> jobs = new HashMap<>();
+    private final Map<DrinkType, TreeSet<Job>> queues = new EnumMap<>(DrinkType.class);
+    private long nextSeq;
+
+    // Waiting drinks of one order; while it sits in a queue its work must not change, so it is taken out first
+    private static final class Job
+    {
+        private final Order order;
+        private final long seq;
+        private final int[] waiting = new int[DrinkType.values().length];
+        private long work; // Brewing millis of all waiting drinks
+
+        Job(Order order, long seq)
+        {
+            this.order = order;
+            this.seq = seq;
+        }
+    }
+
+    public ShortestRemainingPolicy(CafeConfig config)
+    {
+        Comparator<Job> byWork = Comparator.<Job>comparingLong(job -> job.work).thenComparingLong(job -> job.seq);
+        for (DrinkType type : DrinkType.values())
+        {
+            brewTimes[type.ordinal()] = Math.max(1, config.getBrewTime(type)); // Instant brewing still counts drinks
+            queues.put(type, new TreeSet<>(byWork));
+        }
+    }
+
+    @Override
+    public void enqueue(Order order, DrinkType type, int drinks)
+    {
+        if (drinks <= 0) return;
+        Job job = jobs.computeIfAbsent(order, key -> new Job(key, nextSeq++));
+        update(job, type, job.waiting[type.ordinal()] + drinks);
+    }
+
+    @Override
+    public Order next(DrinkType type)
+    {
+        TreeSet<Job> queue = queues.get(type);
+        return queue.isEmpty() ? null : queue.first().order;
+    }
+
+    @Override
+    public void served(Order order, DrinkType type)
+    {
+        Job job = jobs.get(order);
+        if (job != null && job.waiting[type.ordinal()] > 0)
+        {
+            update(job, type, job.waiting[type.ordinal()] - 1);
+        }
+    }
+
+    @Override
+    public void remove(Order order, DrinkType type)
+    {
+        Job job = jobs.get(order);
+        if (job != null)
+        {
+            update(job, type, 0);
+        }
+    }
+
+    // Orders with less brewing left go first and keep going until they are done, so the order's last drink follows all of
+    // theirs. Only the orders ahead of it in the queue are counted, usually the few small ones.
+    @Override
+    public long drinksAhead(Order order, DrinkType type, long waiting)
+    {
+        Job job = jobs.get(order);
+        int index = type.ordinal();
+        if (job == null || job.waiting[index] == 0) return 0;
+
+        long ahead = job.waiting[index];
+        for (Job before : queues.get(type).headSet(job, false))
+        {
+            ahead += before.waiting[index];
+        }
+        return ahead;
+    }
+
+    // The same sums as running totals down the queue
+    @Override
+    public void forEachDrinksAhead(DrinkType type, long waiting, ObjLongConsumer<Order> places)
+    {
+        int index = type.ordinal();
+        long ahead = 0;
+        for (Job job : queues.get(type))
+        {
+            ahead += job.waiting[index];
+            places.accept(job.order, ahead);
+        }
+    }
+
+    // A change of one type moves the order in the queues of every type it waits in
+    private void update(Job job, DrinkType type, int waiting)
+    {
+        for (DrinkType queued : DrinkType.values())
+        {
+            if (job.waiting[queued.ordinal()] > 0) queues.get(queued).remove(job);
+        }
+
+        job.waiting[type.ordinal()] = waiting;
+        job.work = 0;
+        for (DrinkType queued : DrinkType.values())
+        {
+            job.work += (long) job.waiting[queued.ordinal()] * brewTimes[queued.ordinal()];
+        }
+
+        if (job.work == 0)
+        {
+            jobs.remove(job.order);
+            return;
+        }
+        for (DrinkType queued : DrinkType.values())
+        {
+            if (job.waiting[queued.ordinal()] > 0) queues.get(queued).add(job);
+        }
+    }
+}
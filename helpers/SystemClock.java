@@ -0,0 +1,41 @@
+package helpers;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Wall-clock time, with events run by a small scheduled pool.
+// A brewing drink is a pending event rather than a sleeping thread.
+
+public class SystemClock implements CafeClock
+{
+    private final ScheduledExecutorService scheduler;
+
+    public SystemClock(int threads)
+    {
+        scheduler = CafeThreads.newScheduler("cafe-clock", threads);
+    }
+
+    @Override
+    public long currentTimeMillis()
+    {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis)
+    {
+        scheduler.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean isSimulated()
+    {
+        return false;
+    }
+
+    @Override
+    public void shutdown()
+    {
+        scheduler.shutdownNow();
+    }
+}
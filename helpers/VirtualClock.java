@@ -0,0 +1,131 @@
+package helpers;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Simulated time for replaying traffic through the real cafe logic.
+// Time stands still until advanceTo/advanceBy/runUntilIdle is called; due events then run
+// in time order on the calling thread, with the clock set to each event's time as it runs.
+
+public class VirtualClock implements CafeClock
+{
+    private final ReentrantLock lock = new ReentrantLock(); // Guards events and sequence, and every write of now
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private volatile long now; // Read without the lock so timing drinks never blocks on the clock
+    private long sequence = 0; // Keeps events due at the same time in scheduling order
+
+    public VirtualClock(long startMillis)
+    {
+        this.now = startMillis;
+    }
+
+    @Override
+    public long currentTimeMillis()
+    {
+        return now;
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis)
+    {
+        lock.lock();
+        try
+        {
+            events.add(new Event(now + Math.max(0, delayMillis), sequence++, task));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isSimulated()
+    {
+        return true;
+    }
+
+    @Override
+    public void shutdown()
+    {
+        lock.lock();
+        try
+        {
+            events.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Runs every event due up to and including targetMillis, then leaves the clock at targetMillis
+    public void advanceTo(long targetMillis)
+    {
+        Event next;
+        while ((next = pollDue(targetMillis)) != null)
+        {
+            next.task.run(); // May schedule further events, which are picked up by the same loop
+        }
+
+        lock.lock();
+        try
+        {
+            now = Math.max(now, targetMillis);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void advanceBy(long millis)
+    {
+        advanceTo(currentTimeMillis() + millis);
+    }
+
+    // Runs events until none are left, returns the time the last one ran at
+    public long runUntilIdle()
+    {
+        Event next;
+        while ((next = pollDue(Long.MAX_VALUE)) != null)
+        {
+            next.task.run();
+        }
+        return currentTimeMillis();
+    }
+
+    // Number of events still waiting to run
+    public int pendingEvents()
+    {
+        lock.lock();
+        try
+        {
+            return events.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Event pollDue(long targetMillis)
+    {
+        lock.lock();
+        try
+        {
+            Event next = events.peek();
+            if (next == null || next.dueMillis > targetMillis)
+            {
+                return null;
+            }
+            events.poll();
+            now = Math.max(now, next.dueMillis);
+            return next;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private record Event(long dueMillis, long sequence, Runnable task) implements Comparable<Event>
+    {
+        @Override
+        public int compareTo(Event other)
+        {
+            int byTime = Long.compare(dueMillis, other.dueMillis);
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+}
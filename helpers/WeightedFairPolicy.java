@@ -0,0 +1,192 @@
+package helpers;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.function.ObjLongConsumer;
+import java.util.function.ToDoubleFunction;
+
+// Weighted fair queuing across customers: every waiting drink gets a virtual finish time of
+// max(cafe virtual time, the order's last finish) + brew time / weight, and the smallest finish goes next.
+// An order's coffee and tea share one finish time, so each customer gets a fair share of the whole bar,
+// and a customer walking in starts at the current virtual time instead of behind the drinks already handed out.
+// With equal weights this is fair queuing; heavier weights get proportionally more machine time.
+
+public class WeightedFairPolicy implements SchedulingPolicy
+{
+    private final int[] brewTimes = new int[DrinkType.values().length];
+    private final ToDoubleFunction<Order> weight;
+    private final Map<Order, Flow> flows = new HashMap<>();
+    private final Map<DrinkType, TreeSet<Flow>> queues = new EnumMap<>(DrinkType.class);
+    private double virtualTime;
+    private long nextSeq;
+
+    // Waiting drinks of one order; finish times of a flow in a queue must not change, so it is taken out first
+    private static final class Flow
+    {
+        private final Order order;
+        private final long seq;
+        private final double weight;
+        private final int[] waiting = new int[DrinkType.values().length];
+        private final double[] finish = new double[DrinkType.values().length]; // Of the next waiting drink per type
+        private double lastFinish;
+
+        Flow(Order order, long seq, double weight)
+        {
+            this.order = order;
+            this.seq = seq;
+            this.weight = weight;
+        }
+    }
+
+    public WeightedFairPolicy(CafeConfig config, ToDoubleFunction<Order> weight)
+    {
+        this.weight = weight;
+        for (DrinkType type : DrinkType.values())
+        {
+            int index = type.ordinal();
+            brewTimes[index] = Math.max(1, config.getBrewTime(type)); // Instant brewing still counts drinks
+            queues.put(type, new TreeSet<>(Comparator.<Flow>comparingDouble(flow -> flow.finish[index]).thenComparingLong(flow -> flow.seq)));
+        }
+    }
+
+    @Override
+    public void enqueue(Order order, DrinkType type, int drinks)
+    {
+        if (drinks <= 0) return;
+        Flow flow = flows.computeIfAbsent(order, key -> new Flow(key, nextSeq++, Math.max(1e-6, weight.applyAsDouble(key))));
+        int index = type.ordinal();
+        if (flow.waiting[index] == 0)
+        {
+            flow.finish[index] = start(flow) + brewTimes[index] / flow.weight;
+            flow.waiting[index] = drinks;
+            queues.get(type).add(flow);
+        }
+        else
+        {
+            flow.waiting[index] += drinks; // Queued behind its own next drink, finish time unchanged
+        }
+    }
+
+    @Override
+    public Order next(DrinkType type)
+    {
+        TreeSet<Flow> queue = queues.get(type);
+        return queue.isEmpty() ? null : queue.first().order;
+    }
+
+    @Override
+    public void served(Order order, DrinkType type)
+    {
+        Flow flow = flows.get(order);
+        int index = type.ordinal();
+        if (flow == null || flow.waiting[index] == 0) return;
+
+        double finish = flow.finish[index];
+        virtualTime = Math.max(virtualTime, finish);
+        flow.lastFinish = Math.max(flow.lastFinish, finish);
+        flow.waiting[index]--;
+
+        // The drink just handed out pushes back the next drink of every type of this order
+        for (DrinkType queued : DrinkType.values())
+        {
+            int i = queued.ordinal();
+            if (i == index || flow.waiting[i] > 0) queues.get(queued).remove(flow);
+            if (flow.waiting[i] > 0)
+            {
+                flow.finish[i] = start(flow) + brewTimes[i] / flow.weight;
+                queues.get(queued).add(flow);
+            }
+        }
+        dropIfIdle(flow);
+    }
+
+    @Override
+    public void remove(Order order, DrinkType type)
+    {
+        Flow flow = flows.get(order);
+        if (flow == null || flow.waiting[type.ordinal()] == 0) return;
+        queues.get(type).remove(flow);
+        flow.waiting[type.ordinal()] = 0;
+        dropIfIdle(flow);
+    }
+
+    // The order's last drink of the type has a virtual finish one brewing time per drink after its next one; every other
+    // order gets a machine for its drinks finishing before that. Only the orders up to that finish are counted, and the
+    // order's drinks of other types, which push its finish times back further, are left out.
+    @Override
+    public long drinksAhead(Order order, DrinkType type, long waiting)
+    {
+        Flow flow = flows.get(order);
+        int index = type.ordinal();
+        if (flow == null || flow.waiting[index] == 0) return 0;
+
+        double lastFinish = lastFinish(flow, index);
+        long ahead = flow.waiting[index];
+        for (Flow other : queues.get(type))
+        {
+            if (other.finish[index] > lastFinish) break;
+            if (other == flow) continue;
+            long drinks = (long) ((lastFinish - other.finish[index]) * other.weight / brewTimes[index]) + 1;
+            ahead += Math.min(other.waiting[index], drinks);
+        }
+        return ahead;
+    }
+
+    // The same count swept over the orders' last finish times, smallest first. Orders whose last finish has passed count
+    // all their drinks; an order part way through counts the brewing times that fit since its next finish, plus half a drink
+    // for the rounding drinksAhead does, and those add up to one linear sum kept as a rate and an offset.
+    @Override
+    public void forEachDrinksAhead(DrinkType type, long waiting, ObjLongConsumer<Order> places)
+    {
+        int index = type.ordinal();
+        Flow[] byLastFinish = queues.get(type).toArray(new Flow[0]);
+        Arrays.sort(byLastFinish, Comparator.comparingDouble(flow -> lastFinish(flow, index)));
+        Iterator<Flow> byFinish = queues.get(type).iterator();
+        Flow next = byFinish.hasNext() ? byFinish.next() : null;
+
+        long done = 0;
+        double rate = 0;
+        double offset = 0;
+        for (Flow flow : byLastFinish)
+        {
+            double lastFinish = lastFinish(flow, index);
+            for (; next != null && next.finish[index] <= lastFinish; next = byFinish.hasNext() ? byFinish.next() : null)
+            {
+                double drinksPerMilli = next.weight / brewTimes[index];
+                rate += drinksPerMilli;
+                offset += 0.5 - next.finish[index] * drinksPerMilli;
+            }
+            double drinksPerMilli = flow.weight / brewTimes[index];
+            rate -= drinksPerMilli;
+            offset -= 0.5 - flow.finish[index] * drinksPerMilli;
+            done += flow.waiting[index];
+            places.accept(flow.order, done + Math.max(0, Math.round(lastFinish * rate + offset)));
+        }
+    }
+
+    // Virtual finish of the flow's last waiting drink of the type
+    private double lastFinish(Flow flow, int index)
+    {
+        return flow.finish[index] + (flow.waiting[index] - 1) * brewTimes[index] / flow.weight;
+    }
+
+    private double start(Flow flow)
+    {
+        return Math.max(virtualTime, flow.lastFinish);
+    }
+
+    // An order with nothing waiting has no claim left, an add-on starts again from the current virtual time
+    private void dropIfIdle(Flow flow)
+    {
+        for (int waiting : flow.waiting)
+        {
+            if (waiting > 0) return;
+        }
+        flows.remove(flow.order);
+    }
+}
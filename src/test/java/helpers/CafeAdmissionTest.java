@@ -0,0 +1,84 @@
+package helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// Admission limits: at most 5 drinks an order, 8 on order per customer, 10 in the waiting area.
+// One tea machine at ten seconds a tea and no coffee machines, so the waiting area drains one drink per ten seconds.
+
+class CafeAdmissionTest
+{
+    private VirtualClock clock;
+    private Cafe cafe;
+
+    @BeforeEach
+    void openCafe()
+    {
+        clock = new VirtualClock(0);
+        cafe = new Cafe(new CafeConfig().setClock(clock).setLogPath(null).setLogConsoleMillis(-1).setMetricsPort(0)
+                .setJournalDir(null).setScheduling("fifo").setOrderDrinkLimit(5).setCustomerDrinkLimit(8).setWaitingDrinkLimit(10)
+                .setCapacity(DrinkType.TEA, 1).setBrewTime(DrinkType.TEA, 10_000).setBatchSize(DrinkType.TEA, 1)
+                .setCapacity(DrinkType.COFFEE, 0));
+    }
+
+    @AfterEach
+    void closeCafe()
+    {
+        cafe.shutdownCafe();
+    }
+
+    @Test
+    void turnsAwayOrdersOverTheOrderLimit()
+    {
+        assertEquals(OrderRejectedException.Reason.ORDER_TOO_LARGE, reject(1, "Ann", 6).getReason());
+        assertEquals(OrderRejectedException.Reason.INVALID, reject(1, "Ann", -1).getReason());
+        assertNull(cafe.getActiveOrder(1));
+        assertEquals(1, cafe.getMetrics().getRejections(OrderRejectedException.Reason.ORDER_TOO_LARGE));
+    }
+
+    @Test
+    void countsAddOnsAgainstTheCustomerLimit()
+    {
+        cafe.addOrder(1, "Ann", 5, 0);
+        OrderRejectedException rejected = reject(1, "Ann", 4);
+        assertEquals(OrderRejectedException.Reason.CUSTOMER_LIMIT, rejected.getReason());
+        assertEquals(0, rejected.getRetryAfterMillis());
+        assertEquals(5, cafe.getActiveOrder(1).getDrinkCount(DrinkType.TEA)); // Nothing of the add-on was taken
+
+        cafe.addOrder(1, "Ann", 3, 0); // Exactly at the limit
+        assertEquals(8, cafe.getActiveOrder(1).getDrinkCount(DrinkType.TEA));
+    }
+
+    @Test
+    void saysBusyOnceTheWaitingAreaIsFull()
+    {
+        cafe.addOrder(1, "Ann", 5, 0); // One brewing, four waiting
+        cafe.addOrder(2, "Bob", 5, 0); // Nine waiting
+        cafe.addOrder(3, "Cy", 1, 0);  // Ten, the limit
+
+        OrderRejectedException busy = reject(4, "Dee", 2);
+        assertEquals(OrderRejectedException.Reason.BUSY, busy.getReason());
+        assertEquals(20_000, busy.getRetryAfterMillis()); // Two drinks over, ten seconds each
+        assertTrue(busy.toReply().startsWith("BUSY RETRY_AFTER=20 "), busy.toReply());
+        assertNull(cafe.getActiveOrder(4));
+
+        // A drink has gone from the waiting area onto the machine, room for one
+        clock.advanceBy(10_000);
+        assertEquals(OrderRejectedException.Reason.BUSY, reject(4, "Dee", 2).getReason());
+        cafe.addOrder(4, "Dee", 1, 0);
+        assertNotNull(cafe.getActiveOrder(4));
+        assertEquals(2, cafe.getMetrics().getRejections(OrderRejectedException.Reason.BUSY));
+    }
+
+    private OrderRejectedException reject(int clientID, String customerName, int teas)
+    {
+        return assertThrows(OrderRejectedException.class, () -> cafe.addOrder(clientID, customerName, teas, 0));
+    }
+}
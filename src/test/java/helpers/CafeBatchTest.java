@@ -0,0 +1,117 @@
+package helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// Cancelling an order while its drinks brew in a batch or sit on the tray: handed over to waiting orders where possible,
+// discarded otherwise, with the machine freed once nothing in its batch is still wanted.
+// One tea machine brewing up to three teas in ten seconds, on the simulated clock.
+
+class CafeBatchTest
+{
+    private VirtualClock clock;
+    private Cafe cafe;
+
+    @BeforeEach
+    void openCafe()
+    {
+        clock = new VirtualClock(0);
+        cafe = new Cafe(new CafeConfig().setClock(clock).setLogPath(null).setLogConsoleMillis(-1).setMetricsPort(0)
+                .setJournalDir(null).setScheduling("fifo").setCapacity(DrinkType.TEA, 1).setBrewTime(DrinkType.TEA, 10_000)
+                .setBatchSize(DrinkType.TEA, 3).setBatchWaitMillis(0));
+    }
+
+    @AfterEach
+    void closeCafe()
+    {
+        cafe.shutdownCafe();
+    }
+
+    @Test
+    void brewingDrinksGoToTheNextWaitingOrder()
+    {
+        cafe.addOrder(1, "Ann", 3, 0);
+        cafe.addOrder(2, "Bob", 2, 0);
+        Order bob = cafe.getActiveOrder(2);
+        assertEquals(2, bob.countByState(DrinkType.TEA, DrinkState.WAITING));
+        assertEquals(20_000, bob.getEstimatedReadyMillis());
+
+        cafe.cancelOrder(1);
+        assertEquals(2, bob.countByState(DrinkType.TEA, DrinkState.BREWING));
+        assertEquals(0, bob.countByState(DrinkType.TEA, DrinkState.WAITING));
+        assertEquals(10_000, bob.getEstimatedReadyMillis()); // Done with Ann's batch
+        assertEquals(1, cafe.getStation(DrinkType.TEA).getInUse());
+
+        clock.advanceBy(10_000);
+        assertTrue(bob.isReady());
+        assertTrue(bob.whenReady().isDone());
+        assertEquals(2, bob.countByState(DrinkType.TEA, DrinkState.TRAY));
+        assertEquals(0, cafe.getStation(DrinkType.TEA).getInUse());
+    }
+
+    @Test
+    void discardingTheWholeBatchFreesTheMachine()
+    {
+        cafe.addOrder(1, "Ann", 3, 0);
+        assertEquals(1, cafe.getStation(DrinkType.TEA).getInUse());
+
+        cafe.cancelOrder(1);
+        assertEquals(0, cafe.getStation(DrinkType.TEA).getInUse());
+
+        cafe.addOrder(2, "Bob", 1, 0);
+        Order bob = cafe.getActiveOrder(2);
+        assertEquals(1, bob.countByState(DrinkType.TEA, DrinkState.BREWING)); // Straight on, not after Ann's batch
+        clock.advanceBy(10_000);
+        assertTrue(bob.isReady());
+    }
+
+    @Test
+    void aPartlyHandedOverBatchHoldsTheMachineUntilItIsDone()
+    {
+        cafe.addOrder(1, "Ann", 3, 0);
+        cafe.addOrder(2, "Bob", 1, 0);
+        cafe.cancelOrder(1); // One tea to Bob, two discarded
+
+        Order bob = cafe.getActiveOrder(2);
+        assertEquals(1, bob.countByState(DrinkType.TEA, DrinkState.BREWING));
+        assertEquals(1, cafe.getStation(DrinkType.TEA).getInUse());
+
+        cafe.addOrder(3, "Cy", 1, 0);
+        Order cy = cafe.getActiveOrder(3);
+        assertEquals(1, cy.countByState(DrinkType.TEA, DrinkState.WAITING));
+
+        clock.advanceBy(10_000);
+        assertTrue(bob.isReady());
+        assertEquals(1, cy.countByState(DrinkType.TEA, DrinkState.BREWING));
+        clock.advanceBy(10_000);
+        assertTrue(cy.isReady());
+    }
+
+    @Test
+    void trayDrinksGoToWaitingDrinksBeforeTheRestIsDiscarded()
+    {
+        cafe.addOrder(1, "Ann", 3, 0);
+        clock.advanceBy(10_000);
+        Order ann = cafe.getActiveOrder(1);
+        assertTrue(ann.isReady());
+
+        cafe.addOrder(2, "Bob", 5, 0); // Three brewing, two waiting
+        Order bob = cafe.getActiveOrder(2);
+        assertEquals(2, bob.countByState(DrinkType.TEA, DrinkState.WAITING));
+
+        cafe.cancelOrder(1);
+        assertEquals(2, bob.countByState(DrinkType.TEA, DrinkState.TRAY));
+        assertEquals(3, bob.countByState(DrinkType.TEA, DrinkState.BREWING));
+        assertEquals(0, bob.countByState(DrinkType.TEA, DrinkState.WAITING));
+        assertFalse(bob.isReady());
+
+        clock.advanceBy(10_000);
+        assertTrue(bob.isReady());
+        assertEquals(5, bob.countByState(DrinkType.TEA, DrinkState.TRAY));
+    }
+}
@@ -0,0 +1,189 @@
+package helpers;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+// The frame format on its own, then a customer switching to it through CustomerHandler and ReplyWriter
+
+class FrameCodecTest
+{
+    @Test
+    void roundTripsThroughAStream() throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(FrameCodec.encode(FrameCodec.request, 7, "place_order 1 2"));
+        out.write(FrameCodec.encode(FrameCodec.reply, 7, "Order status for Zoë:\n- 1 tea(s) waiting"));
+        out.write(FrameCodec.encode(FrameCodec.push, 0, ""));
+
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        assertEquals(new FrameCodec.Frame(FrameCodec.request, 7, "place_order 1 2"), FrameCodec.read(in));
+        assertEquals(new FrameCodec.Frame(FrameCodec.reply, 7, "Order status for Zoë:\n- 1 tea(s) waiting"), FrameCodec.read(in));
+        assertEquals(new FrameCodec.Frame(FrameCodec.push, 0, ""), FrameCodec.read(in));
+        assertNull(FrameCodec.read(in)); // Ended between frames
+    }
+
+    @Test
+    void streamEndingInsideAFrameIsAnError()
+    {
+        byte[] frame = FrameCodec.encode(FrameCodec.request, 1, "collect");
+        assertThrows(EOFException.class, () -> FrameCodec.read(new ByteArrayInputStream(frame, 0, frame.length - 1)));
+        assertThrows(EOFException.class, () -> FrameCodec.read(new ByteArrayInputStream(frame, 0, 2)));
+    }
+
+    @Test
+    void rejectsImpossibleLengths()
+    {
+        byte[] tooLong = ByteBuffer.allocate(4).putInt(FrameCodec.maxFrameLength + 1).array();
+        byte[] tooShort = ByteBuffer.allocate(4).putInt(FrameCodec.headerLength - 5).array();
+        assertThrows(IOException.class, () -> FrameCodec.read(new ByteArrayInputStream(tooLong)));
+        assertThrows(IOException.class, () -> FrameCodec.decode(ByteBuffer.wrap(tooShort)));
+    }
+
+    @Test
+    void decodesFramesArrivingInPieces() throws IOException
+    {
+        byte[] first = FrameCodec.encode(FrameCodec.request, 1, "order_status");
+        byte[] second = FrameCodec.encode(FrameCodec.request, 2, "collect");
+        byte[] wire = new byte[first.length + second.length];
+        System.arraycopy(first, 0, wire, 0, first.length);
+        System.arraycopy(second, 0, wire, first.length, second.length);
+
+        // Fed a few bytes at a time, as a non-blocking read would
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        int fed = 0;
+        int decoded = 0;
+        while (fed < wire.length)
+        {
+            int chunk = Math.min(5, wire.length - fed);
+            buffer.put(wire, fed, chunk);
+            fed += chunk;
+            buffer.flip();
+            FrameCodec.Frame frame;
+            while ((frame = FrameCodec.decode(buffer)) != null)
+            {
+                decoded++;
+                assertEquals(decoded == 1 ? "order_status" : "collect", frame.text());
+                assertEquals(decoded, frame.requestId());
+            }
+            buffer.compact();
+        }
+        assertEquals(2, decoded);
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    void growsTheBufferForALargeFrame() throws IOException
+    {
+        char[] text = new char[100];
+        Arrays.fill(text, 'x');
+        byte[] frame = FrameCodec.encode(FrameCodec.request, 3, new String(text));
+
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.put(frame, 0, 16);
+        buffer = FrameCodec.ensureRoom(buffer);
+        assertEquals(frame.length, buffer.capacity());
+        buffer.put(frame, 16, frame.length - 16).flip();
+        assertEquals(new String(text), FrameCodec.decode(buffer).text());
+    }
+
+    @Test
+    void readsTextLinesWithoutConsumingTheFramesAfterThem() throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("Ann\r\nPROTOCOL 2\n".getBytes(StandardCharsets.UTF_8));
+        out.write(FrameCodec.encode(FrameCodec.request, 1, "order_status"));
+
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        assertEquals("Ann", FrameCodec.readLine(in, 100));
+        assertEquals("PROTOCOL 2", FrameCodec.readLine(in, 100));
+        assertEquals(new FrameCodec.Frame(FrameCodec.request, 1, "order_status"), FrameCodec.read(in));
+        assertNull(FrameCodec.readLine(in, 100));
+    }
+
+    @Test
+    void switchesToFramesAfterTheHandshake() throws IOException
+    {
+        Cafe cafe = new Cafe(config());
+        try
+        {
+            ByteArrayOutputStream wire = new ByteArrayOutputStream();
+            ReplyWriter writer = replyWriter(wire);
+            int clientID = cafe.getCustomers().enter();
+            CustomerHandler handler = new CustomerHandler(clientID, cafe);
+
+            handler.greet("Ann", writer);
+            handler.handleLine("PROTOCOL 2", writer);
+            assertTrue(writer.isFramed());
+            handler.handleFrame(new FrameCodec.Frame(FrameCodec.request, 41, "place_order 2 0"), writer, true);
+            handler.handleFrame(new FrameCodec.Frame(FrameCodec.request, 42, "order_status"), writer, false);
+
+            InputStream in = new ByteArrayInputStream(wire.toByteArray());
+            assertEquals("SUCCESS", FrameCodec.readLine(in, 100));
+            assertEquals(FrameCodec.handshake, FrameCodec.readLine(in, 100));
+
+            FrameCodec.Frame placed = FrameCodec.read(in);
+            assertEquals(FrameCodec.reply, placed.type());
+            assertEquals(41, placed.requestId());
+            assertEquals("Order placed Ann: 2 tea(s). ETA 20s", placed.text());
+
+            // A multi-line reply is still one frame
+            FrameCodec.Frame status = FrameCodec.read(in);
+            assertEquals(42, status.requestId());
+            String[] lines = status.text().split("\n");
+            assertEquals("Order status for Ann:", lines[0]);
+            assertEquals("- ETA 20s", lines[lines.length - 1]);
+            assertNull(FrameCodec.read(in));
+        } finally {
+            cafe.shutdownCafe();
+        }
+    }
+
+    @Test
+    void staysOnTextLinesForAnUnknownVersion()
+    {
+        Cafe cafe = new Cafe(config());
+        try
+        {
+            ByteArrayOutputStream wire = new ByteArrayOutputStream();
+            ReplyWriter writer = replyWriter(wire);
+            CustomerHandler handler = new CustomerHandler(cafe.getCustomers().enter(), cafe);
+
+            handler.greet("Bob", writer);
+            handler.handleLine("PROTOCOL 3", writer);
+            assertFalse(writer.isFramed());
+            assertArrayEquals(("SUCCESS" + System.lineSeparator() + "PROTOCOL 1" + System.lineSeparator()).getBytes(StandardCharsets.UTF_8),
+                    wire.toByteArray());
+        } finally {
+            cafe.shutdownCafe();
+        }
+    }
+
+    // One tea machine, ten seconds a tea
+    private static CafeConfig config()
+    {
+        return new CafeConfig().setClock(new VirtualClock(0)).setLogPath(null).setLogConsoleMillis(-1).setMetricsPort(0)
+                .setJournalDir(null).setScheduling("fifo").setCapacity(DrinkType.TEA, 1).setBrewTime(DrinkType.TEA, 10_000)
+                .setBatchSize(DrinkType.TEA, 1);
+    }
+
+    private static ReplyWriter replyWriter(ByteArrayOutputStream wire)
+    {
+        return new ReplyWriter(new OutputStreamWriter(wire, StandardCharsets.UTF_8), (bytes, flush) -> wire.write(bytes));
+    }
+}
@@ -0,0 +1,184 @@
+package helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Recovery after a crash: the cafe is never shut down (that would leave a clean snapshot and no log to replay),
+// its journal files are copied while it runs, and a second cafe starts from the copy.
+// The recovering cafe has no machines, so recovered drinks stay where the journal put them.
+
+class OrderJournalTest
+{
+    @TempDir
+    Path running;
+
+    @TempDir
+    Path crashed;
+
+    @Test
+    void replaysTheLogAfterACrash() throws IOException
+    {
+        VirtualClock clock = new VirtualClock(0);
+        Cafe cafe = new Cafe(config(clock, running, 1));
+        try
+        {
+            cafe.addOrder(1, "Ann", 2, 1); // One tea and the coffee start brewing
+            clock.advanceBy(10_000);       // ... and reach the tray, the second tea starts
+            cafe.addOrder(2, "Cy", 1, 0);
+            cafe.cancelOrder(2);
+            cafe.addOrder(3, "Bob", 0, 1); // Waits for the journal, so everything before is on disk too
+            copyJournal();
+        } finally {
+            cafe.shutdownCafe();
+        }
+
+        Cafe recovered = new Cafe(config(new VirtualClock(0), crashed, 0));
+        try
+        {
+            Order ann = recovered.reclaimOrder(11, "Ann");
+            assertNotNull(ann);
+            assertEquals(1, ann.countByState(DrinkType.TEA, DrinkState.TRAY));
+            assertEquals(1, ann.countByState(DrinkType.TEA, DrinkState.WAITING)); // Was brewing, the brew is lost
+            assertEquals(1, ann.countByState(DrinkType.COFFEE, DrinkState.TRAY));
+
+            Order bob = recovered.reclaimOrder(13, "Bob");
+            assertNotNull(bob);
+            assertEquals(1, bob.countByState(DrinkType.COFFEE, DrinkState.WAITING));
+
+            assertNull(recovered.reclaimOrder(12, "Cy")); // Cancelled before the crash
+        } finally {
+            recovered.shutdownCafe();
+        }
+    }
+
+    @Test
+    void ignoresATornRecordAndEverythingAfterIt() throws IOException
+    {
+        VirtualClock clock = new VirtualClock(0);
+        Cafe cafe = new Cafe(config(clock, running, 1));
+        long intact;
+        try
+        {
+            cafe.addOrder(1, "Ann", 1, 0);
+            intact = Files.size(log(running));
+            cafe.addOrder(2, "Bob", 0, 2);
+            copyJournal();
+        } finally {
+            cafe.shutdownCafe();
+        }
+        // The write of Bob's first record was cut short
+        try (FileChannel channel = FileChannel.open(log(crashed), StandardOpenOption.WRITE))
+        {
+            channel.truncate(intact + 10);
+        }
+
+        Cafe recovered = new Cafe(config(new VirtualClock(0), crashed, 0));
+        try
+        {
+            Order ann = recovered.reclaimOrder(11, "Ann");
+            assertNotNull(ann);
+            assertEquals(1, ann.countByState(DrinkType.TEA, DrinkState.WAITING));
+            assertNull(recovered.reclaimOrder(12, "Bob"));
+        } finally {
+            recovered.shutdownCafe();
+        }
+    }
+
+    @Test
+    void ignoresARecordWithABadChecksum() throws IOException
+    {
+        VirtualClock clock = new VirtualClock(0);
+        Cafe cafe = new Cafe(config(clock, running, 1));
+        long intact;
+        try
+        {
+            cafe.addOrder(1, "Ann", 1, 0);
+            intact = Files.size(log(running));
+            cafe.addOrder(2, "Bob", 0, 2);
+            copyJournal();
+        } finally {
+            cafe.shutdownCafe();
+        }
+        byte[] data = Files.readAllBytes(log(crashed));
+        data[(int) intact + 8] ^= 0x40; // Inside the order id of Bob's first record
+        Files.write(log(crashed), data);
+
+        Cafe recovered = new Cafe(config(new VirtualClock(0), crashed, 0));
+        try
+        {
+            assertNotNull(recovered.reclaimOrder(11, "Ann"));
+            assertNull(recovered.reclaimOrder(12, "Bob"));
+        } finally {
+            recovered.shutdownCafe();
+        }
+    }
+
+    @Test
+    void syncsEveryEventWithoutATimer() throws IOException, InterruptedException
+    {
+        Cafe cafe = new Cafe(config(new VirtualClock(0), running, 0).setJournalSyncMillis(0).setJournalSyncOnReply(false));
+        try
+        {
+            cafe.addOrder(1, "Ann", 1, 0); // Nobody waits for the journal, the writer goes by itself
+            for (int tries = 0; tries < 500 && logSize(running) == 0; tries++)
+            {
+                Thread.sleep(10);
+            }
+            assertTrue(logSize(running) > 0);
+        } finally {
+            cafe.shutdownCafe();
+        }
+    }
+
+    private static CafeConfig config(VirtualClock clock, Path journal, int machines)
+    {
+        CafeConfig config = new CafeConfig().setClock(clock).setLogPath(null).setLogConsoleMillis(-1).setMetricsPort(0)
+                .setJournalDir(journal.toString()).setJournalSyncOnReply(true).setUnclaimedOrderMillis(0);
+        for (DrinkType type : DrinkType.values())
+        {
+            config.setCapacity(type, machines).setBrewTime(type, 10_000).setBatchSize(type, 1);
+        }
+        return config;
+    }
+
+    private void copyJournal() throws IOException
+    {
+        try (Stream<Path> files = Files.list(running))
+        {
+            for (Path file : (Iterable<Path>) files::iterator)
+            {
+                Files.copy(file, crashed.resolve(file.getFileName()));
+            }
+        }
+    }
+
+    // Size of the log segment, 0 until the writer has started it
+    private static long logSize(Path dir) throws IOException
+    {
+        try (Stream<Path> files = Files.list(dir))
+        {
+            return files.anyMatch(file -> file.getFileName().toString().startsWith("wal-")) ? Files.size(log(dir)) : 0;
+        }
+    }
+
+    // The one log segment a short run writes
+    private static Path log(Path dir) throws IOException
+    {
+        try (Stream<Path> files = Files.list(dir))
+        {
+            return files.filter(file -> file.getFileName().toString().startsWith("wal-")).findFirst().orElseThrow();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+// Delivery happens on the subscriptions' own threads, so each test holds the first delivery in the sink
+// until it has made its changes; they then all wait for the next delivery, where they are merged or dropped.
+
+class OrderSubscriptionsTest
+{
+    private final BlockingQueue<String> delivered = new LinkedBlockingQueue<>();
+    private final CountDownLatch firstDelivery = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private OrderSubscriptions subscriptions;
+
+    @AfterEach
+    void close()
+    {
+        release.countDown();
+        subscriptions.close();
+    }
+
+    @Test
+    void mergesTheEventsOfADrinkWhileTheSubscriberIsBusy() throws InterruptedException
+    {
+        subscriptions = new OrderSubscriptions(100);
+        subscriptions.subscribe(order -> true, this::holdFirstDelivery);
+        Order ann = order(1, "Ann", 2);
+
+        ann.updateState(DrinkType.TEA, 0, DrinkState.BREWING);
+        assertTrue(firstDelivery.await(5, TimeUnit.SECONDS));
+        ann.updateState(DrinkType.TEA, 0, DrinkState.TRAY);
+        ann.updateState(DrinkType.TEA, 1, DrinkState.BREWING);
+        ann.updateState(DrinkType.TEA, 1, DrinkState.TRAY);
+        release.countDown();
+
+        assertEquals("EVENT MOVED order=1 drink=tea#0 from=WAITING to=BREWING customer=Ann", next());
+        assertEquals("EVENT MOVED order=1 drink=tea#0 from=BREWING to=TRAY customer=Ann\n"
+                + "EVENT MOVED order=1 drink=tea#1 from=WAITING to=TRAY customer=Ann\n"
+                + "EVENT READY order=1 customer=Ann", next());
+    }
+
+    @Test
+    void sendsResyncOnceTheBacklogOverflows() throws InterruptedException
+    {
+        subscriptions = new OrderSubscriptions(2);
+        subscriptions.subscribe(order -> true, this::holdFirstDelivery);
+        Order ann = order(1, "Ann", 4);
+
+        ann.updateState(DrinkType.TEA, 0, DrinkState.BREWING);
+        assertTrue(firstDelivery.await(5, TimeUnit.SECONDS));
+        for (int drinkID = 1; drinkID < 4; drinkID++)
+        {
+            ann.updateState(DrinkType.TEA, drinkID, DrinkState.BREWING); // The third one doesn't fit
+        }
+        release.countDown();
+
+        next(); // The first event
+        assertEquals("EVENT RESYNC dropped=3", next());
+
+        // Caught up, events flow again
+        ann.updateState(DrinkType.TEA, 1, DrinkState.TRAY);
+        assertEquals("EVENT MOVED order=1 drink=tea#1 from=BREWING to=TRAY customer=Ann", next());
+    }
+
+    @Test
+    void streamsOnlyTheOrdersTheFilterAccepts() throws InterruptedException
+    {
+        subscriptions = new OrderSubscriptions(100);
+        release.countDown();
+        OrderSubscriptions.Subscription subscription = subscriptions.subscribe(order -> order.getCustomerName().equals("Ann"), delivered::add);
+        Order ann = order(1, "Ann", 1);
+        Order bob = order(2, "Bob", 1);
+
+        bob.updateState(DrinkType.TEA, 0, DrinkState.BREWING);
+        ann.transferDrink(DrinkType.TEA, 0, DrinkState.TRAY, bob);
+        assertEquals("EVENT TRANSFERRED order=1 drink=tea#0 to=TRAY from_order=2 customer=Ann\nEVENT READY order=1 customer=Ann", nextLines(2));
+
+        subscription.close();
+        ann.addDrinks(DrinkType.TEA, 1);
+        ann.updateState(DrinkType.TEA, 1, DrinkState.BREWING);
+        assertNull(delivered.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(0, subscriptions.getCount());
+    }
+
+    private void holdFirstDelivery(String lines)
+    {
+        delivered.add(lines);
+        firstDelivery.countDown();
+        try
+        {
+            release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String next() throws InterruptedException
+    {
+        String lines = delivered.poll(5, TimeUnit.SECONDS);
+        assertNotNull(lines, "Nothing delivered");
+        return lines;
+    }
+
+    // Deliveries until they add up to the given number of lines; without a held delivery, events may arrive split or together
+    private String nextLines(int count) throws InterruptedException
+    {
+        String lines = next();
+        while (lines.split("\n").length < count)
+        {
+            lines += "\n" + next();
+        }
+        return lines;
+    }
+
+    private Order order(long id, String customerName, int teas)
+    {
+        return new Order(id, customerName, Map.of(DrinkType.TEA, teas, DrinkType.COFFEE, 0), subscriptions, null);
+    }
+}
@@ -0,0 +1,133 @@
+package helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+// The order each policy hands out waiting teas in, driven the way the cafe does it: next() then served()
+
+class SchedulingPolicyTest
+{
+    private final CafeConfig config = new CafeConfig().setBrewTime(DrinkType.TEA, 10_000).setBrewTime(DrinkType.COFFEE, 10_000);
+    private final Order ann = new Order("Ann", 3, 0);
+    private final Order bob = new Order("Bob", 3, 0);
+    private final Order cy = new Order("Cy", 3, 0);
+
+    @Test
+    void fifoServesDrinksInTheOrderTheyWereOrdered()
+    {
+        SchedulingPolicy policy = SchedulingPolicy.create("fifo", config);
+        policy.enqueue(ann, DrinkType.TEA, 2);
+        policy.enqueue(bob, DrinkType.TEA, 1);
+        policy.enqueue(ann, DrinkType.TEA, 1); // An add-on queues behind Bob
+        assertEquals(4, policy.drinksAhead(ann, DrinkType.TEA, 4));
+        assertEquals(3, policy.drinksAhead(bob, DrinkType.TEA, 4));
+        assertEquals("Ann Ann Bob Ann", serve(policy));
+    }
+
+    @Test
+    void srptServesTheSmallestOrderFirst()
+    {
+        SchedulingPolicy policy = SchedulingPolicy.create("srpt", config);
+        policy.enqueue(ann, DrinkType.TEA, 3);
+        policy.enqueue(bob, DrinkType.TEA, 1);
+        policy.enqueue(cy, DrinkType.TEA, 2);
+        assertEquals(1, policy.drinksAhead(bob, DrinkType.TEA, 6));
+        assertEquals(3, policy.drinksAhead(cy, DrinkType.TEA, 6));
+        assertEquals(6, policy.drinksAhead(ann, DrinkType.TEA, 6));
+        assertEquals("Bob Cy Cy Ann Ann Ann", serve(policy));
+    }
+
+    @Test
+    void roundRobinServesOneDrinkPerOrderPerTurn()
+    {
+        SchedulingPolicy policy = SchedulingPolicy.create("round-robin", config);
+        policy.enqueue(ann, DrinkType.TEA, 3);
+        policy.enqueue(bob, DrinkType.TEA, 1);
+        policy.enqueue(cy, DrinkType.TEA, 2);
+        assertEquals("Ann Bob Cy Ann Cy Ann", serve(policy));
+    }
+
+    @Test
+    void wfqSharesTheMachinesFairlyAndLetsNewcomersIn()
+    {
+        SchedulingPolicy policy = SchedulingPolicy.create("wfq", config);
+        policy.enqueue(ann, DrinkType.TEA, 3);
+        policy.enqueue(bob, DrinkType.TEA, 1);
+        assertEquals(4, policy.drinksAhead(ann, DrinkType.TEA, 4));
+        assertEquals(2, policy.drinksAhead(bob, DrinkType.TEA, 4));
+        assertEquals("Ann Bob", serve(policy, 2));
+
+        policy.enqueue(cy, DrinkType.TEA, 2); // Starts at the current virtual time, level with Ann
+        assertEquals("Ann Cy Ann Cy", serve(policy));
+    }
+
+    @Test
+    void wfqGivesAHeavierCustomerMoreTurns()
+    {
+        SchedulingPolicy policy = SchedulingPolicy.create("wfq", new CafeConfig().setBrewTime(DrinkType.TEA, 10_000).setSchedulingWeight("Ann", 2));
+        policy.enqueue(ann, DrinkType.TEA, 4);
+        policy.enqueue(bob, DrinkType.TEA, 4);
+        assertEquals("Ann Ann Bob Ann Ann Bob Bob Bob", serve(policy));
+    }
+
+    @Test
+    void removingAnOrderDropsAllItsWaitingDrinks()
+    {
+        for (String name : new String[] {"fifo", "srpt", "round-robin", "wfq"})
+        {
+            SchedulingPolicy policy = SchedulingPolicy.create(name, config);
+            policy.enqueue(ann, DrinkType.TEA, 2);
+            policy.enqueue(bob, DrinkType.TEA, 2);
+            policy.remove(ann, DrinkType.TEA);
+            assertEquals("Bob Bob", serve(policy), name);
+            assertNull(policy.next(DrinkType.COFFEE), name);
+        }
+    }
+
+    @Test
+    void placesInOnePassMatchTheOneOrderFigures()
+    {
+        for (String name : new String[] {"fifo", "srpt", "round-robin", "wfq"})
+        {
+            SchedulingPolicy policy = SchedulingPolicy.create(name, config);
+            policy.enqueue(ann, DrinkType.TEA, 3);
+            policy.enqueue(bob, DrinkType.TEA, 1);
+            policy.enqueue(cy, DrinkType.TEA, 2);
+            policy.served(policy.next(DrinkType.TEA), DrinkType.TEA);
+
+            Map<Order, Long> places = new HashMap<>();
+            policy.forEachDrinksAhead(DrinkType.TEA, 5, places::put);
+            for (Order order : new Order[] {ann, bob, cy})
+            {
+                if (policy.drinksAhead(order, DrinkType.TEA, 5) > 0)
+                {
+                    assertEquals(policy.drinksAhead(order, DrinkType.TEA, 5), places.get(order), name + " " + order.getCustomerName());
+                }
+            }
+        }
+    }
+
+    private static String serve(SchedulingPolicy policy)
+    {
+        return serve(policy, Integer.MAX_VALUE);
+    }
+
+    // Customer names of the next teas handed out, space separated
+    private static String serve(SchedulingPolicy policy, int drinks)
+    {
+        StringBuilder served = new StringBuilder();
+        Order next;
+        while (drinks-- > 0 && (next = policy.next(DrinkType.TEA)) != null)
+        {
+            policy.served(next, DrinkType.TEA);
+            if (served.length() > 0) served.append(' ');
+            served.append(next.getCustomerName());
+        }
+        return served.toString();
+    }
+}